@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * A reference image and a screenshot which differs from it by the given
+ * amount:
+ * <ul>
+ * <li>IDENTICAL: no differences</li>
+ * <li>CURSOR: a text cursor spanning three blocks, which is accepted by cursor
+ * detection</li>
+ * <li>FIVE_PERCENT: one pixel changed in 5% of the blocks</li>
+ * <li>ALL: the colors of all pixels inverted</li>
+ * </ul>
+ */
+public class ComparisonState extends ImageState {
+
+    @Param({ "IDENTICAL", "CURSOR", "FIVE_PERCENT", "ALL" })
+    public String diff;
+
+    protected BufferedImage screenshot;
+
+    @Override
+    protected void createImages() {
+        // The cursor area must be identical except for the cursor itself
+        int cursorX = reference.getWidth() / 2 & ~15;
+        int cursorY = 16;
+        if ("CURSOR".equals(diff)) {
+            Graphics2D g = reference.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(cursorX, cursorY, 16, 48);
+            g.dispose();
+        }
+
+        screenshot = copy(reference);
+        if ("CURSOR".equals(diff)) {
+            for (int y = cursorY + 4; y < cursorY + 44; y++) {
+                screenshot.setRGB(cursorX + 4, y, Color.BLACK.getRGB());
+            }
+        } else if ("FIVE_PERCENT".equals(diff)) {
+            Random random = new Random(1);
+            for (int y = 0; y < screenshot.getHeight(); y += 16) {
+                for (int x = 0; x < screenshot.getWidth(); x += 16) {
+                    if (random.nextInt(100) < 5) {
+                        int pixelX = Math.min(x + 8, screenshot.getWidth() - 1);
+                        int pixelY = Math.min(y + 8, screenshot.getHeight() - 1);
+                        invert(screenshot, pixelX, pixelY);
+                    }
+                }
+            }
+        } else if ("ALL".equals(diff)) {
+            for (int y = 0; y < screenshot.getHeight(); y++) {
+                for (int x = 0; x < screenshot.getWidth(); x++) {
+                    invert(screenshot, x, y);
+                }
+            }
+        } else if (!"IDENTICAL".equals(diff)) {
+            throw new IllegalArgumentException("Unknown difference " + diff);
+        }
+    }
+
+    private static void invert(BufferedImage image, int x, int y) {
+        image.setRGB(x, y, image.getRGB(x, y) ^ 0x00ffffff);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Benchmarks the {@link ImageComparator} implementations on all blocks of a
+ * full HD image: identical images, images where every 15th pixel differs
+ * slightly and images where all pixels differ.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageComparatorBenchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    @State(Scope.Benchmark)
+    public static class ComparatorState {
+
+        @Param({ "BlockImageComparator", "FastImageComparator" })
+        public String comparator;
+
+        @Param({ "identical", "noisy", "different" })
+        public String screenshot;
+
+        ImageComparator imageComparator;
+        ImageProperties reference;
+        ImageProperties screenshotProperties;
+
+        @Setup
+        public void setUp() {
+            if ("BlockImageComparator".equals(comparator)) {
+                imageComparator = new BlockImageComparator();
+            } else if ("FastImageComparator".equals(comparator)) {
+                imageComparator = new FastImageComparator();
+            } else {
+                throw new IllegalArgumentException("Unknown comparator "
+                        + comparator);
+            }
+
+            Random random = new Random(1);
+            BufferedImage referenceImage = createImage(random);
+            BufferedImage screenshotImage;
+            if ("identical".equals(screenshot)) {
+                screenshotImage = ImageState.copy(referenceImage);
+            } else if ("noisy".equals(screenshot)) {
+                screenshotImage = ImageState.copy(referenceImage);
+                for (int y = 0; y < HEIGHT; y += 3) {
+                    for (int x = 0; x < WIDTH; x += 5) {
+                        screenshotImage.setRGB(x, y,
+                                screenshotImage.getRGB(x, y) ^ 0x010203);
+                    }
+                }
+            } else if ("different".equals(screenshot)) {
+                screenshotImage = createImage(random);
+            } else {
+                throw new IllegalArgumentException("Unknown screenshot "
+                        + screenshot);
+            }
+            reference = ImageUtil.getImageProperties(referenceImage);
+            screenshotProperties = ImageUtil
+                    .getImageProperties(screenshotImage);
+        }
+
+        private static BufferedImage createImage(Random random) {
+            BufferedImage image = new BufferedImage(WIDTH, HEIGHT,
+                    BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            return image;
+        }
+    }
+
+    @Benchmark
+    public double getBlockDifference_allBlocks(ComparatorState state) {
+        double total = 0;
+        for (int y = 0; y < HEIGHT; y += 16) {
+            int height = Math.min(16, HEIGHT - y);
+            for (int x = 0; x < WIDTH; x += 16) {
+                total += state.imageComparator.getBlockDifference(
+                        state.reference, state.screenshotProperties, x, y,
+                        Math.min(16, WIDTH - x), height);
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Benchmarks comparing a screenshot to a reference image with
+ * {@link ImageComparison}: the fail-fast comparison done for each screenshot
+ * and alternative reference image, and the full comparison done when creating
+ * a failure report.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageComparisonBenchmark {
+
+    private boolean cursorDetection;
+
+    @Setup
+    public void enableCursorDetection() {
+        cursorDetection = Parameters.isScreenshotComparisonCursorDetection();
+        Parameters.setScreenshotComparisonCursorDetection(true);
+    }
+
+    @TearDown
+    public void restoreCursorDetection() {
+        Parameters.setScreenshotComparisonCursorDetection(cursorDetection);
+    }
+
+    @Benchmark
+    public boolean compareImages(ComparisonState state) {
+        return new ImageComparison().compareImages(state.reference,
+                state.screenshot, 0);
+    }
+
+    @Benchmark
+    public ScreenShotFailureReporter findDifferences(ComparisonState state) {
+        return new ImageComparison().findDifferences(state.reference,
+                state.screenshot, 0);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks hashing images with {@link ImageComparisonUtil}, done for every
+ * screenshot which is looked up in the reference hash index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageComparisonUtilBenchmark {
+
+    @Benchmark
+    public String generateImageHash_fuzzy(ImageState state) {
+        return ImageComparisonUtil.generateImageHash(state.reference, true);
+    }
+
+    @Benchmark
+    public String generateImageHash_exact(ImageState state) {
+        return ImageComparisonUtil.generateImageHash(state.reference, false);
+    }
+
+    @Benchmark
+    public long generatePerceptualHash(ImageState state) {
+        return ImageComparisonUtil.generatePerceptualHash(state.reference);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Benchmarks decoding a PNG screenshot and reading its pixels for a
+ * comparison, with and without reusing the pixel buffer of the previous
+ * screenshot. Run with <code>-prof gc</code> to also see the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageDecoderBenchmark {
+
+    public static class PngState extends ImageState {
+        byte[] png;
+
+        @Override
+        protected void createImages() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                ImageIO.write(reference, "png", out);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            png = out.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public ImageProperties imageIORead(PngState state) throws IOException {
+        BufferedImage screenshot = ImageIO.read(new ByteArrayInputStream(
+                state.png));
+        return ImageUtil.getImageProperties(screenshot);
+    }
+
+    @Benchmark
+    public ImageProperties decodeScreenshot_released(PngState state)
+            throws IOException {
+        BufferedImage screenshot = ImageDecoder.decodeScreenshot(state.png);
+        ImageProperties properties = ImageUtil.getImageProperties(screenshot);
+        ImageDecoder.release(screenshot);
+        return properties;
+    }
+}
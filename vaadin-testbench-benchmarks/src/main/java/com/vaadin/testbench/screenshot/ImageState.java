@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A reference image resembling a screenshot of a web application, in the
+ * sizes of common screens and in the image types screenshots and reference
+ * images are decoded to.
+ */
+@State(Scope.Benchmark)
+public class ImageState {
+
+    @Param({ "1366x768", "1920x1080", "3840x2160" })
+    public String size;
+
+    @Param({ "INT_RGB", "INT_ARGB", "3BYTE_BGR", "4BYTE_ABGR" })
+    public String type;
+
+    protected BufferedImage reference;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        reference = createImage(Integer.parseInt(dimensions[0]),
+                Integer.parseInt(dimensions[1]), getImageType(type));
+        createImages();
+    }
+
+    /**
+     * Creates any other images needed by the benchmark. Called after the
+     * reference image has been created.
+     */
+    protected void createImages() {
+    }
+
+    /**
+     * Draws panels, buttons and text on a white background. The same content
+     * is drawn for every image type so that the results are comparable.
+     */
+    private static BufferedImage createImage(int width, int height,
+            int imageType) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Random random = new Random(1);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 13));
+        for (int y = 40; y < height - 40; y += 120) {
+            for (int x = 20; x < width - 200; x += 240) {
+                g.setColor(new Color(0xe0e0e0 + random.nextInt(0x1f1f1f)));
+                g.fillRect(x, y, 200, 100);
+                g.setColor(new Color(random.nextInt(0x808080)));
+                g.drawString("Label " + random.nextInt(1000), x + 10, y + 20);
+                g.setColor(new Color(0x197de1));
+                g.fillRoundRect(x + 10, y + 50, 90, 35, 4, 4);
+                g.setColor(Color.WHITE);
+                g.drawString("Button", x + 30, y + 72);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    static int getImageType(String type) {
+        if ("INT_RGB".equals(type)) {
+            return BufferedImage.TYPE_INT_RGB;
+        } else if ("INT_ARGB".equals(type)) {
+            return BufferedImage.TYPE_INT_ARGB;
+        } else if ("3BYTE_BGR".equals(type)) {
+            return BufferedImage.TYPE_3BYTE_BGR;
+        } else if ("4BYTE_ABGR".equals(type)) {
+            return BufferedImage.TYPE_4BYTE_ABGR;
+        }
+        throw new IllegalArgumentException("Unknown image type " + type);
+    }
+
+    /**
+     * Copies the image, keeping the image type.
+     */
+    static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(),
+                image.getHeight(), image.getType());
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Benchmarks reading the pixels of images with {@link ImageUtil}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageUtilBenchmark {
+
+    public static class PropertiesState extends ImageState {
+        ImageProperties properties;
+
+        @Override
+        protected void createImages() {
+            properties = ImageUtil.getImageProperties(reference);
+        }
+    }
+
+    @Benchmark
+    public ImageProperties getImageProperties(ImageState state) {
+        return ImageUtil.getImageProperties(state.reference);
+    }
+
+    @Benchmark
+    public void getBlock_allBlocks(PropertiesState state, Blackhole blackhole) {
+        ImageProperties properties = state.properties;
+        int[] block = ImageUtil.createSampleBuffer();
+        for (int y = 0; y < properties.getHeight(); y += 16) {
+            for (int x = 0; x < properties.getWidth(); x += 16) {
+                ImageUtil.getBlock(properties, x, y, block, null);
+                blackhole.consume(block);
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] hashBlocks(PropertiesState state) {
+        return ReferenceBlockHashes.hashBlocks(state.properties);
+    }
+}
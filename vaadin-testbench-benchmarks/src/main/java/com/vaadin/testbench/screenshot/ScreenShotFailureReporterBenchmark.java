@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Benchmarks creating failure reports with {@link ScreenShotFailureReporter}.
+ * The reports are written in the benchmark thread to a temporary directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenShotFailureReporterBenchmark {
+
+    public static class ReportState extends ComparisonState {
+        ScreenShotFailureReporter reporter;
+
+        @Override
+        protected void createImages() {
+            super.createImages();
+            reporter = new ImageComparison().findDifferences(reference,
+                    screenshot, 0);
+            if (reporter == null) {
+                // Identical images, report that nothing differs
+                reporter = new ScreenShotFailureReporter(reference,
+                        new BlockErrorMap(
+                                ImageComparisonUtil.getNrBlocks(reference
+                                        .getWidth()),
+                                ImageComparisonUtil.getNrBlocks(reference
+                                        .getHeight())));
+            }
+        }
+    }
+
+    public static class WriteState extends ReportState {
+        private File errorDirectory;
+        private String oldErrorDirectory;
+        private int oldQueueSize;
+
+        // The report draws on the screenshot, so each write gets a copy
+        BufferedImage screenshotCopy;
+
+        @Setup
+        public void createErrorDirectory() throws IOException {
+            errorDirectory = File.createTempFile("benchmark", "");
+            errorDirectory.delete();
+            errorDirectory.mkdir();
+            oldErrorDirectory = Parameters.getScreenshotErrorDirectory();
+            oldQueueSize = Parameters.getScreenshotErrorWriterQueueSize();
+            Parameters.setScreenshotErrorDirectory(errorDirectory.getPath());
+            Parameters.setScreenshotErrorWriterQueueSize(0);
+        }
+
+        @Setup(Level.Invocation)
+        public void copyScreenshot() {
+            screenshotCopy = copy(screenshot);
+        }
+
+        @TearDown
+        public void deleteErrorDirectory() {
+            Parameters.setScreenshotErrorDirectory(oldErrorDirectory);
+            Parameters.setScreenshotErrorWriterQueueSize(oldQueueSize);
+            for (File file : errorDirectory.listFiles()) {
+                file.delete();
+            }
+            errorDirectory.delete();
+        }
+    }
+
+    @Benchmark
+    public List<ErrorBlock> collectErrorsToList(ReportState state) {
+        return state.reporter.collectErrorsToList();
+    }
+
+    @Benchmark
+    public void createErrorImageAndHTML(WriteState state) {
+        state.reporter.createErrorImageAndHTML("benchmark.png",
+                state.screenshotCopy);
+    }
+}
@@ -20,6 +20,15 @@ public class Parameters {
     private static double screenshotComparisonTolerance;
     private static int maxScreenshotRetries;
     private static int screenshotRetryDelay = 500;
+    private static boolean isScreenshotWaitForStableScreen;
+    private static int screenshotComparisonThreads;
+    private static int screenshotReferenceCacheSize;
+    private static boolean isScreenshotReferenceHashIndex;
+    private static boolean isScreenshotReferencePack;
+    private static boolean isScreenshotReferenceBlockHashes;
+    private static int screenshotErrorWriterQueueSize;
+    private static String screenshotTimingsFile;
+    private static String screenshotComparator;
     private static int testsInParallel;
     private static int testSuitesInParallel;
     static {
@@ -35,6 +44,24 @@ public class Parameters {
                 "screenshotComparisonTolerance", 0.01);
         maxScreenshotRetries = getSystemPropertyInt("maxScreenshotRetries", 2);
         screenshotRetryDelay = getSystemPropertyInt("screenshotRetryDelay", 500);
+        isScreenshotWaitForStableScreen = getSystemPropertyBoolean(
+                "screenshotWaitForStableScreen", false);
+        screenshotComparisonThreads = getSystemPropertyInt(
+                "screenshotComparisonThreads", 0);
+        screenshotReferenceCacheSize = getSystemPropertyInt(
+                "screenshotReferenceCacheSize", 64);
+        isScreenshotReferenceHashIndex = getSystemPropertyBoolean(
+                "screenshotReferenceHashIndex", false);
+        isScreenshotReferencePack = getSystemPropertyBoolean(
+                "screenshotReferencePack", false);
+        isScreenshotReferenceBlockHashes = getSystemPropertyBoolean(
+                "screenshotReferenceBlockHashes", false);
+        screenshotErrorWriterQueueSize = getSystemPropertyInt(
+                "screenshotErrorWriterQueueSize", 16);
+        screenshotTimingsFile = getSystemPropertyString(
+                "screenshotTimingsFile", null);
+        screenshotComparator = getSystemPropertyString(
+                "screenshotComparator", null);
 
         testSuitesInParallel = getSystemPropertyInt("testSuitesInParallel", 20);
 
@@ -263,6 +290,210 @@ public class Parameters {
         return screenshotRetryDelay;
     }
 
+    /**
+     * Turns on or off waiting for the screen to stop changing before comparing
+     * screen shots. When turned on, screen shots are captured with a short but
+     * increasing delay until two consecutive screen shots are identical, and
+     * only the last one is compared to the reference image. The delay is at
+     * most {@link #getScreenshotRetryDelay()} and the total time waited at
+     * most the time of all retries. When turned off, each retry compares a
+     * new screen shot to the reference image.
+     *
+     * @param isScreenshotWaitForStableScreen
+     *            true to wait for the screen to stop changing, false to
+     *            compare at fixed intervals
+     */
+    public static void setScreenshotWaitForStableScreen(
+            boolean isScreenshotWaitForStableScreen) {
+        Parameters.isScreenshotWaitForStableScreen = isScreenshotWaitForStableScreen;
+    }
+
+    /**
+     * @return true if screen shot comparisons wait for the screen to stop
+     *         changing.
+     */
+    public static boolean isScreenshotWaitForStableScreen() {
+        return isScreenshotWaitForStableScreen;
+    }
+
+    /**
+     * Sets the number of threads used for comparing a single screen shot to a
+     * reference image. The alternative reference images of a screen shot are
+     * also compared in parallel using these threads. The default value 0
+     * divides the available processors between the tests run in parallel (see
+     * {@link #getTestsInParallel()}).
+     *
+     * @param threads
+     *            the number of threads to use, or 0 to use the default.
+     */
+    public static void setScreenshotComparisonThreads(int threads) {
+        screenshotComparisonThreads = threads;
+    }
+
+    /**
+     * @return the number of threads to use for comparing a single screen
+     *         shot, always at least 1.
+     */
+    public static int getScreenshotComparisonThreads() {
+        if (screenshotComparisonThreads > 0) {
+            return screenshotComparisonThreads;
+        }
+        return Math.max(1, Runtime.getRuntime().availableProcessors()
+                / Math.max(1, getTestsInParallel()));
+    }
+
+    /**
+     * Sets the maximum amount of memory used for keeping decoded reference
+     * images in memory between screen shot comparisons. The default is 64
+     * megabytes.
+     *
+     * @param megabytes
+     *            the size of the reference image cache in megabytes, 0 to
+     *            disable caching
+     */
+    public static void setScreenshotReferenceCacheSize(int megabytes) {
+        screenshotReferenceCacheSize = megabytes;
+    }
+
+    /**
+     * @return the size of the reference image cache in megabytes.
+     */
+    public static int getScreenshotReferenceCacheSize() {
+        return screenshotReferenceCacheSize;
+    }
+
+    /**
+     * Turns on or off the hash index of reference images. When turned on, a
+     * hash of each reference image is stored in an index file in the
+     * reference directory and a screen shot which is identical to a reference
+     * image is accepted without reading the reference image or comparing the
+     * images block by block.
+     *
+     * @param isScreenshotReferenceHashIndex
+     *            true to use the hash index, false otherwise
+     */
+    public static void setScreenshotReferenceHashIndex(
+            boolean isScreenshotReferenceHashIndex) {
+        Parameters.isScreenshotReferenceHashIndex = isScreenshotReferenceHashIndex;
+    }
+
+    /**
+     * @return true if the hash index of reference images is used.
+     */
+    public static boolean isScreenshotReferenceHashIndex() {
+        return isScreenshotReferenceHashIndex;
+    }
+
+    /**
+     * Turns on or off reading reference images from a pack file. When turned
+     * on, reference images which are not found as files in the reference
+     * directory are read from the references.pack file in the reference
+     * directory, if it exists. The pack file is created using
+     * {@link com.vaadin.testbench.screenshot.ReferencePack}.
+     *
+     * @param isScreenshotReferencePack
+     *            true to read reference images from a pack file, false
+     *            otherwise
+     */
+    public static void setScreenshotReferencePack(
+            boolean isScreenshotReferencePack) {
+        Parameters.isScreenshotReferencePack = isScreenshotReferencePack;
+    }
+
+    /**
+     * @return true if reference images are read from a pack file.
+     */
+    public static boolean isScreenshotReferencePack() {
+        return isScreenshotReferencePack;
+    }
+
+    /**
+     * Turns on or off hashing the 16x16 blocks of reference images. When
+     * turned on, the hashes of the blocks of each reference image are stored
+     * in a file next to the image and only the blocks of a screenshot whose
+     * hash differs from the reference are compared pixel by pixel.
+     *
+     * @param isScreenshotReferenceBlockHashes
+     *            true to use block hashes, false otherwise
+     */
+    public static void setScreenshotReferenceBlockHashes(
+            boolean isScreenshotReferenceBlockHashes) {
+        Parameters.isScreenshotReferenceBlockHashes = isScreenshotReferenceBlockHashes;
+    }
+
+    /**
+     * @return true if the blocks of reference images are hashed.
+     */
+    public static boolean isScreenshotReferenceBlockHashes() {
+        return isScreenshotReferenceBlockHashes;
+    }
+
+    /**
+     * Sets the maximum number of screenshot failures waiting to be written to
+     * the error directory in the background. When the limit is reached, the
+     * failing test writes its files itself. The default is 16.
+     *
+     * @param queueSize
+     *            the maximum number of pending writes, 0 to write the files
+     *            before the comparison returns
+     */
+    public static void setScreenshotErrorWriterQueueSize(int queueSize) {
+        screenshotErrorWriterQueueSize = queueSize;
+    }
+
+    /**
+     * @return the maximum number of pending writes of screenshot failure
+     *         files, 0 if the files are not written in the background.
+     */
+    public static int getScreenshotErrorWriterQueueSize() {
+        return screenshotErrorWriterQueueSize;
+    }
+
+    /**
+     * Sets the file where the time spent in the phases of all screenshot
+     * comparisons of the test run is written as JSON when the JVM exits. See
+     * {@link com.vaadin.testbench.screenshot.ComparisonTimings}.
+     *
+     * @param screenshotTimingsFile
+     *            the file to write the timings to, or null to not write them
+     */
+    public static void setScreenshotTimingsFile(String screenshotTimingsFile) {
+        Parameters.screenshotTimingsFile = screenshotTimingsFile;
+    }
+
+    /**
+     * @return the file where the screenshot comparison timings of the run are
+     *         written, or null if they are not written
+     */
+    public static String getScreenshotTimingsFile() {
+        return screenshotTimingsFile;
+    }
+
+    /**
+     * Sets the {@link com.vaadin.testbench.screenshot.ImageComparator} used
+     * for comparing the blocks of screen shots and reference images. The
+     * comparator is created when a driver is created, so the setting does not
+     * affect existing drivers. The default is
+     * {@link com.vaadin.testbench.screenshot.FastImageComparator}.
+     *
+     * @param screenshotComparator
+     *            the fully qualified name of a comparator class with a public
+     *            no-argument constructor, or the simple name of a comparator
+     *            in the com.vaadin.testbench.screenshot package, or null to
+     *            use the default comparator
+     */
+    public static void setScreenshotComparator(String screenshotComparator) {
+        Parameters.screenshotComparator = screenshotComparator;
+    }
+
+    /**
+     * @return the class name of the comparator used for comparing screen
+     *         shots, or null if the default comparator is used
+     */
+    public static String getScreenshotComparator() {
+        return screenshotComparator;
+    }
+
     /**
      *
      * @return maximum number of tests to run in parallel.
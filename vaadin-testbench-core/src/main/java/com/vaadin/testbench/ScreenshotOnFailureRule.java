@@ -12,18 +12,14 @@
  */
 package com.vaadin.testbench;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.IOException;
-
-import javax.imageio.ImageIO;
 
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.TakesScreenshot;
 
+import com.vaadin.testbench.screenshot.ErrorFileWriter;
 import com.vaadin.testbench.screenshot.ImageFileUtil;
 
 /**
@@ -101,21 +97,13 @@ public class ScreenshotOnFailureRule extends TestWatcher {
             return;
         }
 
-        // Grab a screenshot when a test fails
-        try {
-            BufferedImage screenshotImage = ImageIO
-                    .read(new ByteArrayInputStream(
-                            ((TakesScreenshot) driverHolder.getDriver())
-                                    .getScreenshotAs(OutputType.BYTES)));
-            // Store the screenshot in the errors directory
-            ImageFileUtil.createScreenshotDirectoriesIfNeeded();
-            ImageIO.write(screenshotImage, "png",
-                    getErrorScreenshotFile(description));
-        } catch (IOException e1) {
-            throw new RuntimeException(
-                    "There was a problem grabbing and writing a screen shot of a test failure.",
-                    e1);
-        }
+        // Grab a screenshot when a test fails and store it in the errors
+        // directory. The PNG from the driver is written as is.
+        byte[] screenshot = ((TakesScreenshot) driverHolder.getDriver())
+                .getScreenshotAs(OutputType.BYTES);
+        ImageFileUtil.createScreenshotDirectoriesIfNeeded();
+        ErrorFileWriter.writeBytes(screenshot,
+                getErrorScreenshotFile(description));
     }
 
     @Override
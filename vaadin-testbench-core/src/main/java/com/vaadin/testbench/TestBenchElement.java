@@ -12,6 +12,7 @@
  */
 package com.vaadin.testbench;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -334,6 +335,32 @@ public class TestBenchElement extends AbstractHasTestBenchCommandExecutor
         getCommandExecutor().focusElement(this);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.testbench.commands.TestBenchElementCommands#compareScreen(java
+     * .lang.String)
+     */
+    @Override
+    public boolean compareScreen(String referenceId) throws IOException {
+        return getCommandExecutor().compareScreen(this, referenceId);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.vaadin.testbench.commands.TestBenchElementCommands#compareScreen(java
+     * .lang.String, org.openqa.selenium.WebElement[])
+     */
+    @Override
+    public boolean compareScreen(String referenceId,
+            WebElement... ignoredElements) throws IOException {
+        return getCommandExecutor().compareScreen(this, referenceId,
+                ignoredElements);
+    }
+
     protected static List<TestBenchElement> wrapElements(
             List<WebElement> elements,
             TestBenchCommandExecutor tbCommandExecutor) {
@@ -13,11 +13,13 @@
 package com.vaadin.testbench.commands;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -31,14 +33,21 @@ import org.openqa.selenium.HasCapabilities;
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.OutputType;
 import org.openqa.selenium.Point;
+import org.openqa.selenium.Rectangle;
 import org.openqa.selenium.TakesScreenshot;
 import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
 import org.openqa.selenium.remote.HttpCommandExecutor;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
 import com.vaadin.testbench.Parameters;
 import com.vaadin.testbench.TestBenchElement;
+import com.vaadin.testbench.screenshot.ComparisonTimings;
+import com.vaadin.testbench.screenshot.ComparisonTimings.Phase;
+import com.vaadin.testbench.screenshot.ErrorFileWriter;
 import com.vaadin.testbench.screenshot.ImageComparison;
+import com.vaadin.testbench.screenshot.ImageComparisonUtil;
+import com.vaadin.testbench.screenshot.ImageDecoder;
 import com.vaadin.testbench.screenshot.ImageFileUtil;
 import com.vaadin.testbench.screenshot.ReferenceNameGenerator;
 
@@ -60,6 +69,16 @@ public class TestBenchCommandExecutor implements TestBenchCommands,
     private final ReferenceNameGenerator referenceNameGenerator;
     private boolean enableWaitForVaadin = true;
 
+    /**
+     * The first delay between screen shots when waiting for the screen to
+     * stop changing. The delay is doubled after each screen shot.
+     */
+    private static final int MIN_STABILITY_DELAY = 50;
+
+    private long timeSpentWaiting = 0;
+    private ComparisonTimings lastTimings = new ComparisonTimings();
+    private final ComparisonTimings totalTimings = new ComparisonTimings();
+
     public TestBenchCommandExecutor(WebDriver actualDriver,
             ImageComparison imageComparison,
             ReferenceNameGenerator referenceNameGenerator) {
@@ -68,6 +87,14 @@ public class TestBenchCommandExecutor implements TestBenchCommands,
         this.referenceNameGenerator = referenceNameGenerator;
     }
 
+    /**
+     * @return the image comparison used for comparing screen shots to
+     *         reference images
+     */
+    public ImageComparison getImageComparison() {
+        return imageComparison;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -143,26 +170,272 @@ public class TestBenchCommandExecutor implements TestBenchCommands,
      */
     @Override
     public boolean compareScreen(String referenceId) throws IOException {
+        return compareScreen((WebElement) null, referenceId);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#compareScreen(java.lang
+     * .String, org.openqa.selenium.Rectangle[])
+     */
+    @Override
+    public boolean compareScreen(String referenceId,
+            Rectangle... ignoredRegions) throws IOException {
+        return compareScreen(null, referenceId, Arrays.asList(ignoredRegions),
+                Collections.<WebElement> emptyList());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#compareScreen(java.lang
+     * .String, org.openqa.selenium.WebElement[])
+     */
+    @Override
+    public boolean compareScreen(String referenceId,
+            WebElement... ignoredElements) throws IOException {
+        return compareScreen(null, referenceId,
+                Collections.<Rectangle> emptyList(),
+                Arrays.asList(ignoredElements));
+    }
+
+    /**
+     * Tests that the part of the screen covered by the given element is equal
+     * to the specified reference image. The whole screen is captured once per
+     * attempt and cropped to the bounds of the element, so only the pixels of
+     * the element are compared and stored.
+     *
+     * @param element
+     *            the element to compare, or null to compare the whole screen
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredElements
+     *            elements whose area is not compared
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     * @see #compareScreen(String)
+     */
+    public boolean compareScreen(WebElement element, String referenceId,
+            WebElement... ignoredElements) throws IOException {
+        return compareScreen(element, referenceId,
+                Collections.<Rectangle> emptyList(),
+                Arrays.asList(ignoredElements));
+    }
+
+    private boolean compareScreen(WebElement element, String referenceId,
+            List<Rectangle> ignoredRegions, List<WebElement> ignoredElements)
+            throws IOException {
         Capabilities capabilities = ((HasCapabilities) actualDriver)
                 .getCapabilities();
         String referenceName = referenceNameGenerator.generateName(referenceId,
                 capabilities);
 
-        for (int times = 0; times < Parameters.getMaxScreenshotRetries(); times++) {
-            BufferedImage screenshotImage = ImageIO
-                    .read(new ByteArrayInputStream(
-                            ((TakesScreenshot) actualDriver)
-                                    .getScreenshotAs(OutputType.BYTES)));
-            boolean equal = imageComparison
-                    .imageEqualToReference(screenshotImage, referenceName,
-                            Parameters.getScreenshotComparisonTolerance(),
-                            capabilities);
-            if (equal) {
-                return true;
+        startComparison();
+        try {
+            if (Parameters.isScreenshotWaitForStableScreen()) {
+                // Compare only once, after the screen has stopped changing
+                BufferedImage screenshotImage = captureStableScreen(element,
+                        ignoredRegions, ignoredElements);
+                if (compareScreenshot(screenshotImage, element, referenceName,
+                        capabilities, true, ignoredRegions, ignoredElements)) {
+                    ImageDecoder.release(screenshotImage);
+                    return true;
+                }
+                return false;
+            }
+
+            final int maxRetries = Parameters.getMaxScreenshotRetries();
+            for (int times = 0; times < maxRetries; times++) {
+                BufferedImage screenshotImage = captureScreen();
+                // Only the last attempt needs to report the differences
+                boolean createFailureReport = times == maxRetries - 1;
+                boolean equal = compareScreenshot(screenshotImage, element,
+                        referenceName, capabilities, createFailureReport,
+                        ignoredRegions, ignoredElements);
+                if (equal || !createFailureReport) {
+                    // Not written to the error directory
+                    ImageDecoder.release(screenshotImage);
+                }
+                if (equal) {
+                    return true;
+                }
+                pause(Parameters.getScreenshotRetryDelay());
+            }
+            return false;
+        } finally {
+            finishComparison();
+        }
+    }
+
+    /**
+     * Starts recording the statistics of a new comparison.
+     */
+    private void startComparison() {
+        timeSpentWaiting = 0;
+        lastTimings = new ComparisonTimings();
+        imageComparison.setTimings(lastTimings);
+    }
+
+    /**
+     * Adds the timings of the finished comparison to the totals of the driver
+     * and of the test run.
+     */
+    private void finishComparison() {
+        imageComparison.setTimings(null);
+        totalTimings.addAll(lastTimings);
+        ComparisonTimings.addToRun(lastTimings);
+    }
+
+    private boolean compareScreenshot(BufferedImage screenshotImage,
+            WebElement element, String referenceName,
+            Capabilities capabilities, boolean createFailureReport,
+            List<Rectangle> ignoredRegions, List<WebElement> ignoredElements)
+            throws IOException {
+        java.awt.Rectangle bounds = new java.awt.Rectangle(0, 0,
+                screenshotImage.getWidth(), screenshotImage.getHeight());
+        if (element != null) {
+            bounds = getElementBounds(screenshotImage, element);
+            screenshotImage = screenshotImage.getSubimage(bounds.x, bounds.y,
+                    bounds.width, bounds.height);
+        }
+        return imageComparison.imageEqualToReference(screenshotImage,
+                referenceName, Parameters.getScreenshotComparisonTolerance(),
+                capabilities, createFailureReport,
+                getIgnoredRegions(bounds, ignoredRegions, ignoredElements));
+    }
+
+    /**
+     * Captures screen shots with an increasing delay until two consecutive
+     * screen shots are identical, or until the time of all retries (
+     * {@link Parameters#getMaxScreenshotRetries()} times
+     * {@link Parameters#getScreenshotRetryDelay()}) has been spent waiting.
+     *
+     * @param element
+     *            the element whose area must be stable, or null for the whole
+     *            screen
+     * @param ignoredRegions
+     *            regions of the screen that may keep changing
+     * @param ignoredElements
+     *            elements that may keep changing
+     * @return the last screen shot captured
+     */
+    private BufferedImage captureStableScreen(WebElement element,
+            List<Rectangle> ignoredRegions, List<WebElement> ignoredElements)
+            throws IOException {
+        final int maxDelay = Parameters.getScreenshotRetryDelay();
+        final long maxWait = (long) Parameters.getMaxScreenshotRetries()
+                * maxDelay;
+
+        BufferedImage screenshotImage = captureScreen();
+        String hash = getStabilityHash(screenshotImage, element,
+                ignoredRegions, ignoredElements);
+        int delay = MIN_STABILITY_DELAY;
+        while (timeSpentWaiting < maxWait) {
+            pause((int) Math.min(Math.min(delay, maxDelay), maxWait
+                    - timeSpentWaiting));
+            // Only the hash of the previous screen shot is needed
+            ImageDecoder.release(screenshotImage);
+            screenshotImage = captureScreen();
+            String newHash = getStabilityHash(screenshotImage, element,
+                    ignoredRegions, ignoredElements);
+            if (newHash.equals(hash)) {
+                return screenshotImage;
             }
-            pause(Parameters.getScreenshotRetryDelay());
+            hash = newHash;
+            delay *= 2;
         }
-        return false;
+        if (Parameters.isDebug()) {
+            System.out.println("Screen did not stop changing in "
+                    + timeSpentWaiting + " ms");
+        }
+        return screenshotImage;
+    }
+
+    private String getStabilityHash(BufferedImage screenshotImage,
+            WebElement element, List<Rectangle> ignoredRegions,
+            List<WebElement> ignoredElements) {
+        java.awt.Rectangle bounds = new java.awt.Rectangle(0, 0,
+                screenshotImage.getWidth(), screenshotImage.getHeight());
+        if (element != null) {
+            bounds = getElementBounds(screenshotImage, element);
+            screenshotImage = screenshotImage.getSubimage(bounds.x, bounds.y,
+                    bounds.width, bounds.height);
+        }
+        // The ignored regions are left out just like in the comparison
+        return ImageComparisonUtil.generateImageHash(screenshotImage,
+                getIgnoredRegions(bounds, ignoredRegions, ignoredElements));
+    }
+
+    private BufferedImage captureScreen() throws IOException {
+        long start = System.nanoTime();
+        byte[] png = ((TakesScreenshot) actualDriver)
+                .getScreenshotAs(OutputType.BYTES);
+        lastTimings.add(Phase.CAPTURE, System.nanoTime() - start, png.length);
+
+        start = System.nanoTime();
+        BufferedImage screenshotImage = ImageDecoder.decodeScreenshot(png);
+        lastTimings.add(Phase.SCREENSHOT_DECODE, System.nanoTime() - start,
+                screenshotImage == null ? 0 : 4L * screenshotImage.getWidth()
+                        * screenshotImage.getHeight());
+        return screenshotImage;
+    }
+
+    /**
+     * Returns the part of the screenshot covered by the given element. The
+     * bounds of the element are read again for every screenshot as the element
+     * may move between the attempts.
+     *
+     * @param screenshotImage
+     *            a screenshot of the whole screen
+     * @param element
+     *            the element to crop to
+     * @return the bounds of the element, limited to the screenshot
+     */
+    private java.awt.Rectangle getElementBounds(BufferedImage screenshotImage,
+            WebElement element) {
+        Rectangle rect = element.getRect();
+        int x = Math.max(0, rect.getX());
+        int y = Math.max(0, rect.getY());
+        int width = Math.min(rect.getX() + rect.getWidth(),
+                screenshotImage.getWidth()) - x;
+        int height = Math.min(rect.getY() + rect.getHeight(),
+                screenshotImage.getHeight()) - y;
+        if (width <= 0 || height <= 0) {
+            throw new IllegalStateException("The element is not visible in "
+                    + "the screenshot: " + rect.getX() + "," + rect.getY()
+                    + " " + rect.getWidth() + "x" + rect.getHeight());
+        }
+        return new java.awt.Rectangle(x, y, width, height);
+    }
+
+    /**
+     * Converts the ignored regions and the current bounds of the ignored
+     * elements to the coordinates of the compared image.
+     *
+     * @param bounds
+     *            the part of the screen which is compared
+     * @return the regions to ignore, relative to the compared image
+     */
+    private List<java.awt.Rectangle> getIgnoredRegions(
+            java.awt.Rectangle bounds, List<Rectangle> ignoredRegions,
+            List<WebElement> ignoredElements) {
+        List<java.awt.Rectangle> regions = new ArrayList<java.awt.Rectangle>();
+        for (Rectangle region : ignoredRegions) {
+            regions.add(new java.awt.Rectangle(region.getX() - bounds.x,
+                    region.getY() - bounds.y, region.getWidth(), region
+                            .getHeight()));
+        }
+        for (WebElement ignoredElement : ignoredElements) {
+            Rectangle rect = ignoredElement.getRect();
+            regions.add(new java.awt.Rectangle(rect.getX() - bounds.x, rect
+                    .getY() - bounds.y, rect.getWidth(), rect.getHeight()));
+        }
+        return regions;
     }
 
     /*
@@ -194,37 +467,98 @@ public class TestBenchCommandExecutor implements TestBenchCommands,
     @Override
     public boolean compareScreen(BufferedImage reference, String referenceName)
             throws IOException {
-        for (int times = 0; times < Parameters.getMaxScreenshotRetries(); times++) {
-            BufferedImage screenshotImage = ImageIO
-                    .read(new ByteArrayInputStream(
-                            ((TakesScreenshot) actualDriver)
-                                    .getScreenshotAs(OutputType.BYTES)));
-            if (reference == null) {
-                // Store the screenshot in the errors directory and fail the
-                // test
-                ImageFileUtil.createScreenshotDirectoriesIfNeeded();
-                ImageIO.write(screenshotImage, "png",
-                        ImageFileUtil.getErrorScreenshotFile(referenceName));
-                logger.severe("No reference found for " + referenceName
-                        + " in "
-                        + ImageFileUtil.getScreenshotReferenceDirectory());
-                return false;
-            }
-            if (imageComparison.imageEqualToReference(screenshotImage,
-                    reference, referenceName,
-                    Parameters.getScreenshotComparisonTolerance())) {
-                return true;
+        startComparison();
+        try {
+            final int maxRetries = Parameters.getMaxScreenshotRetries();
+            for (int times = 0; times < maxRetries; times++) {
+                BufferedImage screenshotImage = captureScreen();
+                if (reference == null) {
+                    // Store the screenshot in the errors directory and fail
+                    // the test
+                    ImageFileUtil.createScreenshotDirectoriesIfNeeded();
+                    ErrorFileWriter.writeImage(screenshotImage,
+                            ImageFileUtil.getErrorScreenshotFile(referenceName));
+                    logger.severe("No reference found for " + referenceName
+                            + " in "
+                            + ImageFileUtil.getScreenshotReferenceDirectory());
+                    return false;
+                }
+                // Only the last attempt needs to report the differences
+                boolean createFailureReport = times == maxRetries - 1;
+                boolean equal = imageComparison.imageEqualToReference(
+                        screenshotImage, reference, referenceName,
+                        Parameters.getScreenshotComparisonTolerance(),
+                        createFailureReport);
+                if (equal || !createFailureReport) {
+                    // Not written to the error directory
+                    ImageDecoder.release(screenshotImage);
+                }
+                if (equal) {
+                    return true;
+                }
+                pause(Parameters.getScreenshotRetryDelay());
             }
-            pause(Parameters.getScreenshotRetryDelay());
+            return false;
+        } finally {
+            finishComparison();
         }
-        return false;
     }
 
     private void pause(int delay) {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         try {
             Thread.sleep(delay);
         } catch (InterruptedException e) {
         }
+        timeSpentWaiting += System.currentTimeMillis() - start;
+        lastTimings.add(Phase.WAIT, System.nanoTime() - startNanos, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#screenshotsCapturedLastComparison
+     * ()
+     */
+    @Override
+    public int screenshotsCapturedLastComparison() {
+        return lastTimings.getCount(Phase.CAPTURE);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#timeSpentWaitingLastComparison
+     * ()
+     */
+    @Override
+    public long timeSpentWaitingLastComparison() {
+        return timeSpentWaiting;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#timingsLastComparison()
+     */
+    @Override
+    public ComparisonTimings timingsLastComparison() {
+        return lastTimings;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.vaadin.testbench.commands.TestBenchCommands#totalComparisonTimings()
+     */
+    @Override
+    public ComparisonTimings totalComparisonTimings() {
+        return totalTimings;
     }
 
     /*
@@ -16,6 +16,11 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
+import org.openqa.selenium.Rectangle;
+import org.openqa.selenium.WebElement;
+
+import com.vaadin.testbench.screenshot.ComparisonTimings;
+
 public interface TestBenchCommands extends CanWaitForVaadin {
 
     /**
@@ -44,6 +49,41 @@ public interface TestBenchCommands extends CanWaitForVaadin {
      */
     boolean compareScreen(String referenceId) throws IOException;
 
+    /**
+     * Tests that a screen shot is equal to the specified reference image,
+     * ignoring the given regions of the screen. Use this instead of adding
+     * transparent pixels to the reference image for hiding changing content.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredRegions
+     *            the regions of the screen which are not compared, in the
+     *            same coordinates as {@link WebElement#getRect()}
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    boolean compareScreen(String referenceId, Rectangle... ignoredRegions)
+            throws IOException;
+
+    /**
+     * Tests that a screen shot is equal to the specified reference image,
+     * ignoring the area covered by the given elements. The position of the
+     * elements is checked for every screen shot taken.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredElements
+     *            the elements whose area is not compared
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     */
+    boolean compareScreen(String referenceId, WebElement... ignoredElements)
+            throws IOException;
+
     /**
      * Tests that a screen shot is equal to the specified reference image. The
      * comparison tolerance can be specified by setting the
@@ -78,6 +118,43 @@ public interface TestBenchCommands extends CanWaitForVaadin {
     boolean compareScreen(BufferedImage reference, String referenceName)
             throws IOException;
 
+    /**
+     * Returns the number of screen shots captured during the last screen shot
+     * comparison.
+     *
+     * @return the number of screen shots captured by the last call to
+     *         compareScreen.
+     */
+    int screenshotsCapturedLastComparison();
+
+    /**
+     * Returns the time spent waiting between screen shots during the last
+     * screen shot comparison, either for a retry or for the screen to stop
+     * changing.
+     *
+     * @return the time spent waiting in milliseconds by the last call to
+     *         compareScreen.
+     */
+    long timeSpentWaitingLastComparison();
+
+    /**
+     * Returns the time spent in each phase of the last screen shot comparison,
+     * from transferring and decoding the screen shots to comparing them and
+     * reporting the differences.
+     *
+     * @return the timings of the last call to compareScreen.
+     */
+    ComparisonTimings timingsLastComparison();
+
+    /**
+     * Returns the time spent in each phase of all screen shot comparisons made
+     * with this driver. When a new driver is used for each test, these are the
+     * timings of the test.
+     *
+     * @return the timings of all calls to compareScreen.
+     */
+    ComparisonTimings totalComparisonTimings();
+
     /**
      * This method provides performance information of the client-side rendering
      * for the last operation performed. You can use this information to make
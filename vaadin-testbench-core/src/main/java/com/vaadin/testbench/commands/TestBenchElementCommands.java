@@ -12,7 +12,10 @@
  */
 package com.vaadin.testbench.commands;
 
+import java.io.IOException;
+
 import org.openqa.selenium.Keys;
+import org.openqa.selenium.WebElement;
 
 import com.vaadin.testbench.elementsbase.AbstractElement;
 
@@ -58,6 +61,40 @@ public interface TestBenchElementCommands {
      */
     void click(int x, int y, Keys... modifiers);
 
+    /**
+     * Tests that the part of the screen covered by this element is equal to
+     * the specified reference image. The screen is captured once and cropped
+     * to the bounds of the element, so only the pixels of the element are
+     * compared and stored in the reference and error images.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     * @see TestBenchCommands#compareScreen(String)
+     */
+    boolean compareScreen(String referenceId) throws IOException;
+
+    /**
+     * Tests that the part of the screen covered by this element is equal to
+     * the specified reference image, ignoring the area covered by the given
+     * elements.
+     *
+     * @param referenceId
+     *            the ID of the reference image
+     * @param ignoredElements
+     *            the elements whose area is not compared
+     * @return true if the screenshot is considered equal to the reference
+     *         image, false otherwise.
+     * @throws IOException
+     *             if there was a problem accessing the reference image
+     * @see #compareScreen(String)
+     */
+    boolean compareScreen(String referenceId, WebElement... ignoredElements)
+            throws IOException;
+
     /**
      * Decorates the element with the specified Element type, making it possible
      * to use Vaadin component-specific API on elements found using standard
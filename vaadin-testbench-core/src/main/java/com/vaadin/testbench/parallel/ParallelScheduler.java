@@ -21,6 +21,8 @@ import java.util.concurrent.Future;
 
 import org.junit.runners.model.RunnerScheduler;
 
+import com.vaadin.testbench.screenshot.ErrorFileWriter;
+
 /**
  * JUnit scheduler capable of running multiple tets in parallel. Each test is
  * run in its own thread. Uses an {@link ExecutorService} to manage the threads.
@@ -60,5 +62,8 @@ public class ParallelScheduler implements RunnerScheduler {
                 e.printStackTrace();
             }
         }
+        // Make sure the screenshots of failed tests are written before the
+        // test run ends
+        ErrorFileWriter.flush();
     }
 }
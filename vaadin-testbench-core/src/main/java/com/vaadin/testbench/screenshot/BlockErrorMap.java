@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+/**
+ * A map of the 16x16 pixel blocks of an image that differ from the reference
+ * image, stored as a bitset in row-major order.
+ * <p>
+ * Each block row starts at a new word, so different block rows can be marked
+ * from different threads at the same time. Otherwise the map is not thread
+ * safe.
+ * <p>
+ * Blocks are identified either by their x and y coordinates (in blocks) or by
+ * the index <code>y * xBlocks + x</code>.
+ * <p>
+ * The map is also used by {@link IgnoreMask} for marking the blocks that are
+ * not compared at all.
+ */
+public class BlockErrorMap {
+
+    private final int xBlocks;
+    private final int yBlocks;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * Creates a map with no blocks marked.
+     *
+     * @param xBlocks
+     *            number of blocks in x direction
+     * @param yBlocks
+     *            number of blocks in y direction
+     */
+    public BlockErrorMap(int xBlocks, int yBlocks) {
+        this.xBlocks = xBlocks;
+        this.yBlocks = yBlocks;
+        wordsPerRow = (xBlocks + 63) >>> 6;
+        words = new long[wordsPerRow * yBlocks];
+    }
+
+    /**
+     * Creates a map from an array of marked blocks.
+     *
+     * @param falseBlocks
+     *            the blocks, indexed as [x][y]
+     * @return a map with the same blocks marked
+     */
+    public static BlockErrorMap fromArray(boolean[][] falseBlocks) {
+        int xBlocks = falseBlocks.length;
+        int yBlocks = xBlocks == 0 ? 0 : falseBlocks[0].length;
+        BlockErrorMap map = new BlockErrorMap(xBlocks, yBlocks);
+        for (int x = 0; x < xBlocks; x++) {
+            for (int y = 0; y < yBlocks; y++) {
+                if (falseBlocks[x][y]) {
+                    map.set(x, y);
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * @return the number of blocks in x direction
+     */
+    public int getXBlocks() {
+        return xBlocks;
+    }
+
+    /**
+     * @return the number of blocks in y direction
+     */
+    public int getYBlocks() {
+        return yBlocks;
+    }
+
+    /**
+     * Marks the given block as differing.
+     *
+     * @param x
+     *            x coordinate of the block
+     * @param y
+     *            y coordinate of the block
+     */
+    public void set(int x, int y) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Checks if the given block is marked as differing.
+     *
+     * @param x
+     *            x coordinate of the block
+     * @param y
+     *            y coordinate of the block
+     * @return true if the block differs
+     */
+    public boolean get(int x, int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return the number of blocks marked as differing
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return true if no block is marked as differing
+     */
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next block marked as differing, in row-major order. All marked
+     * blocks can be iterated with
+     *
+     * <pre>
+     * for (int i = map.nextSetBlock(0); i != -1; i = map.nextSetBlock(i + 1)) {
+     *     int x = i % map.getXBlocks();
+     *     int y = i / map.getXBlocks();
+     * }
+     * </pre>
+     *
+     * @param fromIndex
+     *            the index of the block to start from, inclusive
+     * @return the index of the next marked block, or -1 if there are no more
+     *         marked blocks
+     */
+    public int nextSetBlock(int fromIndex) {
+        if (xBlocks == 0) {
+            return -1;
+        }
+        int y = fromIndex / xBlocks;
+        int x = fromIndex % xBlocks;
+        while (y < yBlocks) {
+            int rowStart = y * wordsPerRow;
+            int wordIndex = rowStart + (x >>> 6);
+            // Ignore the blocks before x in the first word
+            long word = words[wordIndex] & (-1L << x);
+            while (true) {
+                if (word != 0) {
+                    return y * xBlocks + ((wordIndex - rowStart) << 6)
+                            + Long.numberOfTrailingZeros(word);
+                }
+                if (++wordIndex == rowStart + wordsPerRow) {
+                    break;
+                }
+                word = words[wordIndex];
+            }
+            y++;
+            x = 0;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static java.lang.Math.abs;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Compares blocks pixel by pixel. Identical blocks are detected by comparing
+ * the packed pixel values before any colors are unpacked.
+ */
+public class BlockImageComparator implements ImageComparator {
+
+    @Override
+    public double getBlockDifference(ImageProperties reference,
+            ImageProperties screenshot, int x, int y, int width, int height) {
+        return getBlockDifference(reference, screenshot, x, y, width, height,
+                null);
+    }
+
+    @Override
+    public double getBlockDifference(ImageProperties reference,
+            ImageProperties screenshot, int x, int y, int width, int height,
+            int[] ignoredPixels) {
+        if (blocksEqual(reference, screenshot, x, y, width, height,
+                ignoredPixels)) {
+            return 0;
+        }
+        return rgbCompare(reference, screenshot, x, y, width, height,
+                ignoredPixels);
+    }
+
+    private boolean blocksEqual(ImageProperties reference,
+            ImageProperties screenshot, int x, int y, int width, int height,
+            int[] ignoredPixels) {
+        final int[] refPixels = reference.getPixels();
+        final int[] ssPixels = screenshot.getPixels();
+        final int refAlpha = reference.getAlphaMask();
+        final int ssAlpha = screenshot.getAlphaMask();
+        final int refStride = reference.getScanlineStride();
+        final int ssStride = screenshot.getScanlineStride();
+
+        int refRow = reference.getOffset(x, y);
+        int ssRow = screenshot.getOffset(x, y);
+        for (int j = 0; j < height; ++j) {
+            final int ignored = ignoredPixels == null ? 0 : ignoredPixels[j];
+            for (int i = 0; i < width; ++i) {
+                if ((refPixels[refRow + i] | refAlpha) != (ssPixels[ssRow
+                        + i] | ssAlpha)
+                        && ((ignored >>> i) & 1) == 0) {
+                    return false;
+                }
+            }
+            refRow += refStride;
+            ssRow += ssStride;
+        }
+        return true;
+    }
+
+    private double rgbCompare(final ImageProperties reference,
+            final ImageProperties screenshot, int x, int y, int width,
+            int height, int[] ignoredPixels) {
+        int sum = 0;
+        final int[] refPixels = reference.getPixels();
+        final int[] ssPixels = screenshot.getPixels();
+        final int refAlpha = reference.getAlphaMask();
+
+        // Build sums from all available colors Red, Green and Blue
+        int refRow = reference.getOffset(x, y);
+        int ssRow = screenshot.getOffset(x, y);
+        for (int j = 0; j < height; ++j) {
+            final int ignored = ignoredPixels == null ? 0 : ignoredPixels[j];
+            for (int i = 0; i < width; ++i) {
+                if (((ignored >>> i) & 1) != 0) {
+                    continue;
+                }
+
+                final int targetPixel = refPixels[refRow + i] | refAlpha;
+
+                if ((targetPixel >>> 24) < 255) {
+
+                    // Only completely opaque pixels are considered. Pixels
+                    // with alpha values below 255 (== fully opaque) are
+                    // considered masked and differences in these pixels won't
+                    // be reported.
+                    continue;
+                }
+
+                final int testPixel = ssPixels[ssRow + i];
+
+                sum += abs(((targetPixel & 0xff0000) >> 16)
+                        - ((testPixel & 0xff0000) >> 16));
+
+                sum += abs(((targetPixel & 0xff00) >> 8)
+                        - ((testPixel & 0xff00) >> 8));
+
+                sum += abs((targetPixel & 0xff) - (testPixel & 0xff));
+            }
+            refRow += reference.getScanlineStride();
+            ssRow += screenshot.getScanlineStride();
+        }
+
+        return sum / ((double) ImageComparison.BLOCK_SIZE
+                * ImageComparison.BLOCK_SIZE * 255 * 3);
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * The time spent in the different phases of screenshot comparisons, and the
+ * amount of data handled by each phase.
+ * <p>
+ * The timings of a single compareScreen call and of all calls made with a
+ * driver are available through
+ * {@link com.vaadin.testbench.commands.TestBenchCommands}, and the timings of
+ * the whole test run through {@link #getRunTimings()}. The timings of the run
+ * are written to {@link Parameters#getScreenshotTimingsFile()} as JSON when
+ * the JVM exits.
+ */
+public class ComparisonTimings {
+
+    /**
+     * A phase of a screenshot comparison.
+     */
+    public enum Phase {
+        /**
+         * Transferring the screenshot from the browser. The bytes are the size
+         * of the PNG image.
+         */
+        CAPTURE,
+        /**
+         * Decoding the screenshot. The bytes are the size of the decoded
+         * pixels.
+         */
+        SCREENSHOT_DECODE,
+        /**
+         * Waiting between screenshots, either for a retry or for the screen to
+         * stop changing.
+         */
+        WAIT,
+        /**
+         * Reading and decoding reference images. The bytes are the size of
+         * the decoded pixels.
+         */
+        REFERENCE_READ,
+        /**
+         * Comparing the blocks of the images. The bytes are the size of the
+         * pixels of both images.
+         */
+        COMPARISON,
+        /**
+         * Checking if a cursor is the only difference.
+         */
+        CURSOR_DETECTION,
+        /**
+         * Preparing the error screenshots and difference reports in the
+         * calling thread. Most of the writing is done in the background, see
+         * {@link ErrorFileWriter}.
+         */
+        REPORT;
+
+        private String getJsonName() {
+            StringBuilder name = new StringBuilder();
+            for (String part : name().toLowerCase(Locale.ENGLISH).split("_")) {
+                name.append(name.length() == 0 ? part : Character
+                        .toUpperCase(part.charAt(0)) + part.substring(1));
+            }
+            return name.toString();
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private static final ComparisonTimings runTimings = new ComparisonTimings();
+    private static boolean exportRegistered = false;
+
+    private final long[] nanos = new long[PHASES.length];
+    private final long[] bytes = new long[PHASES.length];
+    private final int[] counts = new int[PHASES.length];
+
+    /**
+     * Records the time spent in a phase.
+     *
+     * @param phase
+     *            the phase
+     * @param nanos
+     *            the time spent in nanoseconds
+     * @param bytes
+     *            the amount of data handled, or 0 if not relevant for the
+     *            phase
+     */
+    public synchronized void add(Phase phase, long nanos, long bytes) {
+        int index = phase.ordinal();
+        this.nanos[index] += nanos;
+        this.bytes[index] += bytes;
+        counts[index]++;
+    }
+
+    /**
+     * Adds all timings recorded in the given timings to these timings.
+     *
+     * @param timings
+     *            the timings to add
+     */
+    public void addAll(ComparisonTimings timings) {
+        long[] otherNanos = new long[PHASES.length];
+        long[] otherBytes = new long[PHASES.length];
+        int[] otherCounts = new int[PHASES.length];
+        // Copy first to never hold both locks
+        synchronized (timings) {
+            System.arraycopy(timings.nanos, 0, otherNanos, 0, PHASES.length);
+            System.arraycopy(timings.bytes, 0, otherBytes, 0, PHASES.length);
+            System.arraycopy(timings.counts, 0, otherCounts, 0, PHASES.length);
+        }
+        synchronized (this) {
+            for (int i = 0; i < PHASES.length; i++) {
+                nanos[i] += otherNanos[i];
+                bytes[i] += otherBytes[i];
+                counts[i] += otherCounts[i];
+            }
+        }
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return the time spent in the phase in nanoseconds
+     */
+    public synchronized long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return the amount of data handled by the phase in bytes
+     */
+    public synchronized long getBytes(Phase phase) {
+        return bytes[phase.ordinal()];
+    }
+
+    /**
+     * @param phase
+     *            the phase
+     * @return the number of times the phase was recorded
+     */
+    public synchronized int getCount(Phase phase) {
+        return counts[phase.ordinal()];
+    }
+
+    /**
+     * @return the time spent in all phases in nanoseconds
+     */
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for (long phaseNanos : nanos) {
+            total += phaseNanos;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the timings as a JSON object, e.g.
+     * <code>{"totalNanos":1200,"capture":{"nanos":1000,"bytes":5120,"count":1},
+     * ...}</code> with an object for each phase.
+     *
+     * @return the timings in JSON format
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"totalNanos\":").append(getTotalNanos());
+        for (Phase phase : PHASES) {
+            int i = phase.ordinal();
+            json.append(",\"").append(phase.getJsonName())
+                    .append("\":{\"nanos\":").append(nanos[i])
+                    .append(",\"bytes\":").append(bytes[i])
+                    .append(",\"count\":").append(counts[i]).append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    /**
+     * Returns the timings of all screenshot comparisons made in this JVM.
+     *
+     * @return the timings of the test run
+     */
+    public static ComparisonTimings getRunTimings() {
+        return runTimings;
+    }
+
+    /**
+     * Adds the timings of a finished comparison to the timings of the run.
+     * The first time a file has been set with
+     * {@link Parameters#setScreenshotTimingsFile(String)}, the timings of the
+     * run are set to be written to it when the JVM exits.
+     *
+     * @param timings
+     *            the timings of a comparison
+     */
+    public static void addToRun(ComparisonTimings timings) {
+        runTimings.addAll(timings);
+        final String file = Parameters.getScreenshotTimingsFile();
+        if (file == null) {
+            return;
+        }
+        synchronized (ComparisonTimings.class) {
+            if (exportRegistered) {
+                return;
+            }
+            exportRegistered = true;
+        }
+        Runtime.getRuntime().addShutdownHook(
+                new Thread("screenshot-timings-export") {
+                    @Override
+                    public void run() {
+                        try {
+                            runTimings.writeJson(new File(file));
+                        } catch (IOException e) {
+                            Logger.getLogger(
+                                    ComparisonTimings.class.getName()).log(
+                                    Level.WARNING,
+                                    "Error writing screenshot timings to "
+                                            + file, e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Writes the timings as JSON to the given file.
+     *
+     * @param file
+     *            the file to write to
+     * @throws IOException
+     *             if the file could not be written
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8");
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Writes the files describing screenshot failures (error screenshots and diff
+ * reports) in a background thread, so that a failing test does not have to
+ * wait for the images to be encoded.
+ * <p>
+ * The number of pending writes is limited by
+ * {@link Parameters#getScreenshotErrorWriterQueueSize()}. When the queue is
+ * full, the calling thread does the write itself. All pending writes are
+ * finished by {@link #flush()}, which is called when a test run ends and when
+ * the JVM shuts down.
+ */
+public class ErrorFileWriter {
+
+    private static final Object lock = new Object();
+    private static ThreadPoolExecutor executor = null;
+    private static int pendingWrites = 0;
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ErrorFileWriter.class.getName());
+    }
+
+    private ErrorFileWriter() {
+        // Only static methods
+    }
+
+    /**
+     * Runs the given write in the background. If the background writer is
+     * disabled, the write is run immediately in the calling thread. Any
+     * objects used by the write must not be modified afterwards.
+     *
+     * @param write
+     *            the write to run
+     */
+    public static void execute(final Runnable write) {
+        int queueSize = Parameters.getScreenshotErrorWriterQueueSize();
+        if (queueSize <= 0) {
+            write.run();
+            return;
+        }
+
+        synchronized (lock) {
+            pendingWrites++;
+        }
+        // Never rejected, the executor is not shut down and the calling
+        // thread runs the write when the queue is full
+        getExecutor(queueSize).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    getLogger().log(Level.WARNING,
+                            "Error writing screenshot failure files", e);
+                } finally {
+                    writeFinished();
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the given image as a PNG file in the background.
+     *
+     * @param image
+     *            the image, must not be modified afterwards
+     * @param file
+     *            the file to write to
+     */
+    public static void writeImage(final BufferedImage image, final File file) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ImageIO.write(image, "png", file);
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING,
+                            "Error writing screenshot to " + file.getPath(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the given bytes to a file in the background.
+     *
+     * @param data
+     *            the contents of the file, must not be modified afterwards
+     * @param file
+     *            the file to write to
+     */
+    public static void writeBytes(final byte[] data, final File file) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(data);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING,
+                            "Error writing screenshot to " + file.getPath(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all pending writes have finished.
+     */
+    public static void flush() {
+        synchronized (lock) {
+            while (pendingWrites > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void writeFinished() {
+        synchronized (lock) {
+            pendingWrites--;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the executor used for the writes. The size of the queue is
+     * decided when the executor is first created.
+     */
+    private static synchronized ThreadPoolExecutor getExecutor(int queueSize) {
+        if (executor == null) {
+            // The calling thread runs the write itself when the queue is full
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "screenshot-error-writer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread("screenshot-error-writer-flush") {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.remote.DesiredCapabilities;
+
+import com.vaadin.testbench.Parameters;
+
+/**
+ * Compares the screenshots in the error directory to their reference images
+ * again, without running the tests. Used for checking which failures would
+ * pass with a different tolerance, e.g. after a change which affects many
+ * screenshots.
+ * <p>
+ * The reference images of each error screenshot are found using the same
+ * naming rules as when running the tests, see
+ * {@link ImageFileUtil#getReferenceImageFileNames(String, Capabilities)}. The
+ * screenshots are compared in parallel using all available processors.
+ * Available from the command line using {@link #main(String[])}.
+ */
+public class ErrorScreenshotReevaluator {
+
+    /**
+     * The result of comparing an error screenshot to its reference images.
+     */
+    public enum Status {
+        /**
+         * The screenshot matches a reference image.
+         */
+        PASSED,
+        /**
+         * The screenshot does not match any reference image.
+         */
+        FAILED,
+        /**
+         * No reference image was found for the screenshot.
+         */
+        NO_REFERENCE,
+        /**
+         * The screenshot or a reference image could not be read.
+         */
+        ERROR
+    }
+
+    /**
+     * The result of re-evaluating a single error screenshot.
+     */
+    public static class Result {
+        private final String fileName;
+        private final Status status;
+        private final String reference;
+        private final String message;
+
+        private Result(String fileName, Status status, String reference,
+                String message) {
+            this.fileName = fileName;
+            this.status = status;
+            this.reference = reference;
+            this.message = message;
+        }
+
+        /**
+         * @return the file name of the error screenshot
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return the result of the comparison
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the file name of the matching reference image, or null if
+         *         the status is not {@link Status#PASSED}
+         */
+        public String getReference() {
+            return reference;
+        }
+
+        /**
+         * @return the reason of the error, or null if the status is not
+         *         {@link Status#ERROR}
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return status + " " + fileName;
+        }
+    }
+
+    // name_platform_browser_version.png, see ReferenceNameGenerator
+    private static final Pattern BROWSER_PATTERN = Pattern
+            .compile(".*_([^_]+)_(\\d+)\\.png");
+
+    private final File errorDirectory;
+    private final double errorTolerance;
+
+    /**
+     * Creates a re-evaluator for the screenshots in the given directory. The
+     * reference images are read from
+     * {@link Parameters#getScreenshotReferenceDirectory()}.
+     *
+     * @param errorDirectory
+     *            the directory containing the error screenshots
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     */
+    public ErrorScreenshotReevaluator(File errorDirectory,
+            double errorTolerance) {
+        this.errorDirectory = errorDirectory;
+        this.errorTolerance = errorTolerance;
+    }
+
+    /**
+     * Compares all error screenshots to their reference images.
+     *
+     * @param threads
+     *            the number of screenshots to compare in parallel
+     * @return the results in the order of the screenshot file names
+     * @throws IOException
+     *             if the error directory cannot be read
+     */
+    public List<Result> evaluate(int threads) throws IOException {
+        String[] fileNames = errorDirectory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".png");
+            }
+        });
+        if (fileNames == null) {
+            throw new IOException("Could not list " + errorDirectory);
+        }
+        Arrays.sort(fileNames);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final String fileName : fileNames) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return evaluate(fileName);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while comparing screenshots");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Screenshot comparison failed",
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Compares a single error screenshot to its reference images.
+     *
+     * @param fileName
+     *            the file name of the error screenshot
+     * @return the result of the comparison
+     */
+    Result evaluate(String fileName) {
+        List<String> referenceFileNames = ImageFileUtil
+                .getReferenceImageFileNames(fileName,
+                        getCapabilities(fileName));
+        if (referenceFileNames.isEmpty()) {
+            return new Result(fileName, Status.NO_REFERENCE, null, null);
+        }
+        try {
+            BufferedImage screenshot = ImageIO.read(new File(errorDirectory,
+                    fileName));
+            if (screenshot == null) {
+                return new Result(fileName, Status.ERROR, null,
+                        "Not an image");
+            }
+            // Uses the same comparator as the tests, see
+            // Parameters.setScreenshotComparator(String)
+            ImageComparison comparison = new ImageComparison();
+            for (String referenceFileName : referenceFileNames) {
+                BufferedImage reference = ImageFileUtil
+                        .readReferenceImage(referenceFileName);
+                if (reference != null
+                        && comparison.imageEqualToReference(screenshot,
+                                reference, referenceFileName,
+                                errorTolerance, false)) {
+                    return new Result(fileName, Status.PASSED,
+                            referenceFileName, null);
+                }
+            }
+            return new Result(fileName, Status.FAILED, null, null);
+        } catch (IOException e) {
+            return new Result(fileName, Status.ERROR, null,
+                    e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    /**
+     * Returns the browser name and version from a file name generated by
+     * {@link ReferenceNameGenerator}, for finding references of older browser
+     * versions the same way as when running the tests.
+     */
+    private static Capabilities getCapabilities(String fileName) {
+        Matcher matcher = BROWSER_PATTERN.matcher(fileName);
+        if (!matcher.matches()) {
+            return null;
+        }
+        DesiredCapabilities capabilities = new DesiredCapabilities();
+        capabilities.setBrowserName(matcher.group(1));
+        capabilities.setVersion(matcher.group(2));
+        return capabilities;
+    }
+
+    /**
+     * Writes a summary of the results: the number of screenshots with each
+     * status, followed by a line for each screenshot with the matching
+     * reference image or the reason of the error.
+     *
+     * @param results
+     *            the results of {@link #evaluate(int)}
+     * @param out
+     *            the writer to write to
+     */
+    public void writeSummary(List<Result> results, PrintWriter out) {
+        int[] counts = new int[Status.values().length];
+        for (Result result : results) {
+            counts[result.getStatus().ordinal()]++;
+        }
+        out.println("Tolerance " + errorTolerance + ", " + results.size()
+                + " screenshots in " + errorDirectory);
+        for (Status status : Status.values()) {
+            out.println(status + ": " + counts[status.ordinal()]);
+        }
+        out.println();
+        for (Result result : results) {
+            out.print(result.getStatus() + " " + result.getFileName());
+            if (result.getReference() != null) {
+                out.print(" (" + result.getReference() + ")");
+            }
+            if (result.getMessage() != null) {
+                out.print(": " + result.getMessage());
+            }
+            out.println();
+        }
+        out.flush();
+    }
+
+    /**
+     * Compares the error screenshots to their reference images from the
+     * command line and prints a summary of the results, see
+     * {@link #writeSummary(List, PrintWriter)}.
+     *
+     * <pre>
+     * &lt;reference dir&gt; &lt;error dir&gt; &lt;tolerance&gt; [summary file]
+     * </pre>
+     *
+     * The summary is also written to the summary file if one is given. The
+     * block comparator is selected with the same system property as when
+     * running the tests, see
+     * {@link Parameters#setScreenshotComparator(String)}.
+     *
+     * @param args
+     *            the command line arguments
+     * @throws IOException
+     *             if the error directory or the summary file could not be
+     *             accessed
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 && args.length != 4) {
+            System.err.println("Usage: "
+                    + ErrorScreenshotReevaluator.class.getName()
+                    + " <reference directory> <error directory> <tolerance>"
+                    + " [summary file]");
+            System.exit(1);
+        }
+        Parameters.setScreenshotReferenceDirectory(args[0]);
+        Parameters.setScreenshotErrorDirectory(args[1]);
+        // The screenshots are compared in parallel, not the parts of a single
+        // screenshot
+        Parameters.setScreenshotComparisonThreads(1);
+        // Each reference image is usually needed only once
+        Parameters.setScreenshotReferenceCacheSize(0);
+        ErrorScreenshotReevaluator reevaluator = new ErrorScreenshotReevaluator(
+                new File(args[1]), Double.parseDouble(args[2]));
+        List<Result> results = reevaluator.evaluate(Runtime.getRuntime()
+                .availableProcessors());
+
+        reevaluator.writeSummary(results, new PrintWriter(
+                new OutputStreamWriter(System.out, "UTF-8")));
+        if (args.length == 4) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(args[3]), "UTF-8"));
+            try {
+                reevaluator.writeSummary(results, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
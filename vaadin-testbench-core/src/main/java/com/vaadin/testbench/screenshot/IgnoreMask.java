@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static com.vaadin.testbench.screenshot.ImageComparison.BLOCK_SIZE;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * The parts of an image that are ignored when comparing it to a reference
+ * image, compiled from a list of rectangles into a form that can be used
+ * directly when comparing blocks.
+ * <p>
+ * Blocks that are completely inside the ignored regions are marked in a block
+ * map and are never compared. For blocks that are only partially ignored, a
+ * pixel mask is calculated once and passed to the {@link ImageComparator}.
+ */
+public class IgnoreMask {
+
+    private static final int FULL_ROW = (1 << BLOCK_SIZE) - 1;
+
+    private final int width;
+    private final int height;
+    private final BlockErrorMap ignoredBlocks;
+    private final int[][] pixelMasks;
+
+    /**
+     * Creates a mask for an image of the given size. Parts of the regions
+     * outside the image are ignored.
+     *
+     * @param width
+     *            the width of the image
+     * @param height
+     *            the height of the image
+     * @param regions
+     *            the regions to ignore, in pixel coordinates of the image
+     */
+    public IgnoreMask(int width, int height, List<Rectangle> regions) {
+        this.width = width;
+        this.height = height;
+        int xBlocks = ImageComparisonUtil.getNrBlocks(width);
+        int yBlocks = ImageComparisonUtil.getNrBlocks(height);
+        ignoredBlocks = new BlockErrorMap(xBlocks, yBlocks);
+        pixelMasks = new int[xBlocks * yBlocks][];
+
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        for (Rectangle region : regions) {
+            Rectangle r = region.intersection(bounds);
+            if (r.isEmpty()) {
+                continue;
+            }
+            int lastBlockX = (r.x + r.width - 1) / BLOCK_SIZE;
+            int lastBlockY = (r.y + r.height - 1) / BLOCK_SIZE;
+            for (int by = r.y / BLOCK_SIZE; by <= lastBlockY; by++) {
+                for (int bx = r.x / BLOCK_SIZE; bx <= lastBlockX; bx++) {
+                    addToBlock(bx, by, r);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the part of the region inside the given block to the mask of the
+     * block.
+     */
+    private void addToBlock(int bx, int by, Rectangle region) {
+        if (ignoredBlocks.get(bx, by)) {
+            return;
+        }
+        int blockX = bx * BLOCK_SIZE;
+        int blockY = by * BLOCK_SIZE;
+        int blockWidth = Math.min(BLOCK_SIZE, width - blockX);
+        int blockHeight = Math.min(BLOCK_SIZE, height - blockY);
+
+        int startX = Math.max(region.x - blockX, 0);
+        int endX = Math.min(region.x + region.width - blockX, blockWidth);
+        int startY = Math.max(region.y - blockY, 0);
+        int endY = Math.min(region.y + region.height - blockY, blockHeight);
+
+        int index = by * ignoredBlocks.getXBlocks() + bx;
+        int[] mask = pixelMasks[index];
+        if (mask == null) {
+            mask = new int[BLOCK_SIZE];
+            pixelMasks[index] = mask;
+        }
+        int rowBits = (FULL_ROW >>> (BLOCK_SIZE - (endX - startX))) << startX;
+        for (int j = startY; j < endY; j++) {
+            mask[j] |= rowBits;
+        }
+
+        // Several regions together may cover the whole block
+        int blockRow = FULL_ROW >>> (BLOCK_SIZE - blockWidth);
+        for (int j = 0; j < blockHeight; j++) {
+            if (mask[j] != blockRow) {
+                return;
+            }
+        }
+        ignoredBlocks.set(bx, by);
+        pixelMasks[index] = null;
+    }
+
+    /**
+     * Checks if the whole block is ignored.
+     *
+     * @param bx
+     *            x coordinate of the block
+     * @param by
+     *            y coordinate of the block
+     * @return true if no pixel of the block should be compared
+     */
+    public boolean isBlockIgnored(int bx, int by) {
+        return ignoredBlocks.get(bx, by);
+    }
+
+    /**
+     * Returns the pixels to ignore in a partially ignored block. Bit i of
+     * element j is set if the pixel (i,j) of the block is ignored.
+     *
+     * @param bx
+     *            x coordinate of the block
+     * @param by
+     *            y coordinate of the block
+     * @return the mask for each row of the block, or null if the block is
+     *         either completely ignored or not ignored at all
+     */
+    public int[] getIgnoredPixels(int bx, int by) {
+        return pixelMasks[by * ignoredBlocks.getXBlocks() + bx];
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static com.vaadin.testbench.screenshot.ImageUtil.getImageProperties;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * The position of the reference image content in a screenshot of a different
+ * size. Used for comparing only the overlapping parts of the images when the
+ * content has been shifted, e.g. because a scrollbar appeared or something was
+ * added above the content.
+ * <p>
+ * The offset is found by hashing each row and each column of both images and
+ * finding the shift for which most of the hashes match. Only shifts between
+ * zero and the difference in size are considered, i.e. the content is assumed
+ * to stay inside the larger image.
+ */
+public class ImageAlignment {
+
+    private final int referenceWidth;
+    private final int referenceHeight;
+    private final int screenshotWidth;
+    private final int screenshotHeight;
+    private final int offsetX;
+    private final int offsetY;
+
+    private ImageAlignment(BufferedImage reference, BufferedImage screenshot,
+            int offsetX, int offsetY) {
+        referenceWidth = reference.getWidth();
+        referenceHeight = reference.getHeight();
+        screenshotWidth = screenshot.getWidth();
+        screenshotHeight = screenshot.getHeight();
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    /**
+     * Finds the offset of the reference image content in the screenshot.
+     *
+     * @param reference
+     *            the reference image
+     * @param screenshot
+     *            the screenshot image
+     * @return the alignment of the images, with zero offset if no better
+     *         alignment was found
+     */
+    public static ImageAlignment find(BufferedImage reference,
+            BufferedImage screenshot) {
+        ImageProperties ref = getImageProperties(reference);
+        ImageProperties ss = getImageProperties(screenshot);
+        int widthDifference = ss.getWidth() - ref.getWidth();
+        int heightDifference = ss.getHeight() - ref.getHeight();
+
+        // Rows only match when the columns are aligned and vice versa, so the
+        // vertical offset is searched again if the content has moved
+        // horizontally
+        int offsetY = findOffset(rowHashes(ref, ss, 0),
+                rowHashes(ss, ref, 0), heightDifference);
+        int offsetX = findOffset(columnHashes(ref, ss, -offsetY),
+                columnHashes(ss, ref, offsetY), widthDifference);
+        if (offsetX != 0) {
+            offsetY = findOffset(rowHashes(ref, ss, -offsetX),
+                    rowHashes(ss, ref, offsetX), heightDifference);
+        }
+        return new ImageAlignment(reference, screenshot, offsetX, offsetY);
+    }
+
+    /**
+     * Hashes the rows of the image, using only the columns which overlap the
+     * other image when it is placed at the horizontal position otherX.
+     */
+    private static int[] rowHashes(ImageProperties image,
+            ImageProperties other, int otherX) {
+        int startX = Math.max(0, otherX);
+        int endX = Math.min(image.getWidth(), other.getWidth() + otherX);
+        int[] pixels = image.getPixels();
+        int alphaMask = image.getAlphaMask();
+        int[] hashes = new int[image.getHeight()];
+        for (int y = 0; y < hashes.length; y++) {
+            int hash = 1;
+            int offset = image.getOffset(startX, y);
+            for (int x = startX; x < endX; x++) {
+                hash = 31 * hash + (pixels[offset++] | alphaMask);
+            }
+            hashes[y] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * Hashes the columns of the image, using only the rows which overlap the
+     * other image when it is placed at the vertical position otherY.
+     */
+    private static int[] columnHashes(ImageProperties image,
+            ImageProperties other, int otherY) {
+        int startY = Math.max(0, otherY);
+        int endY = Math.min(image.getHeight(), other.getHeight() + otherY);
+        int[] pixels = image.getPixels();
+        int alphaMask = image.getAlphaMask();
+        int[] hashes = new int[image.getWidth()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = 1;
+        }
+        // Row by row to read the pixels in memory order
+        for (int y = startY; y < endY; y++) {
+            int offset = image.getOffset(0, y);
+            for (int x = 0; x < hashes.length; x++) {
+                hashes[x] = 31 * hashes[x] + (pixels[offset++] | alphaMask);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Finds the offset between zero and maxOffset for which most of the
+     * reference hashes are found at the shifted position in the screenshot.
+     * Smaller offsets win ties.
+     */
+    private static int findOffset(int[] referenceHashes,
+            int[] screenshotHashes, int maxOffset) {
+        int step = maxOffset < 0 ? -1 : 1;
+        int bestOffset = 0;
+        int bestMatches = -1;
+        for (int offset = 0; offset != maxOffset + step; offset += step) {
+            int start = Math.max(0, -offset);
+            int end = Math.min(referenceHashes.length, screenshotHashes.length
+                    - offset);
+            int matches = 0;
+            for (int i = start; i < end; i++) {
+                if (referenceHashes[i] == screenshotHashes[i + offset]) {
+                    matches++;
+                }
+            }
+            if (matches > bestMatches) {
+                bestMatches = matches;
+                bestOffset = offset;
+            }
+        }
+        return bestOffset;
+    }
+
+    /**
+     * @return the horizontal position of the reference image content in the
+     *         screenshot, positive if the content has moved right
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return the vertical position of the reference image content in the
+     *         screenshot, positive if the content has moved down
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * @return true if the content has moved in the screenshot
+     */
+    public boolean isShifted() {
+        return offsetX != 0 || offsetY != 0;
+    }
+
+    /**
+     * @return the part of the reference image which is also in the screenshot
+     */
+    public Rectangle getReferenceOverlap() {
+        Rectangle overlap = getScreenshotOverlap();
+        overlap.translate(-offsetX, -offsetY);
+        return overlap;
+    }
+
+    /**
+     * @return the part of the screenshot which contains the reference image
+     *         content
+     */
+    public Rectangle getScreenshotOverlap() {
+        return new Rectangle(offsetX, offsetY, referenceWidth,
+                referenceHeight).intersection(new Rectangle(0, 0,
+                screenshotWidth, screenshotHeight));
+    }
+
+    /**
+     * Returns a human readable description of the alignment, e.g.
+     * "content shifted by 3 px left and 15 px down".
+     *
+     * @return a description of the alignment
+     */
+    @Override
+    public String toString() {
+        if (!isShifted()) {
+            return "content not shifted";
+        }
+        StringBuilder description = new StringBuilder("content shifted by ");
+        if (offsetX != 0) {
+            description.append(Math.abs(offsetX)).append(" px ")
+                    .append(offsetX < 0 ? "left" : "right");
+        }
+        if (offsetY != 0) {
+            if (offsetX != 0) {
+                description.append(" and ");
+            }
+            description.append(Math.abs(offsetY)).append(" px ")
+                    .append(offsetY < 0 ? "up" : "down");
+        }
+        return description.toString();
+    }
+}
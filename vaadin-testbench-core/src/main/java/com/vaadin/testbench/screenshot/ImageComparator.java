@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Strategy for calculating the difference between a block of a reference
+ * image and the same block of a screenshot. {@link ImageComparison} divides
+ * the images into 16x16 blocks and uses the comparator for each block.
+ * <p>
+ * Implementations must be thread safe, as the blocks of an image may be
+ * compared in parallel.
+ */
+public interface ImageComparator {
+
+    /**
+     * Calculates the difference between the pixels in the block starting at
+     * (x,y) of the two images. The difference is the sum of the absolute
+     * differences of the red, green and blue values of the pixels, relative
+     * to the largest possible difference of a full 16x16 block, so that a
+     * partial block never differs more than a full block. Pixels that are not
+     * fully opaque in the reference image are masked and ignored.
+     *
+     * @param reference
+     *            the reference image
+     * @param screenshot
+     *            the screenshot image
+     * @param x
+     *            the x coordinate of the block (in pixels)
+     * @param y
+     *            the y coordinate of the block (in pixels)
+     * @param width
+     *            the width of the block (in pixels), at most 16
+     * @param height
+     *            the height of the block (in pixels), at most 16
+     * @return the difference, between 0 and 1
+     */
+    double getBlockDifference(ImageProperties reference,
+            ImageProperties screenshot, int x, int y, int width, int height);
+
+    /**
+     * Calculates the difference between the pixels in the block starting at
+     * (x,y) of the two images, ignoring the given pixels. The difference is
+     * relative to a full block as in
+     * {@link #getBlockDifference(ImageProperties, ImageProperties, int, int, int, int)}
+     * .
+     *
+     * @param reference
+     *            the reference image
+     * @param screenshot
+     *            the screenshot image
+     * @param x
+     *            the x coordinate of the block (in pixels)
+     * @param y
+     *            the y coordinate of the block (in pixels)
+     * @param width
+     *            the width of the block (in pixels), at most 16
+     * @param height
+     *            the height of the block (in pixels), at most 16
+     * @param ignoredPixels
+     *            the pixels to ignore for each row of the block, bit i of
+     *            element j is set if the pixel (x+i,y+j) is ignored. See
+     *            {@link IgnoreMask#getIgnoredPixels(int, int)}.
+     * @return the difference, between 0 and 1
+     */
+    double getBlockDifference(ImageProperties reference,
+            ImageProperties screenshot, int x, int y, int width, int height,
+            int[] ignoredPixels);
+}
@@ -12,22 +12,30 @@
  */
 package com.vaadin.testbench.screenshot;
 
-import static com.vaadin.testbench.screenshot.ImageUtil.getBlock;
 import static com.vaadin.testbench.screenshot.ImageUtil.getImageProperties;
 import static com.vaadin.testbench.screenshot.ImageUtil.getLuminance;
-import static java.lang.Math.abs;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import javax.imageio.ImageIO;
-
 import org.openqa.selenium.Capabilities;
 
 import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ComparisonTimings.Phase;
 import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
 
 /**
@@ -39,9 +47,14 @@ public class ImageComparison {
      * Extracted for clarity. No guarantee that it can be changed without other
      * code changes!
      */
-    private static final int BLOCK_SIZE = 16;
+    static final int BLOCK_SIZE = 16;
     private static final int MAX_CURSOR_Y_BLOCKS = 3; // 3 to cover cursor up to
                                                       // 33px high
+    /**
+     * The minimum amount of block rows compared by a single thread when
+     * comparing in parallel. Smaller images are not worth splitting up.
+     */
+    private static final int MIN_BLOCK_ROWS_PER_THREAD = 8;
     //
     // NOTE: All functions in the screenshot comparison package process images
     // in 16x16 blocks. This behavior is hard-coded in several places in this
@@ -51,6 +64,12 @@ public class ImageComparison {
     private static Logger logger = Logger.getLogger(ImageComparison.class
             .getName());
 
+    private static ThreadPoolExecutor comparisonExecutor = null;
+
+    private final ImageComparator comparator;
+
+    private volatile ComparisonTimings timings = null;
+
     /**
      * Data collection type, used as input for image comparison functions. Saves
      * unnecessary buffer allocations.
@@ -63,10 +82,13 @@ public class ImageComparison {
         private BufferedImage refImage = null;
         private BufferedImage ssImage = null;
 
-        private int[] refBlock = null;
-        private int[] ssBlock = null;
-        private int[] sampleBuffer = null;
-        private boolean[][] falseBlocks = null;
+        /**
+         * Pixel mask used when checking the blocks containing a cursor.
+         */
+        private final int[] cursorMask = new int[BLOCK_SIZE];
+        private BlockErrorMap falseBlocks = null;
+
+        private IgnoreMask ignoreMask = null;
 
         private int width = 0;
         private int height = 0;
@@ -75,7 +97,205 @@ public class ImageComparison {
 
         private double errorTolerance = 0.0;
         private boolean sizesDiffer = false;
+        private ImageAlignment alignment = null;
+
+        /**
+         * The hashes of the reference image blocks, or null to compare all
+         * blocks pixel by pixel.
+         */
+        private long[] refBlockHashes = null;
+
+        /**
+         * The comparison is stopped as soon as more than this amount of
+         * differing blocks have been found. Used when only the result of the
+         * comparison is needed and not the full map of differing blocks.
+         */
+        private int maxFalseBlocks = Integer.MAX_VALUE;
+
+        /**
+         * True to compare all block rows in the calling thread. Comparisons
+         * running in the comparison executor must never wait for other
+         * tasks in the same executor.
+         */
+        private boolean singleThreaded = false;
+        private final AtomicInteger falseBlockCount = new AtomicInteger();
+        private volatile boolean aborted = false;
+
+    }
+
+    /**
+     * The state shared by the comparisons of a screenshot with its alternative
+     * reference images. The search is stopped when the screenshot matches one
+     * of the references, which aborts the other comparisons.
+     */
+    private static class ReferenceSearch {
+
+        private final BufferedImage screenshotImage;
+        private final double errorTolerance;
+        private final List<Rectangle> ignoredRegions;
+
+        private String screenshotHash = null;
+        private boolean stopped = false;
+        private int runningTasks = 0;
+        private final List<ComparisonParameters> running = new ArrayList<ComparisonParameters>();
+
+        private ReferenceSearch(BufferedImage screenshotImage,
+                double errorTolerance, List<Rectangle> ignoredRegions) {
+            this.screenshotImage = screenshotImage;
+            this.errorTolerance = errorTolerance;
+            this.ignoredRegions = ignoredRegions;
+        }
+
+        /**
+         * Returns the exact hash of the screenshot, calculated the first time
+         * it is needed.
+         */
+        private synchronized String getScreenshotHash() {
+            if (screenshotHash == null) {
+                screenshotHash = ImageComparisonUtil.generateImageHash(
+                        screenshotImage, false);
+            }
+            return screenshotHash;
+        }
+
+        /**
+         * Registers a comparison to be aborted when the search is stopped.
+         *
+         * @return false if the search has already been stopped
+         */
+        private synchronized boolean start(ComparisonParameters params) {
+            if (stopped) {
+                return false;
+            }
+            running.add(params);
+            return true;
+        }
+
+        private synchronized void stop() {
+            stopped = true;
+            for (ComparisonParameters params : running) {
+                params.aborted = true;
+            }
+            running.clear();
+        }
+
+        private synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * Called when a task comparing an alternative starts running.
+         *
+         * @return false if the search has already been stopped and the task
+         *         should not compare anything
+         */
+        private synchronized boolean enterTask() {
+            if (stopped) {
+                return false;
+            }
+            runningTasks++;
+            return true;
+        }
+
+        /**
+         * Called when a task entered with {@link #enterTask()} has finished.
+         */
+        private synchronized void exitTask() {
+            runningTasks--;
+            notifyAll();
+        }
+
+        /**
+         * Stops the search and waits until no task is using the screenshot.
+         * Tasks which have not started yet never use it after this.
+         */
+        private synchronized void stopAndAwaitTasks() {
+            stop();
+            boolean interrupted = false;
+            while (runningTasks > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Creates an image comparison using the comparator selected with
+     * {@link Parameters#setScreenshotComparator(String)}, or
+     * {@link FastImageComparator} if none has been selected.
+     *
+     * @throws IllegalArgumentException
+     *             if the selected comparator could not be created
+     */
+    public ImageComparison() {
+        this(createComparator(Parameters.getScreenshotComparator()));
+    }
+
+    /**
+     * Creates an image comparison using the given comparator for comparing
+     * the blocks of the images.
+     *
+     * @param comparator
+     *            the comparator to use, not null
+     */
+    public ImageComparison(ImageComparator comparator) {
+        this.comparator = comparator;
+    }
+
+    private static ImageComparator createComparator(String className) {
+        if (className == null || className.length() == 0) {
+            return new FastImageComparator();
+        }
+        if (className.indexOf('.') < 0) {
+            className = ImageComparator.class.getPackage().getName() + "."
+                    + className;
+        }
+        try {
+            return Class.forName(className).asSubclass(ImageComparator.class)
+                    .newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                    "Could not create screenshot comparator " + className, e);
+        }
+    }
+
+    /**
+     * @return the comparator used for comparing the blocks of the images
+     */
+    public ImageComparator getComparator() {
+        return comparator;
+    }
 
+    /**
+     * Sets where the time spent reading reference images, comparing, detecting
+     * cursors and creating failure reports is recorded.
+     *
+     * @param timings
+     *            the timings to add to, or null to not record the timings
+     */
+    public void setTimings(ComparisonTimings timings) {
+        this.timings = timings;
+    }
+
+    /**
+     * @return the timings the comparisons are recorded to, or null if not
+     *         recorded
+     */
+    public ComparisonTimings getTimings() {
+        return timings;
+    }
+
+    private void record(ComparisonTimings.Phase phase, long start, long bytes) {
+        ComparisonTimings timings = this.timings;
+        if (timings != null) {
+            timings.add(phase, System.nanoTime() - start, bytes);
+        }
     }
 
     /**
@@ -97,6 +317,67 @@ public class ImageComparison {
     public boolean imageEqualToReference(BufferedImage screenshotImage,
             String referenceFileId, double errorTolerance,
             Capabilities capabilities) throws IOException {
+        return imageEqualToReference(screenshotImage, referenceFileId,
+                errorTolerance, capabilities, true);
+    }
+
+    /**
+     * Compare image [name] to image under /reference/. Images may differ in RGB
+     * hues 0.1% (default) per macroblock of 16x16
+     *
+     * @param screenshotImage
+     *            Image of canvas (must have proper dimensions)
+     * @param referenceFileId
+     *            File id for this image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @param createFailureReport
+     *            true to write the error screenshot and the diff report if the
+     *            images differ, false to only return the result. When false,
+     *            the comparison stops at the first difference which cannot be
+     *            explained by a cursor.
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(BufferedImage screenshotImage,
+            String referenceFileId, double errorTolerance,
+            Capabilities capabilities, boolean createFailureReport)
+            throws IOException {
+        return imageEqualToReference(screenshotImage, referenceFileId,
+                errorTolerance, capabilities, createFailureReport,
+                Collections.<Rectangle> emptyList());
+    }
+
+    /**
+     * Compare image [name] to image under /reference/, ignoring the given
+     * regions of the images. Images may differ in RGB hues 0.1% (default) per
+     * macroblock of 16x16
+     *
+     * @param screenshotImage
+     *            Image of canvas (must have proper dimensions)
+     * @param referenceFileId
+     *            File id for this image without .png extension
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1 default
+     *            0.025 == 2.5%)
+     * @param capabilities
+     *            browser capabilities
+     * @param createFailureReport
+     *            true to write the error screenshot and the diff report if the
+     *            images differ, false to only return the result
+     * @param ignoredRegions
+     *            the regions of the images which are not compared, in pixel
+     *            coordinates of the screenshot
+     * @return true if images are the same
+     * @throws IOException
+     */
+    public boolean imageEqualToReference(BufferedImage screenshotImage,
+            String referenceFileId, double errorTolerance,
+            Capabilities capabilities, boolean createFailureReport,
+            List<Rectangle> ignoredRegions) throws IOException {
         ImageFileUtil.createScreenshotDirectoriesIfNeeded();
 
         List<String> referenceFileNames = ImageFileUtil
@@ -104,58 +385,232 @@ public class ImageComparison {
                         capabilities);
 
         if (referenceFileNames.isEmpty()) {
-            // We require a reference image to continue
-            // Save the screenshot in the error directory.
-            ImageIO.write(
-                    screenshotImage,
-                    "png",
-                    ImageFileUtil.getErrorScreenshotFile(referenceFileId
-                            + ".png"));
-            logger.severe("No reference found for " + referenceFileId + " in "
-                    + ImageFileUtil.getScreenshotReferenceDirectory());
+            if (createFailureReport) {
+                // We require a reference image to continue
+                // Save the screenshot in the error directory.
+                long start = System.nanoTime();
+                ErrorFileWriter.writeImage(screenshotImage, ImageFileUtil
+                        .getErrorScreenshotFile(referenceFileId + ".png"));
+                record(Phase.REPORT, start, 0);
+                logger.severe("No reference found for " + referenceFileId
+                        + " in "
+                        + ImageFileUtil.getScreenshotReferenceDirectory());
+            }
             return false;
         }
 
-        // This is used to make the final error HTML page based on main
-        // reference file only
-        ScreenShotFailureReporter failureReporter = null;
-
-        for (String referenceFileName : referenceFileNames) {
-            BufferedImage referenceImage;
-            referenceImage = ImageFileUtil
-                    .readReferenceImage(referenceFileName);
-
-            failureReporter = compareImages(createParameters(referenceImage,
-                    screenshotImage, errorTolerance));
+        final ReferenceSearch search = new ReferenceSearch(screenshotImage,
+                errorTolerance, ignoredRegions);
+        String mainReferenceFileName = referenceFileNames.get(0);
+        List<String> alternatives = referenceFileNames.subList(1,
+                referenceFileNames.size());
+
+        // The alternatives are compared in the shared comparison executor
+        // while the calling thread compares the main reference. Each
+        // alternative is compared in a single thread (see
+        // ComparisonParameters.singleThreaded) so that the tasks never wait
+        // for other tasks in the executor.
+        List<Future<ScreenShotFailureReporter>> alternativeResults = new ArrayList<Future<ScreenShotFailureReporter>>();
+        int threads = Parameters.getScreenshotComparisonThreads();
+        if (threads > 1 && !alternatives.isEmpty()) {
+            ExecutorService executor = getComparisonExecutor(Math.min(
+                    threads - 1, alternatives.size()));
+            for (final String alternative : alternatives) {
+                alternativeResults.add(executor
+                        .submit(new Callable<ScreenShotFailureReporter>() {
+                            @Override
+                            public ScreenShotFailureReporter call()
+                                    throws Exception {
+                                if (!search.enterTask()) {
+                                    return null;
+                                }
+                                try {
+                                    return compareToReference(search,
+                                            alternative, false, true);
+                                } finally {
+                                    search.exitTask();
+                                }
+                            }
+                        }));
+            }
+            alternatives = Collections.emptyList();
+        }
 
+        try {
+            // This is used to make the final error HTML page based on main
+            // reference file only
+            ScreenShotFailureReporter failureReporter = compareToReference(
+                    search, mainReferenceFileName, createFailureReport,
+                    false);
             if (failureReporter == null) {
                 return true;
             }
+            for (String alternative : alternatives) {
+                if (compareToReference(search, alternative, false,
+                        false) == null) {
+                    return true;
+                }
+            }
+            for (Future<ScreenShotFailureReporter> result : alternativeResults) {
+                if (result.get() == null) {
+                    return true;
+                }
+            }
+
+            // The command has failed because the captured image differs from
+            // the reference image
+            if (createFailureReport) {
+                long start = System.nanoTime();
+                failureReporter.createErrorImageAndHTML(referenceFileId
+                        + ".png", screenshotImage);
+                record(Phase.REPORT, start, 0);
+            }
+
+            // The images differ
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while comparing screenshots", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Screenshot comparison failed",
+                    e.getCause());
+        } finally {
+            // Aborts the comparisons which are still running after a match
+            // or an error
+            for (Future<ScreenShotFailureReporter> result : alternativeResults) {
+                result.cancel(false);
+            }
+            // The screenshot must not be used after returning, as its pixel
+            // buffer may be reused (see ImageDecoder). Cancelled futures are
+            // done at once even if the task is running, so the tasks keep
+            // count themselves.
+            search.stopAndAwaitTasks();
         }
+    }
 
-        // The command has failed because the captured image differs from
-        // the reference image
-        if (failureReporter != null) {
-            failureReporter.createErrorImageAndHTML(referenceFileId + ".png",
-                    screenshotImage);
+    /**
+     * Compares the screenshot of the search to one reference image. When the
+     * screenshot matches the reference, the comparisons with the other
+     * references of the search are aborted.
+     *
+     * @param search
+     *            the screenshot and the state shared by the comparisons
+     * @param referenceFileName
+     *            the file name of the reference image
+     * @param findAllDifferences
+     *            true to find all differing blocks for a failure report, false
+     *            to stop at the first difference which cannot be explained by
+     *            a cursor
+     * @param singleThreaded
+     *            true to compare the images only in the calling thread, used
+     *            when running in the comparison executor
+     * @return null if the screenshot matches the reference or another
+     *         reference has already matched, otherwise a failure reporter
+     *         describing the differences
+     * @throws IOException
+     *             if the reference image could not be read
+     */
+    private ScreenShotFailureReporter compareToReference(
+            ReferenceSearch search, String referenceFileName,
+            boolean findAllDifferences, boolean singleThreaded)
+            throws IOException {
+        if (search.isStopped()) {
+            return null;
+        }
+        ReferenceHashIndex hashIndex = ImageFileUtil.getReferenceHashIndex();
+        ReferenceImageRepresentation representation = null;
+        if (hashIndex != null) {
+            representation = hashIndex.getRepresentation(referenceFileName);
+            if (representation != null
+                    && representation.containsHash(search.getScreenshotHash())) {
+                if (Parameters.isDebug()) {
+                    System.out.println("Screenshot hash matched reference");
+                }
+                // Identical to the reference, no need to read it
+                search.stop();
+                return null;
+            }
+        }
+
+        long start = System.nanoTime();
+        BufferedImage referenceImage = ImageFileUtil
+                .readReferenceImage(referenceFileName);
+        record(Phase.REFERENCE_READ, start, getPixelBytes(referenceImage));
+        if (hashIndex != null && representation == null
+                && referenceImage != null) {
+            hashIndex.update(referenceFileName, referenceImage);
         }
 
-        // The images differ
-        return false;
+        ComparisonParameters params = createParameters(referenceImage,
+                search.screenshotImage, search.errorTolerance,
+                !findAllDifferences, search.ignoredRegions);
+        params.singleThreaded = singleThreaded;
+        if (!params.sizesDiffer) {
+            ReferenceBlockHashes blockHashes = ImageFileUtil
+                    .getReferenceBlockHashes();
+            if (blockHashes != null) {
+                start = System.nanoTime();
+                params.refBlockHashes = blockHashes.getHashes(
+                        referenceFileName, referenceImage);
+                record(Phase.REFERENCE_READ, start, 0);
+            }
+        }
+        if (!search.start(params)) {
+            // Another reference matched while this one was being read
+            return null;
+        }
+        ScreenShotFailureReporter reporter = compareImages(params);
+        if (reporter == null) {
+            search.stop();
+        }
+        return reporter;
     }
 
     public boolean imageEqualToReference(BufferedImage screenshotImage,
             BufferedImage referenceImage, String referenceFileName,
             double errorTolerance) {
+        return imageEqualToReference(screenshotImage, referenceImage,
+                referenceFileName, errorTolerance, true);
+    }
+
+    /**
+     * Compares the screenshot to the given reference image.
+     *
+     * @param screenshotImage
+     *            Image of canvas
+     * @param referenceImage
+     *            the reference image
+     * @param referenceFileName
+     *            the file name of the reference, used for the error files
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @param createFailureReport
+     *            true to write the error screenshot and the diff report if the
+     *            images differ, false to only return the result. When false,
+     *            the comparison stops at the first difference which cannot be
+     *            explained by a cursor.
+     * @return true if images are the same
+     */
+    public boolean imageEqualToReference(BufferedImage screenshotImage,
+            BufferedImage referenceImage, String referenceFileName,
+            double errorTolerance, boolean createFailureReport) {
         ImageFileUtil.createScreenshotDirectoriesIfNeeded();
 
         ComparisonParameters param = createParameters(referenceImage,
-                screenshotImage, errorTolerance);
+                screenshotImage, errorTolerance, !createFailureReport, null);
         ScreenShotFailureReporter failureReporter = compareImages(param);
 
         if (failureReporter != null) {
-            failureReporter.createErrorImageAndHTML(referenceFileName,
-                    screenshotImage);
+            if (createFailureReport) {
+                long start = System.nanoTime();
+                failureReporter.createErrorImageAndHTML(referenceFileName,
+                        screenshotImage);
+                record(Phase.REPORT, start, 0);
+            }
             return false;
         }
         return true;
@@ -169,23 +624,21 @@ public class ImageComparison {
      */
     private ScreenShotFailureReporter compareImages(
             final ComparisonParameters param) {
+        if (param.sizesDiffer && param.maxFalseBlocks != Integer.MAX_VALUE) {
+            // Images of different size never match, no need to look closer
+            // when only the result is needed
+            return makeFailureReporter(param);
+        }
         boolean imagesEqual = compareImage(param);
         if (param.sizesDiffer) {
             // The command has failed because the dimensions of the captured
             // image do not match the reference image
-            if (Parameters.isDebug()) {
-                if (imagesEqual) {
-                    // The images are equal but of different size
-                    System.out.println("Images are of different size.");
-                } else {
-                    // Neither size nor contents match
-                    System.out
-                            .println("Images differ and are of different size.");
-                }
-            }
-
             // TODO: Add info about which RC it was run on
             ScreenShotFailureReporter fr = makeFailureReporter(param);
+            if (Parameters.isDebug()) {
+                System.out.println("Screenshot did not match reference: "
+                        + fr.getSummary());
+            }
             return fr;
         }
 
@@ -198,12 +651,17 @@ public class ImageComparison {
             return null;
         }
 
-        if (Parameters.isScreenshotComparisonCursorDetection()) {
+        if (!param.aborted
+                && Parameters.isScreenshotComparisonCursorDetection()) {
             // Images are not equal, still check if the only difference
             // is a blinking cursor
+            long start = System.nanoTime();
             Point possibleCursorPosition = getPossibleCursorPosition(param);
+            boolean onlyCursor = possibleCursorPosition != null
+                    && isCursorTheOnlyError(possibleCursorPosition, param);
+            record(Phase.CURSOR_DETECTION, start, 0);
             if (possibleCursorPosition != null) {
-                if (isCursorTheOnlyError(possibleCursorPosition, param)) {
+                if (onlyCursor) {
                     if (Parameters.isDebug()) {
                         System.out
                                 .println("Screenshot matched reference after removing cursor");
@@ -227,96 +685,237 @@ public class ImageComparison {
 
     private ScreenShotFailureReporter makeFailureReporter(
             final ComparisonParameters param) {
-        return new ScreenShotFailureReporter(param.refImage, param.falseBlocks);
+        return new ScreenShotFailureReporter(param.refImage,
+                param.falseBlocks, param.alignment);
     }
 
+    /**
+     * Compares the two images and finds all differing blocks, without
+     * detecting cursors.
+     *
+     * @param referenceImage
+     *            the reference image
+     * @param screenshotImage
+     *            the screenshot image
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @return a failure reporter for the differences, or null if the images
+     *         are equal
+     */
+    ScreenShotFailureReporter findDifferences(BufferedImage referenceImage,
+            BufferedImage screenshotImage, double errorTolerance) {
+        ComparisonParameters params = createParameters(referenceImage,
+                screenshotImage, errorTolerance, false, null);
+        if (compareImage(params) && !params.sizesDiffer) {
+            return null;
+        }
+        return makeFailureReporter(params);
+    }
+
+    /**
+     * Compares the two images and returns the result without creating any
+     * failure report. The comparison is stopped as soon as a difference is
+     * found that cannot be explained by a cursor.
+     *
+     * @param referenceImage
+     *            the reference image
+     * @param screenshotImage
+     *            the screenshot image
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @return true if the images are considered equal
+     */
     public boolean compareImages(BufferedImage referenceImage,
             BufferedImage screenshotImage, double errorTolerance) {
+        return compareImages(referenceImage, screenshotImage, errorTolerance,
+                null);
+    }
+
+    /**
+     * Compares the two images, ignoring the given regions, and returns the
+     * result without creating any failure report.
+     *
+     * @param referenceImage
+     *            the reference image
+     * @param screenshotImage
+     *            the screenshot image
+     * @param errorTolerance
+     *            Allowed RGB error for a macroblock (value range 0-1)
+     * @param ignoredRegions
+     *            the regions of the images which are not compared, or null to
+     *            compare the whole images
+     * @return true if the images are considered equal
+     */
+    public boolean compareImages(BufferedImage referenceImage,
+            BufferedImage screenshotImage, double errorTolerance,
+            List<Rectangle> ignoredRegions) {
         ComparisonParameters params = createParameters(referenceImage,
-                screenshotImage, errorTolerance);
+                screenshotImage, errorTolerance, true, ignoredRegions);
 
         boolean imagesEqual = compareImage(params);
 
-        // Check for cursor.
-        if (!imagesEqual && Parameters.isScreenshotComparisonCursorDetection()) {
+        // Check for cursor. If the comparison was aborted there are too many
+        // differing blocks for a cursor.
+        if (!imagesEqual && !params.aborted
+                && Parameters.isScreenshotComparisonCursorDetection()) {
+            long start = System.nanoTime();
             Point possibleCursorPosition = getPossibleCursorPosition(params);
-            if (possibleCursorPosition != null) {
-                if (isCursorTheOnlyError(possibleCursorPosition, params)) {
-                    return true;
-                }
+            boolean onlyCursor = possibleCursorPosition != null
+                    && isCursorTheOnlyError(possibleCursorPosition, params);
+            record(Phase.CURSOR_DETECTION, start, 0);
+            if (onlyCursor) {
+                return true;
             }
         }
         return imagesEqual;
     }
 
     private boolean compareImage(final ComparisonParameters params) {
-        boolean result = true;
-        final int imageWidth = params.width;
-        final int imageHeight = params.height;
+        long start = System.nanoTime();
+        final int threads = params.singleThreaded ? 1 : Math.min(
+                Parameters.getScreenshotComparisonThreads(), params.yBlocks
+                        / MIN_BLOCK_ROWS_PER_THREAD);
+        boolean result;
+        if (threads > 1) {
+            result = compareImageInParallel(params, threads);
+        } else {
+            result = compareBlockRows(params, 0, params.yBlocks);
+        }
+        record(Phase.COMPARISON, start,
+                getPixelBytes(params.refImage) + getPixelBytes(params.ssImage));
+        return result;
+    }
 
-        // Iterate through image in 16x16 blocks
-        for (int y = 0; y < imageHeight; y += BLOCK_SIZE) {
-            for (int x = 0; x < imageWidth; x += BLOCK_SIZE) {
-                if (blocksDiffer(x, y, params)) {
-                    params.falseBlocks[x >>> 4][y >>> 4] = true;
+    private static long getPixelBytes(BufferedImage image) {
+        return image == null ? 0 : 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Compares the image by splitting the block rows between the given amount
+     * of threads. The calling thread compares the last part of the image
+     * while the other parts are compared in the shared comparison executor.
+     */
+    private boolean compareImageInParallel(final ComparisonParameters params,
+            int threads) {
+        final ExecutorService executor = getComparisonExecutor(threads - 1);
+        final int rowsPerThread = (params.yBlocks + threads - 1) / threads;
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        int firstRow = 0;
+        for (int i = 0; i < threads - 1; i++) {
+            final int start = firstRow;
+            final int end = firstRow + rowsPerThread;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return compareBlockRows(params, start, end);
+                }
+            }));
+            firstRow = end;
+        }
+        boolean result = compareBlockRows(params, firstRow, params.yBlocks);
+
+        try {
+            for (Future<Boolean> future : results) {
+                if (!future.get()) {
                     result = false;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while comparing screenshots", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Screenshot comparison failed",
+                    e.getCause());
         }
         return result;
     }
 
-    private boolean blocksDiffer(int x, int y, final ComparisonParameters params) {
-        final int[] refBlock = getBlock(params.refProperties, x, y,
-                params.refBlock, params.sampleBuffer);
-        final int[] ssBlock = getBlock(params.ssProperties, x, y,
-                params.ssBlock, params.sampleBuffer);
+    /**
+     * Compares the block rows [firstRow, endRow) of the images and marks the
+     * blocks that differ in params.falseBlocks.
+     */
+    private boolean compareBlockRows(final ComparisonParameters params,
+            int firstRow, int endRow) {
+        boolean result = true;
+        final int imageWidth = params.width;
+        final int imageHeight = Math.min(params.height, endRow * BLOCK_SIZE);
 
-        for (int i = 0; i < (BLOCK_SIZE * BLOCK_SIZE); ++i) {
-            if (refBlock[i] != ssBlock[i]) {
-                return rgbCompare(refBlock, ssBlock) > params.errorTolerance;
+        // Iterate through image in 16x16 blocks
+        for (int y = firstRow * BLOCK_SIZE; y < imageHeight; y += BLOCK_SIZE) {
+            if (params.aborted) {
+                return false;
+            }
+            for (int x = 0; x < imageWidth; x += BLOCK_SIZE) {
+                if (blocksDiffer(x, y, params)) {
+                    params.falseBlocks.set(x >>> 4, y >>> 4);
+                    result = false;
+                    if (params.falseBlockCount.incrementAndGet() > params
+                            .maxFalseBlocks) {
+                        params.aborted = true;
+                        return false;
+                    }
+                }
             }
         }
-
-        return false;
+        return result;
     }
 
     /**
-     * Calculates the difference between pixels in the block.
-     *
-     * @param referenceBlock
-     * @param screenshotBlock
-     * @return Difference %
+     * Returns the executor used for comparing parts of images in parallel. The
+     * executor is shared by all ImageComparison instances and grows if more
+     * threads than before are requested.
      */
-    private double rgbCompare(final int[] referenceBlock,
-            final int[] screenshotBlock) {
-        int sum = 0;
-        assert (referenceBlock.length == screenshotBlock.length);
-
-        // Build sums from all available colors Red, Green and Blue
-        for (int i = 0, l = referenceBlock.length; i < l; i++) {
-            final int targetPixel = referenceBlock[i];
-
-            if ((targetPixel >>> 24) < 255) {
+    private static synchronized ExecutorService getComparisonExecutor(
+            int threads) {
+        if (comparisonExecutor == null) {
+            comparisonExecutor = (ThreadPoolExecutor) Executors
+                    .newFixedThreadPool(threads, new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "screenshot-comparison-"
+                                            + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        } else if (comparisonExecutor.getMaximumPoolSize() < threads) {
+            comparisonExecutor.setMaximumPoolSize(threads);
+            comparisonExecutor.setCorePoolSize(threads);
+        }
+        return comparisonExecutor;
+    }
 
-                // Only completely opaque pixels are considered. Pixels with
-                // alpha values below 255 (== fully opaque) are considered
-                // masked and differences in these pixels won't be reported.
-                continue;
+    private boolean blocksDiffer(int x, int y, final ComparisonParameters params) {
+        final int width = Math.min(BLOCK_SIZE, params.width - x);
+        final int height = Math.min(BLOCK_SIZE, params.height - y);
+        final IgnoreMask ignoreMask = params.ignoreMask;
+        if (ignoreMask != null && ignoreMask.isBlockIgnored(x >>> 4, y >>> 4)) {
+            return false;
+        }
+        if (params.refBlockHashes != null) {
+            long hash = ReferenceBlockHashes.hashBlock(params.ssProperties, x,
+                    y, width, height);
+            if (hash == params.refBlockHashes[(y >>> 4) * params.xBlocks
+                    + (x >>> 4)]) {
+                // Identical blocks never differ, whatever the tolerance
+                return false;
             }
-
-            final int testPixel = screenshotBlock[i];
-
-            sum += abs(((targetPixel & 0xff0000) >> 16)
-                    - ((testPixel & 0xff0000) >> 16));
-
-            sum += abs(((targetPixel & 0xff00) >> 8)
-                    - ((testPixel & 0xff00) >> 8));
-
-            sum += abs((targetPixel & 0xff) - (testPixel & 0xff));
         }
-
-        return sum / ((double) referenceBlock.length * 255 * 3);
+        if (ignoreMask != null) {
+            int[] ignoredPixels = ignoreMask.getIgnoredPixels(x >>> 4, y >>> 4);
+            if (ignoredPixels != null) {
+                return comparator.getBlockDifference(params.refProperties,
+                        params.ssProperties, x, y, width, height,
+                        ignoredPixels) > params.errorTolerance;
+            }
+        }
+        return comparator.getBlockDifference(params.refProperties,
+                params.ssProperties, x, y, width, height) > params.errorTolerance;
     }
 
     /**
@@ -335,55 +934,38 @@ public class ImageComparison {
      */
     private static Point getPossibleCursorPosition(
             final ComparisonParameters params) {
-        int firstErrorBlockX = 0;
-        int firstErrorBlockY = 0;
-        boolean errorFound = false;
-
-        final int xBlocks = params.xBlocks;
-        final int yBlocks = params.yBlocks;
-        final boolean[][] blocksWithErrors = params.falseBlocks;
+        final BlockErrorMap blocksWithErrors = params.falseBlocks;
 
-        // Look for 1-2 blocks with errors. If and only if the blocks are
+        // Look for 1-3 blocks with errors. If and only if the blocks are
         // vertically adjacent to each other we might have a cursor problem.
         // This is the only case we are looking for.
+        if (blocksWithErrors.cardinality() > MAX_CURSOR_Y_BLOCKS) {
+            return null;
+        }
 
-        for (int y = 0; y < yBlocks; y++) {
-            for (int x = 0; x < xBlocks; x++) {
-                if (blocksWithErrors[x][y]) {
-                    if (errorFound) {
-
-                        // This is the second erroneous block we have found
-                        if (x != firstErrorBlockX) {
-                            // This error is not below the first
-                            return null;
-                        }
-                        if ((y - firstErrorBlockY) > (MAX_CURSOR_Y_BLOCKS - 1)) {
-                            // Cursor is accepted for 1-3 blocks above each
-                            // other (we are moving from top down).
-                            return null;
-                        }
-
-                        // This is directly below the first so it is OK
-
-                    } else {
-                        // This is the first erroneous block we have found
-                        firstErrorBlockX = x;
-                        firstErrorBlockY = y;
-                        errorFound = true;
-                    }
-                }
+        final int xBlocks = params.xBlocks;
+        int firstError = blocksWithErrors.nextSetBlock(0);
+        if (firstError == -1) {
+            return null;
+        }
+        int firstErrorBlockX = firstError % xBlocks;
+        int firstErrorBlockY = firstError / xBlocks;
+        int i = blocksWithErrors.nextSetBlock(firstError + 1);
+        for (; i != -1; i = blocksWithErrors.nextSetBlock(i + 1)) {
+            if (i % xBlocks != firstErrorBlockX) {
+                // This error is not below the first
+                return null;
+            }
+            if ((i / xBlocks - firstErrorBlockY) > (MAX_CURSOR_Y_BLOCKS - 1)) {
+                // Cursor is accepted for 1-3 blocks above each other (we
+                // are moving from top down).
+                return null;
             }
         }
 
-        Point value = null;
-
-        if (errorFound) {
-            // Return value is the pixel coordinates for the first block
-            value = new Point(firstErrorBlockX << 4, firstErrorBlockY << 4);
-        }
-        return value;
+        // Return value is the pixel coordinates for the first block
+        return new Point(firstErrorBlockX << 4, firstErrorBlockY << 4);
     }
-
     /**
      * Check if failure is because of a blinking text cursor.
      *
@@ -417,34 +999,30 @@ public class ImageComparison {
             System.out.println("Looking for cursor starting from " + x + ","
                     + y + " using width=" + width + " and height=" + height);
         }
-        // getBlock writes the result into the int[] sample parameter, in
-        // this case params.refBlock and params.ssBlock. params.sampleBuffer
-        // is re-used between calls, and is used for temporary data storage.
-
-        final int[] refBlock = params.refBlock;
-        final int[] ssBlock = params.ssBlock;
-        final int[] sampleBuffer = params.sampleBuffer;
+        // The pixels are read directly from the images without copying them
         final ImageProperties refProperties = params.refProperties;
         final ImageProperties ssProperties = params.ssProperties;
-
-        getBlock(refProperties, x, y, refBlock, sampleBuffer);
-        getBlock(ssProperties, x, y, ssBlock, sampleBuffer);
+        final int[] refPixels = refProperties.getPixels();
+        final int[] ssPixels = ssProperties.getPixels();
+        final int refStride = refProperties.getScanlineStride();
+        final int ssStride = ssProperties.getScanlineStride();
 
         // Find first different pixel in the block of possibleCursorPosition
         int cursorX = -1;
         int cursorStartY = -1;
-        findCursor: for (int j = 0, l = (height > BLOCK_SIZE ? BLOCK_SIZE
-                : height); j < l; j++) {
-            for (int i = 0; i < width; i++) {
+        final int firstBlockHeight = Math.min(height, BLOCK_SIZE);
+        findCursor: for (int j = 0; j < firstBlockHeight; j++) {
+            int refIndex = refProperties.getOffset(x, y + j);
+            int ssIndex = ssProperties.getOffset(x, y + j);
+            for (int i = 0; i < width; i++, refIndex++, ssIndex++) {
 
                 // If found differing pixel
-                if (isCursorPixel(params.refBlock[i + j * width],
-                        params.ssBlock[i + j * width])) {
+                if (isCursorPixel(refPixels[refIndex], ssPixels[ssIndex])) {
 
                     // Workaround to ignore vertical lines in certain tests
-                    if (j < l - 1
-                            && !isCursorPixel(refBlock[i + (j + 1) * width],
-                                    ssBlock[i + (j + 1) * width])) {
+                    if (j < firstBlockHeight - 1
+                            && !isCursorPixel(refPixels[refIndex + refStride],
+                                    ssPixels[ssIndex + ssStride])) {
                         continue;
                     }
 
@@ -469,25 +1047,13 @@ public class ImageComparison {
 
         // Find the end of the cursor
         int cursorEndY = cursorStartY;
-        // Start from what we already know is a cursor pixel because that is certainly inside the current block
-        int idx = cursorX + (cursorEndY) * width; 
-        int diff = 0;
+        int refIndex = refProperties.getOffset(x + cursorX, y + cursorEndY);
+        int ssIndex = ssProperties.getOffset(x + cursorX, y + cursorEndY);
         while (cursorEndY < height - 1
-                && cursorEndY < MAX_CURSOR_Y_BLOCKS * BLOCK_SIZE
-                && isCursorPixel(params.refBlock[idx], params.ssBlock[idx])) {
-
-            if (++cursorEndY == BLOCK_SIZE) {
-                // We need to get the next block and adjust our index by the
-                // size of previous block
-                params.refBlock = getBlock(refProperties, x, y + BLOCK_SIZE,
-                        refBlock, sampleBuffer);
-                params.ssBlock = getBlock(ssProperties, x, y + BLOCK_SIZE,
-                        ssBlock, sampleBuffer);
-
-                diff = width * BLOCK_SIZE;
-            }
-
-            idx = cursorX + (cursorEndY) * width - diff;
+                && isCursorPixel(refPixels[refIndex], ssPixels[ssIndex])) {
+            cursorEndY++;
+            refIndex += refStride;
+            ssIndex += ssStride;
         }
 
         // Only accept as cursor if at least 5 pixels or at top or bottom of
@@ -505,30 +1071,35 @@ public class ImageComparison {
             System.out.println("Cursor is at " + cursorX + "," + cursorStartY
                     + "-" + cursorEndY);
         }
-        // Copy pixels from reference over the possible cursor, then
-        // re-compare blocks. Pixels at cursor position are always copied
-        // from the reference image regardless of which of the images has
-        // the cursor.
-
-        // Get width x height sub-images to compare
-        final BufferedImage referenceCopy = params.refImage.getSubimage(x, y,
-                width, height);
-
-        // Clone the subImage of the screenshot to avoid accidentally
-        // modifying the original screenshot.
-        final BufferedImage screenshotCopy = ImageUtil
-                .cloneImage(params.ssImage.getSubimage(x, y, width, height));
-
-        // Copy pixels for cursor position from reference to screenshot
-        for (int j = cursorStartY; j <= cursorEndY; ++j) {
-            int referenceRgb = referenceCopy.getRGB(cursorX, j);
-            screenshotCopy.setRGB(cursorX, j, referenceRgb);
+        // Re-compare the blocks ignoring the pixels at the cursor position.
+        // This is the same as copying the pixels from the reference image
+        // over the cursor regardless of which of the images has the cursor.
+        final int[] mask = params.cursorMask;
+        final int cursorBit = 1 << cursorX;
+        final IgnoreMask ignoreMask = params.ignoreMask;
+        for (int blockY = y; blockY < y + height; blockY += BLOCK_SIZE) {
+            int[] ignoredPixels = null;
+            if (ignoreMask != null) {
+                if (ignoreMask.isBlockIgnored(x >>> 4, blockY >>> 4)) {
+                    continue;
+                }
+                ignoredPixels = ignoreMask.getIgnoredPixels(x >>> 4,
+                        blockY >>> 4);
+            }
+            final int blockHeight = Math.min(BLOCK_SIZE, y + height - blockY);
+            for (int j = 0; j < blockHeight; j++) {
+                int cursorY = blockY - y + j;
+                mask[j] = ignoredPixels != null ? ignoredPixels[j] : 0;
+                if (cursorY >= cursorStartY && cursorY <= cursorEndY) {
+                    mask[j] |= cursorBit;
+                }
+            }
+            if (comparator.getBlockDifference(refProperties, ssProperties, x,
+                    blockY, width, blockHeight, mask) > params.errorTolerance) {
+                return false;
+            }
         }
-
-        // Compare one or two blocks of reference with modified screenshot
-        return compareImage(createParameters(referenceCopy, screenshotCopy,
-                params.errorTolerance));
-
+        return true;
     }
 
     /**
@@ -566,20 +1137,32 @@ public class ImageComparison {
      *            a BufferedImage
      * @param tolerance
      *            error tolerance value
+     * @param failFast
+     *            true to stop comparing as soon as the images are known to
+     *            differ, false to collect all differing blocks. Images of
+     *            different size are aligned with {@link ImageAlignment} only
+     *            when collecting all differing blocks.
+     * @param ignoredRegions
+     *            the regions which are not compared, or null
      * @return a ComparisonParameters descriptor object
      */
     private static final ComparisonParameters createParameters(
             final BufferedImage reference, final BufferedImage screenshot,
-            final double tolerance) {
+            final double tolerance, final boolean failFast,
+            List<Rectangle> ignoredRegions) {
 
         ComparisonParameters p = new ComparisonParameters();
         p.refImage = reference;
         p.ssImage = screenshot;
 
-        p.refBlock = new int[BLOCK_SIZE * BLOCK_SIZE];
-        p.ssBlock = new int[BLOCK_SIZE * BLOCK_SIZE];
-        p.sampleBuffer = ImageUtil.createSampleBuffer();
         p.errorTolerance = tolerance;
+        if (failFast) {
+            // A cursor can cause errors in at most MAX_CURSOR_Y_BLOCKS
+            // blocks, anything more is a real difference
+            p.maxFalseBlocks = Parameters
+                    .isScreenshotComparisonCursorDetection() ? MAX_CURSOR_Y_BLOCKS
+                    : 0;
+        }
 
         //
         // Internal testing requires image sizes to be exact - if they're not,
@@ -587,7 +1170,26 @@ public class ImageComparison {
         //
 
         p.sizesDiffer = !ImageUtil.imagesSameSize(reference, screenshot);
-        if (p.sizesDiffer) {
+        if (p.sizesDiffer && !failFast) {
+            // Compare the parts of the images showing the same content, so
+            // that shifted content is not reported as changed
+            p.alignment = ImageAlignment.find(reference, screenshot);
+            Rectangle refOverlap = p.alignment.getReferenceOverlap();
+            Rectangle ssOverlap = p.alignment.getScreenshotOverlap();
+            p.refImage = reference.getSubimage(refOverlap.x, refOverlap.y,
+                    refOverlap.width, refOverlap.height);
+            p.ssImage = screenshot.getSubimage(ssOverlap.x, ssOverlap.y,
+                    ssOverlap.width, ssOverlap.height);
+            if (ignoredRegions != null && p.alignment.isShifted()) {
+                List<Rectangle> translatedRegions = new ArrayList<Rectangle>();
+                for (Rectangle region : ignoredRegions) {
+                    Rectangle translated = new Rectangle(region);
+                    translated.translate(-ssOverlap.x, -ssOverlap.y);
+                    translatedRegions.add(translated);
+                }
+                ignoredRegions = translatedRegions;
+            }
+        } else if (p.sizesDiffer) {
             List<BufferedImage> images = ImageUtil.cropToBeSameSize(reference,
                     screenshot);
             p.refImage = images.get(0);
@@ -599,7 +1201,10 @@ public class ImageComparison {
         p.xBlocks = ImageComparisonUtil.getNrBlocks(p.width);
         p.yBlocks = ImageComparisonUtil.getNrBlocks(p.height);
 
-        p.falseBlocks = new boolean[p.xBlocks][p.yBlocks];
+        p.falseBlocks = new BlockErrorMap(p.xBlocks, p.yBlocks);
+        if (ignoredRegions != null && !ignoredRegions.isEmpty()) {
+            p.ignoreMask = new IgnoreMask(p.width, p.height, ignoredRegions);
+        }
 
         p.refProperties = getImageProperties(p.refImage);
         p.ssProperties = getImageProperties(p.ssImage);
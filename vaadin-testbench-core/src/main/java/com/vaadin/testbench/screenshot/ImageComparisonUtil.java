@@ -12,12 +12,19 @@
  */
 package com.vaadin.testbench.screenshot;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
 
 public class ImageComparisonUtil {
 
+    // The size of the grid used for perceptual hashes
+    private static final int DHASH_COLUMNS = 9;
+    private static final int DHASH_ROWS = 8;
+
     /**
      * Generates blocks representing an image by dividing the image up in 16x16
      * pixel blocks and calculating a mean value of the color in each block.
@@ -27,40 +34,191 @@ public class ImageComparisonUtil {
      * @return the block representation of the image
      */
     public static String generateImageHash(BufferedImage image) {
+        return generateImageHash(image, true);
+    }
+
+    /**
+     * Generates a hash of the RGB values of the image. The pixels are hashed
+     * row by row with a fast non-cryptographic 128-bit hash, without copying
+     * the image.
+     * 
+     * @param image
+     *            the image
+     * @param fuzzy
+     *            true to ignore the two least significant bits of each color
+     *            channel, false to hash the exact colors and the dimensions of
+     *            the image. Images with equal exact hashes are pixel-identical.
+     * @return the hash as a hex string
+     */
+    public static String generateImageHash(BufferedImage image, boolean fuzzy) {
         int width = image.getWidth();
         int height = image.getHeight();
+        // Skip the two last bits for fuzzy comparison
+        int mask = fuzzy ? 0x00FCFCFC : 0x00FFFFFF;
+
+        PixelHasher hasher = new PixelHasher();
+        if (ImageUtil.hasPackedPixels(image)) {
+            ImageProperties properties = ImageUtil.getImageProperties(image);
+            int[] pixels = properties.getPixels();
+            for (int y = 0; y < height; y++) {
+                hasher.update(pixels, properties.getOffset(0, y), width, mask);
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                ImageUtil.getRGBRow(image, y, row);
+                hasher.update(row, 0, width, mask);
+            }
+        }
+        if (!fuzzy) {
+            hasher.update(width);
+            hasher.update(height);
+        }
+        return hasher.digest();
+    }
 
-        byte[] data = new byte[width * height * 3];
+    /**
+     * Generates an exact hash of the RGB values of the image, leaving out the
+     * pixels in the given regions. Images with equal hashes are identical
+     * outside the regions.
+     * 
+     * @param image
+     *            the image
+     * @param ignoredRegions
+     *            the regions to leave out, in pixel coordinates of the image
+     * @return the hash as a hex string
+     */
+    public static String generateImageHash(BufferedImage image,
+            List<Rectangle> ignoredRegions) {
+        if (ignoredRegions.isEmpty()) {
+            return generateImageHash(image, false);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        IgnoreMask ignoreMask = new IgnoreMask(width, height, ignoredRegions);
+        ImageProperties properties = null;
+        if (ImageUtil.hasPackedPixels(image)) {
+            properties = ImageUtil.getImageProperties(image);
+        }
 
-        int idx = 0;
+        PixelHasher hasher = new PixelHasher();
+        int[] row = new int[width];
         for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = image.getRGB(x, y);
-                rgb &= 0x00FCFCFC;
+            if (properties != null) {
+                System.arraycopy(properties.getPixels(),
+                        properties.getOffset(0, y), row, 0, width);
+            } else {
+                ImageUtil.getRGBRow(image, y, row);
+            }
+            // Ignored pixels are hashed as black
+            int by = y / ImageComparison.BLOCK_SIZE;
+            for (int bx = 0; bx * ImageComparison.BLOCK_SIZE < width; bx++) {
+                int x = bx * ImageComparison.BLOCK_SIZE;
+                int end = Math.min(x + ImageComparison.BLOCK_SIZE, width);
+                if (ignoreMask.isBlockIgnored(bx, by)) {
+                    Arrays.fill(row, x, end, 0);
+                    continue;
+                }
+                int[] ignoredPixels = ignoreMask.getIgnoredPixels(bx, by);
+                if (ignoredPixels == null) {
+                    continue;
+                }
+                int bits = ignoredPixels[y % ImageComparison.BLOCK_SIZE];
+                for (int i = 0; x + i < end; i++) {
+                    if ((bits & (1 << i)) != 0) {
+                        row[x + i] = 0;
+                    }
+                }
+            }
+            hasher.update(row, 0, width, 0x00FFFFFF);
+        }
+        hasher.update(width);
+        hasher.update(height);
+        return hasher.digest();
+    }
 
-                // Skip the two last bits for fuzzy comparison
-                data[idx++] = (byte) ((rgb >> 16));
-                data[idx++] = (byte) ((rgb >> 8));
-                data[idx++] = (byte) (rgb);
+    /**
+     * Generates a perceptual difference hash (dHash) of the image. The image
+     * is scaled down to 9x8 cells of average luminance, and each bit of the
+     * hash tells if a cell is brighter than its right neighbor. Images which
+     * look alike have hashes which differ only in a few bits, regardless of
+     * their size, see {@link #getHammingDistance(long, long)}.
+     * <p>
+     * Useful for finding reference images which are near duplicates of each
+     * other. Not suitable for deciding if a screenshot matches a reference
+     * image, as small differences do not change the hash.
+     * 
+     * @param image
+     *            the image
+     * @return the 64-bit perceptual hash
+     */
+    public static long generatePerceptualHash(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] luminance = new long[DHASH_COLUMNS * DHASH_ROWS];
+        long[] counts = new long[DHASH_COLUMNS * DHASH_ROWS];
+
+        // Map each pixel column to its cell column once
+        int[] cellX = new int[width];
+        for (int x = 0; x < width; x++) {
+            cellX[x] = (int) ((long) x * DHASH_COLUMNS / width);
+        }
+        ImageProperties properties = null;
+        if (ImageUtil.hasPackedPixels(image)) {
+            properties = ImageUtil.getImageProperties(image);
+        }
+        int[] row = properties != null ? properties.getPixels()
+                : new int[width];
+        for (int y = 0; y < height; y++) {
+            int offset;
+            if (properties != null) {
+                offset = properties.getOffset(0, y);
+            } else {
+                ImageUtil.getRGBRow(image, y, row);
+                offset = 0;
+            }
+            int cellRow = (int) ((long) y * DHASH_ROWS / height)
+                    * DHASH_COLUMNS;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[offset + x];
+                int cell = cellRow + cellX[x];
+                // Integer approximation of the luminance, see
+                // ImageUtil.getLuminance
+                luminance[cell] += ((rgb >> 16) & 0xff) * 77
+                        + ((rgb >> 8) & 0xff) * 150 + (rgb & 0xff) * 29;
+                counts[cell]++;
             }
         }
 
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(data);
-            String hash = byteToHex(md5.digest());
-            return hash;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 algorithm provider not found", e);
+        long hash = 0;
+        for (int y = 0; y < DHASH_ROWS; y++) {
+            for (int x = 0; x < DHASH_COLUMNS - 1; x++) {
+                int cell = y * DHASH_COLUMNS + x;
+                // Compare the averages without dividing
+                if (luminance[cell] * counts[cell + 1] > luminance[cell + 1]
+                        * counts[cell]) {
+                    hash |= 1L << (y * (DHASH_COLUMNS - 1) + x);
+                }
+            }
         }
+        return hash;
     }
 
-    private static String byteToHex(byte[] bytes) {
-        String hex = "";
-        for (int i = 0; i < bytes.length; i++) {
-            hex += Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1);
-        }
-        return hex;
+    /**
+     * Returns the number of bits which differ between two perceptual hashes.
+     * Hashes of the same image differ by 0 bits, hashes of unrelated images by
+     * about 32 bits. A distance of 10 or less usually means that the images
+     * look alike.
+     * 
+     * @param hash1
+     *            a hash generated with
+     *            {@link #generatePerceptualHash(BufferedImage)}
+     * @param hash2
+     *            another hash
+     * @return the number of differing bits, between 0 and 64
+     */
+    public static int getHammingDistance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
     }
 
     /**
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes screenshots and reference images to images with the pixels packed
+ * in an int array, which are compared without converting the pixels first
+ * (see {@link ImageUtil#getImageProperties(BufferedImage)}). Images which
+ * cannot be decoded to packed pixels are decoded as by {@link ImageIO}.
+ * <p>
+ * Screenshots are decoded into pixel buffers reused by the same thread. A
+ * screenshot which is no longer referenced anywhere is handed back with
+ * {@link #release(BufferedImage)} and the next screenshot of the same size is
+ * decoded into it, so that retries and tests of the same screen size do not
+ * allocate a new image for every screenshot. Each thread keeps at most one
+ * released image, softly referenced so that it can be reclaimed when memory
+ * runs low.
+ */
+public class ImageDecoder {
+
+    private static final ThreadLocal<SoftReference<BufferedImage>> releasedImage = new ThreadLocal<SoftReference<BufferedImage>>();
+
+    private ImageDecoder() {
+    }
+
+    /**
+     * Decodes a screenshot, reusing the pixel buffer of the image last
+     * released by this thread if it has the same size and type.
+     *
+     * @param data
+     *            the encoded screenshot, e.g. a PNG image
+     * @return the decoded screenshot, or null if the format is not supported
+     * @throws IOException
+     *             if the screenshot could not be decoded
+     */
+    public static BufferedImage decodeScreenshot(byte[] data)
+            throws IOException {
+        BufferedImage reusable = null;
+        SoftReference<BufferedImage> reference = releasedImage.get();
+        if (reference != null) {
+            reusable = reference.get();
+            releasedImage.remove();
+        }
+        return decode(
+                ImageIO.createImageInputStream(new ByteArrayInputStream(data)),
+                reusable);
+    }
+
+    /**
+     * Hands back a screenshot returned by {@link #decodeScreenshot(byte[])}
+     * so that its pixel buffer can be reused for the next screenshot decoded
+     * by this thread. The image, or any sub image of it, must not be used
+     * after this, e.g. it must not be waiting to be written by
+     * {@link ErrorFileWriter}.
+     *
+     * @param image
+     *            the screenshot which is no longer used, or null to do
+     *            nothing
+     */
+    public static void release(BufferedImage image) {
+        if (image != null && isPackedType(image.getType())
+                && image.getRaster().getParent() == null) {
+            releasedImage.set(new SoftReference<BufferedImage>(image));
+        }
+    }
+
+    /**
+     * Decodes an image file. The image is never decoded into a reused pixel
+     * buffer.
+     *
+     * @param file
+     *            the image file
+     * @return the decoded image, or null if the format is not supported
+     * @throws IOException
+     *             if the file could not be read or decoded
+     */
+    public static BufferedImage read(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new IIOException("Can't read input file " + file);
+        }
+        return decode(ImageIO.createImageInputStream(file), null);
+    }
+
+    private static BufferedImage decode(ImageInputStream in,
+            BufferedImage reusable) throws IOException {
+        if (in == null) {
+            throw new IIOException("Can't create an ImageInputStream");
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                ImageTypeSpecifier packedType = getPackedType(reader);
+                if (packedType != null) {
+                    if (reusable != null
+                            && reusable.getType() == packedType
+                                    .getBufferedImageType()
+                            && reusable.getWidth() == reader.getWidth(0)
+                            && reusable.getHeight() == reader.getHeight(0)) {
+                        // Every pixel is overwritten
+                        param.setDestination(reusable);
+                    } else {
+                        param.setDestinationType(packedType);
+                    }
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the packed int type the reader can decode the image to, or null
+     * if the image can only be decoded to other types.
+     */
+    private static ImageTypeSpecifier getPackedType(ImageReader reader)
+            throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        while (types.hasNext()) {
+            ImageTypeSpecifier type = types.next();
+            if (isPackedType(type.getBufferedImageType())) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isPackedType(int imageType) {
+        return imageType == BufferedImage.TYPE_INT_RGB
+                || imageType == BufferedImage.TYPE_INT_ARGB;
+    }
+}
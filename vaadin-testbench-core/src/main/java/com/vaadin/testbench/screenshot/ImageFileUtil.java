@@ -17,8 +17,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-
-import javax.imageio.ImageIO;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.openqa.selenium.Capabilities;
 
@@ -57,7 +57,8 @@ public class ImageFileUtil {
     }
 
     /**
-     * Reads the given reference image into a BufferedImage
+     * Reads the given reference image into a BufferedImage. The returned image
+     * may be shared with other callers and must not be modified.
      * 
      * @param referenceImageFileName
      * @return
@@ -68,6 +69,62 @@ public class ImageFileUtil {
         return impl.readReferenceImage(referenceImageFileName);
     }
 
+    /**
+     * Returns the cache used for decoded reference images.
+     * 
+     * @return the reference image cache, or null if caching is disabled
+     */
+    public static ReferenceImageCache getReferenceImageCache() {
+        return impl.getReferenceImageCache();
+    }
+
+    /**
+     * Returns the hash index of the reference images.
+     * 
+     * @return the reference hash index, or null if the index is not used
+     */
+    public static ReferenceHashIndex getReferenceHashIndex() {
+        return impl.getReferenceHashIndex();
+    }
+
+    /**
+     * Returns the block hashes of the reference images.
+     * 
+     * @return the reference block hashes, or null if block hashes are not
+     *         used
+     */
+    public static ReferenceBlockHashes getReferenceBlockHashes() {
+        return impl.getReferenceBlockHashes();
+    }
+
+    /**
+     * Returns the manifest of the content addressed reference images.
+     * 
+     * @return the reference manifest, or null if there is no manifest
+     */
+    public static ReferenceManifest getReferenceManifest() {
+        return impl.getReferenceManifest();
+    }
+
+    /**
+     * Returns the pack of reference images.
+     * 
+     * @return the reference pack, or null if no pack is used
+     */
+    public static ReferencePack getReferencePack() {
+        return impl.getReferencePack();
+    }
+
+    /**
+     * Replaces the implementation used by the static methods in this class.
+     * 
+     * @param implementation
+     *            the new implementation, not null
+     */
+    public static void setImplementation(ImageFileUtilImpl implementation) {
+        impl = implementation;
+    }
+
     public static File getErrorScreenshotFile(String errorImageFileName) {
         return impl.getErrorScreenshotFile(errorImageFileName);
     }
@@ -92,6 +149,14 @@ public class ImageFileUtil {
     }
 
     public static class ImageFileUtilImpl {
+
+        private ReferenceImageCache referenceImageCache = null;
+        private ReferenceHashIndex referenceHashIndex = null;
+        private ReferenceBlockHashes referenceBlockHashes = null;
+        private ReferencePack referencePack = null;
+        private ReferenceManifest referenceManifest = null;
+        private final ReferenceDirectoryIndex referenceDirectoryIndex = new ReferenceDirectoryIndex();
+
         /**
          * Returns the directory used for screenshot references.
          * 
@@ -144,7 +209,8 @@ public class ImageFileUtil {
         }
 
         /**
-         * Reads the given reference image into a BufferedImage
+         * Reads the given reference image into a BufferedImage. The returned
+         * image may be shared with other callers and must not be modified.
          * 
          * @param referenceImageFileName
          * @return
@@ -152,8 +218,168 @@ public class ImageFileUtil {
          */
         public BufferedImage readReferenceImage(String referenceImageFileName)
                 throws IOException {
-            return ImageIO
-                    .read(getReferenceScreenshotFile(referenceImageFileName));
+            File file = getReferenceScreenshotFile(referenceImageFileName);
+            ReferenceImageCache cache = getReferenceImageCache();
+            if (!getReferenceDirectoryIndex().exists(file)) {
+                ReferenceManifest manifest = getReferenceManifest();
+                if (manifest != null
+                        && manifest.contains(referenceImageFileName)) {
+                    // Identical references share the file and the cache entry
+                    file = manifest.getImageFile(referenceImageFileName);
+                } else {
+                    ReferencePack pack = getReferencePack();
+                    if (pack != null && pack.contains(referenceImageFileName)) {
+                        if (cache == null) {
+                            return pack.readImage(referenceImageFileName);
+                        }
+                        return cache.getImage(pack, referenceImageFileName);
+                    }
+                }
+            }
+            if (cache == null) {
+                return ImageDecoder.read(file);
+            }
+            return cache.getImage(file);
+        }
+
+        /**
+         * Returns the cache used for decoded reference images. The cache is
+         * sized according to
+         * {@link Parameters#getScreenshotReferenceCacheSize()} and re-created
+         * if the size changes. Override to use a custom cache.
+         * 
+         * @return the reference image cache, or null if caching is disabled
+         */
+        public synchronized ReferenceImageCache getReferenceImageCache() {
+            long maxSize = Parameters.getScreenshotReferenceCacheSize()
+                    * 1024L * 1024L;
+            if (maxSize <= 0) {
+                referenceImageCache = null;
+            } else if (referenceImageCache == null
+                    || referenceImageCache.getMaxSize() != maxSize) {
+                referenceImageCache = new ReferenceImageCache(maxSize);
+            }
+            return referenceImageCache;
+        }
+
+        /**
+         * Returns the hash index of the reference images in the reference
+         * directory if enabled using
+         * {@link Parameters#setScreenshotReferenceHashIndex(boolean)}. The
+         * index is re-created if the reference directory changes.
+         * 
+         * @return the reference hash index, or null if the index is not used
+         */
+        public synchronized ReferenceHashIndex getReferenceHashIndex() {
+            if (!Parameters.isScreenshotReferenceHashIndex()
+                    || getScreenshotReferenceDirectory() == null) {
+                referenceHashIndex = null;
+                return null;
+            }
+            File directory = new File(getScreenshotReferenceDirectory());
+            if (referenceHashIndex == null
+                    || !referenceHashIndex.getDirectory().equals(directory)) {
+                referenceHashIndex = new ReferenceHashIndex(directory);
+            }
+            return referenceHashIndex;
+        }
+
+        /**
+         * Returns the block hashes of the reference images in the reference
+         * directory if enabled using
+         * {@link Parameters#setScreenshotReferenceBlockHashes(boolean)}.
+         * 
+         * @return the reference block hashes, or null if block hashes are not
+         *         used
+         */
+        public synchronized ReferenceBlockHashes getReferenceBlockHashes() {
+            if (!Parameters.isScreenshotReferenceBlockHashes()
+                    || getScreenshotReferenceDirectory() == null) {
+                referenceBlockHashes = null;
+                return null;
+            }
+            File directory = new File(getScreenshotReferenceDirectory());
+            if (referenceBlockHashes == null
+                    || !referenceBlockHashes.getDirectory().equals(directory)) {
+                referenceBlockHashes = new ReferenceBlockHashes(directory);
+            }
+            return referenceBlockHashes;
+        }
+
+        /**
+         * Returns the manifest of the content addressed reference images if
+         * the {@value ReferenceManifest#MANIFEST_FILE_NAME} file exists in the
+         * reference directory. The manifest is read again if the file
+         * changes. Reference image files in the reference directory take
+         * precedence over the images in the manifest.
+         * 
+         * @return the reference manifest, or null if there is no manifest
+         */
+        public synchronized ReferenceManifest getReferenceManifest() {
+            File manifestFile = null;
+            if (getScreenshotReferenceDirectory() != null) {
+                manifestFile = new File(getScreenshotReferenceDirectory(),
+                        ReferenceManifest.MANIFEST_FILE_NAME);
+                if (!getReferenceDirectoryIndex().exists(manifestFile)) {
+                    manifestFile = null;
+                }
+            }
+            if (referenceManifest != null
+                    && (manifestFile == null || !referenceManifest
+                            .isUpToDate(manifestFile))) {
+                referenceManifest = null;
+            }
+            if (referenceManifest == null && manifestFile != null) {
+                try {
+                    referenceManifest = ReferenceManifest.open(manifestFile);
+                } catch (IOException e) {
+                    Logger.getLogger(ImageFileUtil.class.getName()).log(
+                            Level.WARNING,
+                            "Could not read reference manifest "
+                                    + manifestFile, e);
+                }
+            }
+            return referenceManifest;
+        }
+
+        /**
+         * Returns the pack of reference images in the reference directory if
+         * enabled using
+         * {@link Parameters#setScreenshotReferencePack(boolean)} and the pack
+         * file exists. The pack is opened again if the pack file changes.
+         * Reference image files in the reference directory take precedence
+         * over the images in the pack.
+         * 
+         * @return the reference pack, or null if no pack is used
+         */
+        public synchronized ReferencePack getReferencePack() {
+            File packFile = null;
+            if (Parameters.isScreenshotReferencePack()
+                    && getScreenshotReferenceDirectory() != null) {
+                packFile = new File(getScreenshotReferenceDirectory(),
+                        ReferencePack.PACK_FILE_NAME);
+            }
+            if (referencePack != null
+                    && (packFile == null || !referencePack
+                            .isUpToDate(packFile))) {
+                try {
+                    referencePack.close();
+                } catch (IOException e) {
+                    // Only a read handle, nothing is lost
+                }
+                referencePack = null;
+            }
+            if (referencePack == null && packFile != null
+                    && packFile.exists()) {
+                try {
+                    referencePack = ReferencePack.open(packFile);
+                } catch (IOException e) {
+                    Logger.getLogger(ImageFileUtil.class.getName()).log(
+                            Level.WARNING,
+                            "Could not open reference pack " + packFile, e);
+                }
+            }
+            return referencePack;
         }
 
         public File getErrorScreenshotFile(String errorImageFileName) {
@@ -179,18 +405,39 @@ public class ImageFileUtil {
             ArrayList<String> referenceImages = new ArrayList<String>();
             String nextName = findActualFileName(referenceImageFileName,
                     capabilities);
-            File file = getReferenceScreenshotFile(nextName);
             int i = 1;
-            while (file.exists()) {
+            while (referenceExists(nextName)) {
                 referenceImages.add(nextName);
                 nextName = referenceImageFileName.replace(".png",
                         String.format("_%d.png", i++));
-                file = getReferenceScreenshotFile(nextName);
             }
 
             return referenceImages;
         }
 
+        /**
+         * Returns the index used for looking up reference images without
+         * probing the file system for each candidate file name.
+         * 
+         * @return the reference directory index
+         */
+        public ReferenceDirectoryIndex getReferenceDirectoryIndex() {
+            return referenceDirectoryIndex;
+        }
+
+        private boolean referenceExists(String referenceImageFileName) {
+            if (getReferenceDirectoryIndex().exists(
+                    getReferenceScreenshotFile(referenceImageFileName))) {
+                return true;
+            }
+            ReferenceManifest manifest = getReferenceManifest();
+            if (manifest != null && manifest.contains(referenceImageFileName)) {
+                return true;
+            }
+            ReferencePack pack = getReferencePack();
+            return pack != null && pack.contains(referenceImageFileName);
+        }
+
         private String findActualFileName(String referenceFileName,
                 Capabilities cap) {
             if (cap == null) {
@@ -218,25 +465,45 @@ public class ImageFileUtil {
          */
         String findOldReferenceScreenshot(String browserName,
                 int browserVersion, String fileName) {
-            String newFileName = new String(fileName);
-            if (!ImageFileUtil.getReferenceScreenshotFile(fileName).exists()) {
+            String newFileName = fileName;
+            if (!referenceExists(fileName)) {
                 String navigatorId = browserName + "_" + browserVersion;
-                int nextVersion = browserVersion;
-                String fileNameTemplate = fileName.replace(navigatorId, "####");
-                do {
-                    nextVersion--;
-                    newFileName = fileNameTemplate.replace("####",
-                            String.format("%s_%d", browserName, nextVersion));
-                } while (!ImageFileUtil.getReferenceScreenshotFile(newFileName)
-                        .exists() && nextVersion > 0);
-                // We didn't find any existing screenshot for any older
-                // versions of the browser.
-                if (nextVersion == 0) {
-                    newFileName = fileName;
+                String fileNameTemplate = fileName.replace(navigatorId,
+                        browserName + "_"
+                                + ReferenceDirectoryIndex.VARIANT_PLACEHOLDER);
+                Integer previousVersion = getReferenceDirectoryIndex()
+                        .findPreviousVariant(
+                                getReferenceScreenshotFile(fileNameTemplate),
+                                browserVersion);
+                ReferenceManifest manifest = getReferenceManifest();
+                if (manifest != null) {
+                    previousVersion = max(previousVersion,
+                            manifest.findPreviousVariant(fileNameTemplate,
+                                    browserVersion));
+                }
+                ReferencePack pack = getReferencePack();
+                if (pack != null) {
+                    previousVersion = max(previousVersion,
+                            pack.findPreviousVariant(fileNameTemplate,
+                                    browserVersion));
+                }
+                // If there is no existing screenshot for any older version of
+                // the browser, the generated file name is used.
+                if (previousVersion != null) {
+                    newFileName = fileNameTemplate.replace(
+                            ReferenceDirectoryIndex.VARIANT_PLACEHOLDER,
+                            previousVersion.toString());
                 }
             }
             return newFileName;
         }
 
+        private static Integer max(Integer version, Integer other) {
+            if (version == null || other != null && other > version) {
+                return other;
+            }
+            return version;
+        }
+
     }
 }
@@ -12,12 +12,18 @@
  */
 package com.vaadin.testbench.screenshot;
 
+import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.Raster;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
@@ -35,14 +41,67 @@ public class ImageUtil {
     /**
      * Contains ImageUtil-internal information about an image. Used by
      * getBlock() method.
+     * <p>
+     * The pixels of the image are available as packed ARGB values in a single
+     * int array. For TYPE_INT_RGB and TYPE_INT_ARGB images the array is the
+     * backing DataBufferInt of the image, for all other image types the image
+     * is converted once when the properties are created. The pixel at (x,y) is
+     * found at {@code getOffset(x, y)} and should be combined with
+     * {@link #getAlphaMask()} before use, as TYPE_INT_RGB pixels lack an alpha
+     * channel.
      */
     public static class ImageProperties {
         private BufferedImage image = null;
-        private Raster raster = null;
-        private boolean alpha = false;
-        private boolean fallback = false;
+        private int[] pixels = null;
+        private int offset = 0;
+        private int scanlineStride = 0;
+        private int alphaMask = 0;
         private int width = 0;
         private int height = 0;
+
+        /**
+         * @return the packed ARGB pixels of the image
+         */
+        public int[] getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return the index of the pixel at (x,y) in {@link #getPixels()}
+         */
+        public int getOffset(int x, int y) {
+            return offset + y * scanlineStride + x;
+        }
+
+        /**
+         * @return the distance between vertically adjacent pixels in
+         *         {@link #getPixels()}
+         */
+        public int getScanlineStride() {
+            return scanlineStride;
+        }
+
+        /**
+         * @return a mask that should be OR:ed with all pixel values to get
+         *         the correct alpha channel
+         */
+        public int getAlphaMask() {
+            return alphaMask;
+        }
+
+        /**
+         * @return the width of the image
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * @return the height of the image
+         */
+        public int getHeight() {
+            return height;
+        }
     }
 
     /**
@@ -149,7 +208,9 @@ public class ImageUtil {
     }
 
     /**
-     * Extract magical image properties used by the getBlock function.
+     * Extract magical image properties used by the getBlock function. The
+     * pixels of the image are normalized into packed ARGB values once, or read
+     * directly from the backing DataBufferInt when possible.
      * 
      * @param image
      *            a BufferedImage
@@ -160,19 +221,104 @@ public class ImageUtil {
         final int imageType = image.getType();
         ImageProperties p = new ImageProperties();
         p.image = image;
-        p.raster = image.getRaster();
-        p.alpha = imageType == TYPE_INT_ARGB
-                || imageType == BufferedImage.TYPE_4BYTE_ABGR;
-        boolean rgb = imageType == TYPE_INT_ARGB || imageType == TYPE_INT_RGB;
-        boolean bgr = imageType == BufferedImage.TYPE_INT_BGR
-                || imageType == BufferedImage.TYPE_3BYTE_BGR
-                || imageType == BufferedImage.TYPE_4BYTE_ABGR;
         p.width = image.getWidth();
         p.height = image.getHeight();
-        p.fallback = !(rgb || bgr);
+
+        final WritableRaster raster = image.getRaster();
+        if (hasPackedPixels(image)) {
+            // Use the pixel data as is, also for sub images which share the
+            // data buffer of the parent image
+            final DataBufferInt dataBuffer = (DataBufferInt) raster
+                    .getDataBuffer();
+            final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster
+                    .getSampleModel();
+            p.pixels = dataBuffer.getData();
+            p.scanlineStride = sampleModel.getScanlineStride();
+            p.offset = dataBuffer.getOffset()
+                    - raster.getSampleModelTranslateY() * p.scanlineStride
+                    - raster.getSampleModelTranslateX();
+            p.alphaMask = imageType == TYPE_INT_ARGB ? 0 : 0xff000000;
+        } else {
+            // Convert all other image types to ARGB once
+            p.pixels = image.getRGB(0, 0, p.width, p.height, null, 0,
+                    p.width);
+            p.scanlineStride = p.width;
+            p.offset = 0;
+            p.alphaMask = image.getColorModel().hasAlpha() ? 0 : 0xff000000;
+        }
         return p;
     }
 
+    /**
+     * Checks if the pixels of the image are stored as packed ARGB or RGB values
+     * in an int array, which can be used without converting the image.
+     * 
+     * @param image
+     *            a BufferedImage
+     * @return true if the pixel data can be used as is
+     */
+    static boolean hasPackedPixels(BufferedImage image) {
+        final int imageType = image.getType();
+        final WritableRaster raster = image.getRaster();
+        return (imageType == TYPE_INT_ARGB || imageType == TYPE_INT_RGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel;
+    }
+
+    /**
+     * Reads a row of pixels as packed ARGB values, like
+     * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}. The
+     * pixel data of TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR images, which PNG
+     * images are usually decoded to, is read directly without the color model.
+     * 
+     * @param image
+     *            a BufferedImage
+     * @param y
+     *            the y coordinate of the row
+     * @param row
+     *            the array to store the pixels in, at least as long as the
+     *            image width
+     */
+    static void getRGBRow(BufferedImage image, int y, int[] row) {
+        final int imageType = image.getType();
+        final WritableRaster raster = image.getRaster();
+        final int width = image.getWidth();
+        if ((imageType != TYPE_3BYTE_BGR && imageType != TYPE_4BYTE_ABGR)
+                || !(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            return;
+        }
+        final DataBufferByte dataBuffer = (DataBufferByte) raster
+                .getDataBuffer();
+        final PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster
+                .getSampleModel();
+        final byte[] data = dataBuffer.getData();
+        final int pixelStride = sampleModel.getPixelStride();
+        final int[] bandOffsets = sampleModel.getBandOffsets();
+        // Sub images share the data buffer of the parent image
+        int p = dataBuffer.getOffset()
+                + (y - raster.getSampleModelTranslateY())
+                * sampleModel.getScanlineStride()
+                - raster.getSampleModelTranslateX() * pixelStride;
+        final int r = p + bandOffsets[0];
+        final int g = p + bandOffsets[1];
+        final int b = p + bandOffsets[2];
+        if (imageType == TYPE_4BYTE_ABGR) {
+            final int a = p + bandOffsets[3];
+            for (int x = 0, i = 0; x < width; x++, i += pixelStride) {
+                row[x] = (data[a + i] & 0xff) << 24
+                        | (data[r + i] & 0xff) << 16
+                        | (data[g + i] & 0xff) << 8 | (data[b + i] & 0xff);
+            }
+        } else {
+            for (int x = 0, i = 0; x < width; x++, i += pixelStride) {
+                row[x] = 0xff000000 | (data[r + i] & 0xff) << 16
+                        | (data[g + i] & 0xff) << 8 | (data[b + i] & 0xff);
+            }
+        }
+    }
+
     /**
      * Returns the 16x16 RGB block starting at (x,y) from the given image
      * 
@@ -186,10 +332,8 @@ public class ImageUtil {
      *            A sample buffer (32 bits per pixel) for storing the resulting
      *            block, or null (a new buffer will be created)
      * @param sample
-     *            A sample buffer for storing intermediate values, or null (a
-     *            new buffer will be created). This parameter is provided mainly
-     *            for speed (providing it eliminates unnecessary block
-     *            allocations).
+     *            Not used, the pixels are copied directly from the normalized
+     *            pixel data of the image. Kept for compatibility.
      * @return An array of RGB values for the block
      */
     public static final int[] getBlock(final ImageProperties properties, int x,
@@ -202,10 +346,6 @@ public class ImageUtil {
             result = new int[16 * 16];
         }
 
-        if (sample == null) {
-            sample = new int[16 * 16 * 4];
-        }
-
         if (x + 16 >= properties.width) {
             width = properties.width - x;
         } else {
@@ -218,48 +358,19 @@ public class ImageUtil {
             height = 16;
         }
 
-        final int l = width * height;
-
-        if (properties.fallback) {
-
-            properties.image.getRGB(x, y, width, height, result, 0, width);
-
-        } else {
-
-            // NOTE: Apparently raster.getPixels() standardises channel
-            // order in the retrieved sample.
-            // NOTE: if this is NOT the case, provide system info and
-            // relevant screenshot & reference for new integration test
-            properties.raster.getPixels(x, y, width, height, sample);
-
-            if (properties.alpha) {
-
-                int p = 0;
-                for (int i = 0; i < l; ++i) {
-                    result[i] = (sample[p + 3] << 24) // A
-                            | (sample[p] << 16) // R
-                            | (sample[p + 1] << 8) // G
-                            | sample[p + 2]; // B
-                    p += 4;
-                }
-
-            } else {
-
-                int p = 0;
-                for (int i = 0; i < l; ++i) {
-                    result[i] = (255 << 24) // A
-                            | (sample[p] << 16) // R
-                            | (sample[p + 1] << 8) // G
-                            | sample[p + 2]; // B
-                    p += 3;
-                }
-
+        final int[] pixels = properties.pixels;
+        final int alphaMask = properties.alphaMask;
+        int p = properties.getOffset(x, y);
+        int i = 0;
+        for (int row = 0; row < height; ++row) {
+            for (int col = 0; col < width; ++col) {
+                result[i++] = pixels[p + col] | alphaMask;
             }
-
+            p += properties.scanlineStride;
         }
 
         // Fill the rest with zeros
-        for (int i = l, max = result.length; i < max; ++i) {
+        for (int max = result.length; i < max; ++i) {
             result[i] = 0;
         }
 
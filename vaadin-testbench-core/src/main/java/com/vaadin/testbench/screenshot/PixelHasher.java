@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+/**
+ * A streaming 128-bit MurmurHash3 (x64 variant) of packed pixel values. The
+ * pixels are hashed four at a time, so the result does not depend on how the
+ * pixels are split between the calls to {@link #update(int[], int, int, int)}.
+ * <p>
+ * Not a cryptographic hash, but collisions between different images are
+ * practically impossible for images which have not been constructed for that
+ * purpose.
+ */
+class PixelHasher {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5812d5ee47f4fL;
+
+    private long h1 = 0;
+    private long h2 = 0;
+    private long length = 0;
+
+    // Pixels waiting for a full 16 byte block
+    private final int[] pending = new int[4];
+    private int pendingCount = 0;
+
+    /**
+     * Adds pixels to the hash.
+     *
+     * @param pixels
+     *            the pixel array
+     * @param offset
+     *            the index of the first pixel to hash
+     * @param count
+     *            the number of pixels to hash
+     * @param mask
+     *            the bits of each pixel to hash
+     */
+    public void update(int[] pixels, int offset, int count, int mask) {
+        length += 4L * count;
+        int end = offset + count;
+        while (pendingCount > 0 && offset < end) {
+            pending[pendingCount++] = pixels[offset++] & mask;
+            if (pendingCount == 4) {
+                mix(pending[0], pending[1], pending[2], pending[3]);
+                pendingCount = 0;
+            }
+        }
+        for (; offset + 4 <= end; offset += 4) {
+            mix(pixels[offset] & mask, pixels[offset + 1] & mask,
+                    pixels[offset + 2] & mask, pixels[offset + 3] & mask);
+        }
+        while (offset < end) {
+            pending[pendingCount++] = pixels[offset++] & mask;
+        }
+    }
+
+    /**
+     * Adds a single value to the hash.
+     *
+     * @param value
+     *            the value to hash
+     */
+    public void update(int value) {
+        update(new int[] { value }, 0, 1, 0xffffffff);
+    }
+
+    private void mix(int p0, int p1, int p2, int p3) {
+        long k1 = (p0 & 0xffffffffL) | ((long) p1 << 32);
+        long k2 = (p2 & 0xffffffffL) | ((long) p3 << 32);
+
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1) {
+        return Long.rotateLeft(k1 * C1, 31) * C2;
+    }
+
+    private static long mixK2(long k2) {
+        return Long.rotateLeft(k2 * C2, 33) * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Finishes the hash. The hasher must not be used afterwards.
+     *
+     * @return the hash as a 32 character hex string
+     */
+    public String digest() {
+        if (pendingCount > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = 0; i < pendingCount; i++) {
+                long pixel = pending[i] & 0xffffffffL;
+                if (i < 2) {
+                    k1 |= pixel << (32 * i);
+                } else {
+                    k2 |= pixel << (32 * (i - 2));
+                }
+            }
+            if (pendingCount > 2) {
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return toHex(h1) + toHex(h2);
+    }
+
+    private static String toHex(long value) {
+        char[] hex = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            hex[i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * Hashes of the 16x16 blocks of the reference images in a directory. The
+ * hashes of each reference image are stored in a file next to the image, with
+ * {@value #FILE_SUFFIX} appended to the image file name. The hashes are only
+ * used as long as the modification time and size of the reference image file
+ * stay the same.
+ * <p>
+ * When comparing a screenshot to a reference image with block hashes, each
+ * block of the screenshot is hashed and only the blocks with a different hash
+ * are compared pixel by pixel. The hashes of the images in a
+ * {@link ReferenceManifest} are stored next to the image in the blob
+ * directory. Images read from a reference pack have no block hashes.
+ */
+public class ReferenceBlockHashes {
+
+    /**
+     * The suffix of the block hash files.
+     */
+    public static final String FILE_SUFFIX = ".blockhashes";
+
+    /**
+     * The version of the block hash file format. Files of other versions are
+     * ignored and rewritten.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ReferenceBlockHashes.class.getName());
+    }
+
+    private final File directory;
+
+    /**
+     * Creates a block hash store for the reference images in the given
+     * directory.
+     *
+     * @param directory
+     *            the reference directory
+     */
+    public ReferenceBlockHashes(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the reference directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the block hashes of the given reference image, reading them from
+     * the block hash file if it is up to date and otherwise hashing the image
+     * and writing the hashes to the file.
+     *
+     * @param referenceFileName
+     *            the file name of the reference image, relative to the
+     *            reference directory
+     * @param referenceImage
+     *            the decoded reference image
+     * @return the hash of each block, row by row, or null if the reference
+     *         image is neither a file in the reference directory nor in the
+     *         reference manifest
+     */
+    public long[] getHashes(String referenceFileName,
+            BufferedImage referenceImage) {
+        File file = new File(directory, referenceFileName);
+        if (!file.exists()) {
+            // Identical images in a manifest share the image file and the
+            // hashes
+            ReferenceManifest manifest = ReferenceManifest
+                    .getManifest(directory);
+            file = manifest == null ? null : manifest
+                    .getImageFile(referenceFileName);
+            if (file == null || !file.exists()) {
+                return null;
+            }
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        File hashFile = new File(file.getPath() + FILE_SUFFIX);
+        int width = referenceImage.getWidth();
+        int height = referenceImage.getHeight();
+        if (hashFile.exists()) {
+            try {
+                long[] hashes = read(hashFile, lastModified, length, width,
+                        height);
+                if (hashes != null) {
+                    return hashes;
+                }
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING,
+                        "Could not read block hashes " + hashFile, e);
+            }
+        }
+
+        long[] hashes = hashBlocks(ImageUtil
+                .getImageProperties(referenceImage));
+        try {
+            write(hashFile, lastModified, length, width, height, hashes);
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not write block hashes " + hashFile, e);
+        }
+        return hashes;
+    }
+
+    private static long[] read(File hashFile, long lastModified, long length,
+            int width, int height) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(hashFile)));
+        try {
+            if (in.readInt() != FORMAT_VERSION
+                    || in.readLong() != lastModified
+                    || in.readLong() != length || in.readInt() != width
+                    || in.readInt() != height) {
+                return null;
+            }
+            long[] hashes = new long[ImageComparisonUtil.getNrBlocks(width)
+                    * ImageComparisonUtil.getNrBlocks(height)];
+            byte[] data = new byte[hashes.length * 8];
+            in.readFully(data);
+            ByteBuffer.wrap(data).asLongBuffer().get(hashes);
+            return hashes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(File hashFile, long lastModified, long length,
+            int width, int height, long[] hashes) throws IOException {
+        // Write to a temporary file first so that concurrent readers never
+        // see a partially written file
+        File tempFile = new File(hashFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeInt(width);
+            out.writeInt(height);
+            for (long hash : hashes) {
+                out.writeLong(hash);
+            }
+        } finally {
+            out.close();
+        }
+        hashFile.delete();
+        if (!tempFile.renameTo(hashFile)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to "
+                    + hashFile);
+        }
+    }
+
+    /**
+     * Hashes each 16x16 block of the image.
+     *
+     * @param image
+     *            the properties of the image
+     * @return the hash of each block, row by row
+     */
+    static long[] hashBlocks(ImageProperties image) {
+        int xBlocks = ImageComparisonUtil.getNrBlocks(image.getWidth());
+        int yBlocks = ImageComparisonUtil.getNrBlocks(image.getHeight());
+        long[] hashes = new long[xBlocks * yBlocks];
+        int i = 0;
+        for (int y = 0; y < image.getHeight(); y += 16) {
+            for (int x = 0; x < image.getWidth(); x += 16) {
+                hashes[i++] = hashBlock(image, x, y,
+                        Math.min(16, image.getWidth() - x),
+                        Math.min(16, image.getHeight() - y));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Hashes the RGB values of a block of the image. The pixels of each row
+     * are hashed in four independent lanes so that the rounds can run in
+     * parallel. Each round and the final combination of the lanes are
+     * invertible, so blocks differing in a single pixel always have different
+     * hashes.
+     *
+     * @param image
+     *            the properties of the image
+     * @param x
+     *            the x coordinate of the block
+     * @param y
+     *            the y coordinate of the block
+     * @param width
+     *            the width of the block
+     * @param height
+     *            the height of the block
+     * @return the hash of the block
+     */
+    static long hashBlock(ImageProperties image, int x, int y, int width,
+            int height) {
+        final int[] pixels = image.getPixels();
+        final int stride = image.getScanlineStride();
+        long h0 = 0;
+        long h1 = 1;
+        long h2 = 2;
+        long h3 = 3;
+        int offset = image.getOffset(x, y);
+        final int fullWidth = width & ~3;
+        for (int row = 0; row < height; row++) {
+            int i = offset;
+            final int end = offset + fullWidth;
+            for (; i < end; i += 4) {
+                h0 = mix(h0 + (pixels[i] & 0x00ffffff));
+                h1 = mix(h1 + (pixels[i + 1] & 0x00ffffff));
+                h2 = mix(h2 + (pixels[i + 2] & 0x00ffffff));
+                h3 = mix(h3 + (pixels[i + 3] & 0x00ffffff));
+            }
+            // Narrow blocks at the right edge of the image
+            for (; i < offset + width; i++) {
+                h0 = mix(h0 + (pixels[i] & 0x00ffffff));
+            }
+            offset += stride;
+        }
+        return mix(mix(mix(h0 * MULTIPLIER + h1) * MULTIPLIER + h2)
+                * MULTIPLIER + h3);
+    }
+
+    private static long mix(long hash) {
+        hash *= MULTIPLIER;
+        return hash ^ (hash >>> 29);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of the files in the reference directories. Each directory
+ * is listed once and listed again only when its modification time changes,
+ * so that looking up reference images does not need a file system call for
+ * each candidate file name.
+ * <p>
+ * Besides the file names, the index keeps track of numbered variants of file
+ * names. A file name containing <code>_&lt;number&gt;</code>, e.g.
+ * <code>test_windows_chrome_40.png</code>, is indexed as a variant of the
+ * template <code>test_windows_chrome_####.png</code> with the number 40.
+ */
+public class ReferenceDirectoryIndex {
+
+    /**
+     * The placeholder for the number in variant templates.
+     */
+    public static final String VARIANT_PLACEHOLDER = "####";
+
+    /**
+     * The modification time of a directory often has a resolution of one or
+     * two seconds, so changes made within this time after a listing are not
+     * necessarily visible in the modification time.
+     */
+    private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+
+    private static final Pattern NUMBER_PATTERN = Pattern
+            .compile("_(\\d{1,9})(?!\\d)");
+
+    /**
+     * A set of file names and their numbered variants.
+     */
+    static class FileNames {
+        private final Set<String> names = new HashSet<String>();
+        private final Map<String, TreeSet<Integer>> variants = new HashMap<String, TreeSet<Integer>>();
+
+        public void add(String name) {
+            names.add(name);
+            Matcher matcher = NUMBER_PATTERN.matcher(name);
+            while (matcher.find()) {
+                String template = name.substring(0, matcher.start()) + "_"
+                        + VARIANT_PLACEHOLDER + name.substring(matcher.end());
+                TreeSet<Integer> numbers = variants.get(template);
+                if (numbers == null) {
+                    numbers = new TreeSet<Integer>();
+                    variants.put(template, numbers);
+                }
+                numbers.add(Integer.valueOf(matcher.group(1)));
+            }
+        }
+
+        public boolean contains(String name) {
+            return names.contains(name);
+        }
+
+        /**
+         * @see ReferenceDirectoryIndex#findPreviousVariant(File, int)
+         */
+        public Integer findPreviousVariant(String template, int number) {
+            TreeSet<Integer> numbers = variants.get(template);
+            if (numbers == null) {
+                return null;
+            }
+            Integer previous = numbers.lower(number);
+            if (previous == null || previous.intValue() < 1) {
+                return null;
+            }
+            return previous;
+        }
+    }
+
+    private static class DirectoryListing {
+        private final long lastModified;
+        private final long listedAt;
+        private final FileNames names = new FileNames();
+
+        public DirectoryListing(File directory) {
+            lastModified = directory.lastModified();
+            listedAt = System.currentTimeMillis();
+            String[] fileNames = directory.list();
+            if (fileNames == null) {
+                return;
+            }
+            for (String name : fileNames) {
+                names.add(name);
+            }
+        }
+
+        public boolean isUpToDate(File directory) {
+            return directory.lastModified() == lastModified
+                    && listedAt - lastModified > MODIFICATION_TIME_RESOLUTION;
+        }
+    }
+
+    private final Map<File, DirectoryListing> listings = new HashMap<File, DirectoryListing>();
+
+    /**
+     * Checks if the given file exists.
+     *
+     * @param file
+     *            the file
+     * @return true if the file exists in the index
+     */
+    public boolean exists(File file) {
+        file = file.getAbsoluteFile();
+        return getListing(file.getParentFile()).names.contains(file.getName());
+    }
+
+    /**
+     * Finds the largest variant number which is smaller than the given number
+     * and larger than zero.
+     *
+     * @param template
+     *            the file name template with {@value #VARIANT_PLACEHOLDER} in
+     *            place of the number, e.g.
+     *            <code>test_windows_chrome_####.png</code>
+     * @param number
+     *            the number to find a smaller variant for
+     * @return the number of the variant, or null if there is no such variant
+     */
+    public Integer findPreviousVariant(File template, int number) {
+        template = template.getAbsoluteFile();
+        return getListing(template.getParentFile()).names.findPreviousVariant(
+                template.getName(), number);
+    }
+
+    /**
+     * Forgets all listed directories. The directories are listed again when
+     * they are next used.
+     */
+    public synchronized void clear() {
+        listings.clear();
+    }
+
+    private synchronized DirectoryListing getListing(File directory) {
+        DirectoryListing listing = listings.get(directory);
+        if (listing == null || !listing.isUpToDate(directory)) {
+            listing = new DirectoryListing(directory);
+            listings.put(directory, listing);
+        }
+        return listing;
+    }
+}
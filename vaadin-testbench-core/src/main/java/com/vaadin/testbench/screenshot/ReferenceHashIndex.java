@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index of the hashes of the reference images in a directory. The
+ * index is stored in a {@value #INDEX_FILE_NAME} file in the reference
+ * directory and maps each reference image file name to an exact hash of the
+ * image, see {@link ImageComparisonUtil#generateImageHash(BufferedImage,
+ * boolean)}. An entry is only used as long as the modification time and size
+ * of the reference image file stay the same. The hashes of the reference
+ * images in a {@link ReferenceManifest} are taken from the manifest.
+ * <p>
+ * The index is used for accepting screen shots which are identical to a
+ * reference image without reading the reference image.
+ * <p>
+ * New hashes are kept in memory and written to the index file by
+ * {@link #flush()}, which is called automatically when the JVM exits.
+ */
+public class ReferenceHashIndex {
+
+    /**
+     * The name of the index file in the reference directory.
+     */
+    public static final String INDEX_FILE_NAME = "reference-hashes.properties";
+
+    /**
+     * The version of the index file format. Index files of other versions are
+     * ignored and rewritten.
+     */
+    static final String FORMAT_VERSION = "2";
+
+    private static final String VERSION_KEY = "version";
+
+    private static Logger getLogger() {
+        return Logger.getLogger(ReferenceHashIndex.class.getName());
+    }
+
+    private static class IndexEntry {
+        private final long lastModified;
+        private final long length;
+        private final String hash;
+
+        public IndexEntry(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private final File directory;
+    private Map<String, IndexEntry> entries = null;
+    // True if there are entries which have not been written to the file
+    private boolean dirty = false;
+    private boolean flushRegistered = false;
+
+    /**
+     * Creates an index for the reference images in the given directory. The
+     * index file is read when the index is first used.
+     *
+     * @param directory
+     *            the reference directory
+     */
+    public ReferenceHashIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the reference directory of this index
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the hash representation of the given reference image if the
+     * index contains an up to date hash for it.
+     *
+     * @param referenceFileName
+     *            the file name of the reference image, relative to the
+     *            reference directory
+     * @return the representation of the reference image, or null if the image
+     *         is not in the index or has changed since it was indexed
+     */
+    public synchronized ReferenceImageRepresentation getRepresentation(
+            String referenceFileName) {
+        File file = new File(directory, referenceFileName);
+        if (!file.exists()) {
+            // The manifest already has the hash of each image in it. Images
+            // read from a reference pack are not indexed.
+            ReferenceManifest manifest = ReferenceManifest
+                    .getManifest(directory);
+            String hash = manifest == null ? null : manifest
+                    .getHash(referenceFileName);
+            if (hash == null) {
+                return null;
+            }
+            ReferenceImageRepresentation representation = new ReferenceImageRepresentation();
+            representation.addRepresentation(hash);
+            return representation;
+        }
+        IndexEntry entry = getEntries().get(referenceFileName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.lastModified != file.lastModified()
+                || entry.length != file.length()) {
+            return null;
+        }
+        ReferenceImageRepresentation representation = new ReferenceImageRepresentation();
+        representation.addRepresentation(entry.hash);
+        return representation;
+    }
+
+    /**
+     * Hashes the given reference image and adds the hash to the index. The
+     * hash is written to the index file when the index is flushed.
+     *
+     * @param referenceFileName
+     *            the file name of the reference image, relative to the
+     *            reference directory
+     * @param referenceImage
+     *            the decoded reference image
+     */
+    public void update(String referenceFileName, BufferedImage referenceImage) {
+        File file = new File(directory, referenceFileName);
+        if (!file.exists()) {
+            return;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        // Hash outside the lock so that other images can be looked up
+        // meanwhile
+        String hash = ImageComparisonUtil.generateImageHash(referenceImage,
+                false);
+
+        synchronized (this) {
+            getEntries().put(referenceFileName,
+                    new IndexEntry(lastModified, length, hash));
+            dirty = true;
+            if (!flushRegistered) {
+                flushRegistered = true;
+                Runtime.getRuntime().addShutdownHook(
+                        new Thread("reference-hash-index-flush") {
+                            @Override
+                            public void run() {
+                                flush();
+                            }
+                        });
+            }
+        }
+    }
+
+    /**
+     * Writes the hashes added since the last flush to the index file. Entries
+     * written to the file meanwhile by other processes using the same
+     * reference directory are kept.
+     */
+    public synchronized void flush() {
+        if (!dirty || !directory.isDirectory()) {
+            return;
+        }
+        Map<String, IndexEntry> merged = load();
+        merged.putAll(entries);
+        save(merged);
+        dirty = false;
+    }
+
+    private Map<String, IndexEntry> getEntries() {
+        if (entries == null) {
+            entries = load();
+        }
+        return entries;
+    }
+
+    private Map<String, IndexEntry> load() {
+        Map<String, IndexEntry> loaded = new HashMap<String, IndexEntry>();
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return loaded;
+        }
+
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(indexFile);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not read reference hash index " + indexFile, e);
+            return loaded;
+        }
+
+        if (!FORMAT_VERSION.equals(properties.getProperty(VERSION_KEY))) {
+            return loaded;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (VERSION_KEY.equals(name)) {
+                continue;
+            }
+            // lastModified:length:hash
+            String[] parts = properties.getProperty(name).split(":");
+            if (parts.length != 3) {
+                continue;
+            }
+            try {
+                loaded.put(name, new IndexEntry(Long.parseLong(parts[0]),
+                        Long.parseLong(parts[1]), parts[2]));
+            } catch (NumberFormatException e) {
+                // Ignore broken entries, they are re-created when needed
+            }
+        }
+        return loaded;
+    }
+
+    private void save(Map<String, IndexEntry> entries) {
+        Properties properties = new Properties();
+        properties.setProperty(VERSION_KEY, FORMAT_VERSION);
+        for (Map.Entry<String, IndexEntry> e : entries.entrySet()) {
+            IndexEntry entry = e.getValue();
+            properties.setProperty(e.getKey(), entry.lastModified + ":"
+                    + entry.length + ":" + entry.hash);
+        }
+
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        File tempFile = null;
+        try {
+            // Write to a temporary file first so that a reader never sees a
+            // partially written index. The name is unique so that processes
+            // sharing the directory do not write to the same file.
+            tempFile = File.createTempFile(INDEX_FILE_NAME, ".tmp",
+                    directory);
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                properties.store(out, "Reference image hashes");
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tempFile.renameTo(indexFile)) {
+                    throw new IOException("Could not rename " + tempFile
+                            + " to " + indexFile);
+                }
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING,
+                    "Could not write reference hash index " + indexFile, e);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+}
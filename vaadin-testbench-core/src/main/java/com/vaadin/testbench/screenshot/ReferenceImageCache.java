@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of decoded reference images. The images are cached by
+ * file path, or by pack file path and image name, and evicted in least
+ * recently used order when the total size of the decoded images exceeds the
+ * given maximum size. A cached image is only used as long as the modification
+ * time and size of the file stay the same.
+ * <p>
+ * The cached images are shared by all callers and must not be modified.
+ */
+public class ReferenceImageCache {
+
+    private static class CacheEntry {
+        private final BufferedImage image;
+        private final long lastModified;
+        private final long length;
+        private final long size;
+
+        public CacheEntry(BufferedImage image, long lastModified, long length) {
+            this.image = image;
+            this.lastModified = lastModified;
+            this.length = length;
+            size = getImageSize(image);
+        }
+    }
+
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+            16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize
+     *            the maximum total size of the decoded images in bytes
+     */
+    public ReferenceImageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the decoded image for the given file, decoding it only if it is
+     * not in the cache or the file has changed since it was decoded.
+     *
+     * @param file
+     *            the image file
+     * @return the decoded image, or null if the file could not be decoded
+     * @throws IOException
+     *             if the file could not be read
+     */
+    public BufferedImage getImage(File file) throws IOException {
+        final String key = file.getAbsolutePath();
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        BufferedImage image = get(key, lastModified, length);
+        if (image != null) {
+            return image;
+        }
+
+        misses.incrementAndGet();
+        // Decode outside the lock so that other images can be fetched
+        // meanwhile
+        image = ImageDecoder.read(file);
+        if (image != null) {
+            put(key, new CacheEntry(image, lastModified, length));
+        }
+        return image;
+    }
+
+    /**
+     * Returns the given image from a reference pack, copying it out of the
+     * pack only if it is not in the cache or the pack file has changed since
+     * it was copied.
+     *
+     * @param pack
+     *            the reference pack
+     * @param name
+     *            the file name of the image in the pack
+     * @return the image, or null if the image is not in the pack
+     * @throws IOException
+     *             if the pack could not be read
+     */
+    public BufferedImage getImage(ReferencePack pack, String name)
+            throws IOException {
+        File file = pack.getFile();
+        if (!pack.isUpToDate(file)) {
+            // The cache entry would be stored for the changed file
+            return pack.readImage(name);
+        }
+        final String key = file.getAbsolutePath() + "!" + name;
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        BufferedImage image = get(key, lastModified, length);
+        if (image != null) {
+            return image;
+        }
+
+        misses.incrementAndGet();
+        image = pack.readImage(name);
+        if (image != null) {
+            put(key, new CacheEntry(image, lastModified, length));
+        }
+        return image;
+    }
+
+    private synchronized BufferedImage get(String key, long lastModified,
+            long length) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.lastModified == lastModified
+                && entry.length == length) {
+            hits.incrementAndGet();
+            return entry.image;
+        }
+        return null;
+    }
+
+    private synchronized void put(String key, CacheEntry entry) {
+        CacheEntry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += entry.size;
+
+        // Evict least recently used images, but always keep the newest one
+        Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet()
+                .iterator();
+        while (size > maxSize && entries.size() > 1) {
+            CacheEntry evicted = iterator.next().getValue();
+            iterator.remove();
+            size -= evicted.size;
+        }
+        if (size > maxSize) {
+            // A single image larger than the whole cache
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Removes all images from the cache. The hit and miss counters are not
+     * reset.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of images returned from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of images that had to be decoded
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total size of the cached images in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the maximum total size of the cached images in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the amount of memory used by the pixel data of the image.
+     *
+     * @param image
+     *            the image
+     * @return the size of the pixel data in bytes
+     */
+    static long getImageSize(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+}
@@ -59,4 +59,20 @@ public class ReferenceImageRepresentation implements Serializable {
     public Iterable<HashRepresentation> getRepresentations() {
         return representations;
     }
+
+    /**
+     * Checks if any of the representations has the given hash.
+     *
+     * @param hash
+     *            the hash to look for
+     * @return true if the hash was found
+     */
+    public boolean containsHash(String hash) {
+        for (HashRepresentation representation : representations) {
+            if (representation.getHash().equals(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
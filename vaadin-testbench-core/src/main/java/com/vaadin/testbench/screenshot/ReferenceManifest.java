@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+/**
+ * A content addressed layout for reference images. Instead of storing each
+ * reference image as a file of its own, identical images are stored once in
+ * the {@value #BLOB_DIRECTORY_NAME} directory, named by the hash of their
+ * pixels including the alpha channel (see {@link #hashImage(BufferedImage)}).
+ * The {@value #MANIFEST_FILE_NAME} file in the reference directory maps the
+ * file name of each reference image to the hash of its pixels.
+ * <p>
+ * Reference images are looked up in the manifest when they are not found as
+ * files in the reference directory, so new reference images can still be
+ * added as files. An existing reference directory is converted with
+ * {@link #dedupe(File)} and back with {@link #restore(File)}. Both are also
+ * available from the command line using {@link #main(String[])}.
+ */
+public class ReferenceManifest {
+
+    /**
+     * The name of the manifest file in the reference directory.
+     */
+    public static final String MANIFEST_FILE_NAME = "reference-manifest.properties";
+
+    /**
+     * The name of the directory containing the images, in the reference
+     * directory.
+     */
+    public static final String BLOB_DIRECTORY_NAME = "blobs";
+
+    /**
+     * The version of the manifest file format.
+     */
+    static final String FORMAT_VERSION = "1";
+
+    private static final String VERSION_KEY = "version";
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final Map<String, String> hashes;
+    private final ReferenceDirectoryIndex.FileNames names = new ReferenceDirectoryIndex.FileNames();
+
+    private ReferenceManifest(File file, Map<String, String> hashes) {
+        this.file = file;
+        lastModified = file.lastModified();
+        length = file.length();
+        this.hashes = hashes;
+        for (String name : hashes.keySet()) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param file
+     *            the manifest file
+     * @return the manifest
+     * @throws IOException
+     *             if the file could not be read or is not a valid manifest
+     */
+    public static ReferenceManifest open(File file) throws IOException {
+        return new ReferenceManifest(file, read(file));
+    }
+
+    private static Map<String, String> read(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        String version = properties.getProperty(VERSION_KEY);
+        if (!FORMAT_VERSION.equals(version)) {
+            throw new IOException("Unsupported version " + version
+                    + " of reference manifest " + file);
+        }
+        Map<String, String> hashes = new HashMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            if (!VERSION_KEY.equals(name)) {
+                hashes.put(name, properties.getProperty(name));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @return the manifest file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Checks if the manifest is still the same as the given file.
+     *
+     * @param manifestFile
+     *            the manifest file
+     * @return true if this manifest was read from the given file and the file
+     *         has not been modified since
+     */
+    public boolean isUpToDate(File manifestFile) {
+        return file.equals(manifestFile)
+                && manifestFile.lastModified() == lastModified
+                && manifestFile.length() == length;
+    }
+
+    /**
+     * @return the names of the reference images in the manifest
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(hashes.keySet());
+    }
+
+    /**
+     * Checks if the manifest contains the given image.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return true if the image is in the manifest
+     */
+    public boolean contains(String name) {
+        return hashes.containsKey(name);
+    }
+
+    /**
+     * Returns the hash of the given reference image. For fully opaque images
+     * this is the exact hash of
+     * {@link ImageComparisonUtil#generateImageHash(BufferedImage, boolean)}.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return the hash of the image, or null if the image is not in the
+     *         manifest
+     */
+    public String getHash(String name) {
+        return hashes.get(name);
+    }
+
+    /**
+     * Returns the manifest of the reference directory used by
+     * {@link ImageFileUtil}, if it is the given directory.
+     *
+     * @param directory
+     *            the reference directory
+     * @return the manifest, or null if the directory has no manifest or is
+     *         not the current reference directory
+     */
+    static ReferenceManifest getManifest(File directory) {
+        ReferenceManifest manifest = ImageFileUtil.getReferenceManifest();
+        if (manifest == null
+                || !directory.equals(manifest.getFile().getParentFile())) {
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * Returns the file containing the given reference image.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return the image file in the blob directory, or null if the image is
+     *         not in the manifest
+     */
+    public File getImageFile(String name) {
+        String hash = hashes.get(name);
+        if (hash == null) {
+            return null;
+        }
+        return getBlobFile(file.getParentFile(), hash);
+    }
+
+    /**
+     * Hashes the pixels of the image including the alpha channel, as pixels
+     * which are not fully opaque are masked when comparing (see
+     * {@link ImageComparator}). The alpha channel is inverted before hashing,
+     * so the hash of a fully opaque image is the exact hash
+     * {@link ImageComparisonUtil#generateImageHash(BufferedImage, boolean)}
+     * used for screenshots.
+     *
+     * @param image
+     *            the image to hash
+     * @return the hash as a hex string
+     */
+    static String hashImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ImageProperties properties = null;
+        if (ImageUtil.hasPackedPixels(image)) {
+            properties = ImageUtil.getImageProperties(image);
+        }
+        int[] row = new int[width];
+        PixelHasher hasher = new PixelHasher();
+        for (int y = 0; y < height; y++) {
+            if (properties != null) {
+                System.arraycopy(properties.getPixels(),
+                        properties.getOffset(0, y), row, 0, width);
+                int alphaMask = properties.getAlphaMask();
+                for (int x = 0; x < width; x++) {
+                    row[x] |= alphaMask;
+                }
+            } else {
+                ImageUtil.getRGBRow(image, y, row);
+            }
+            for (int x = 0; x < width; x++) {
+                row[x] ^= 0xff000000;
+            }
+            hasher.update(row, 0, width, 0xffffffff);
+        }
+        hasher.update(width);
+        hasher.update(height);
+        return hasher.digest();
+    }
+
+    private static File getBlobFile(File directory, String hash) {
+        return new File(new File(directory, BLOB_DIRECTORY_NAME), hash
+                + ".png");
+    }
+
+    /**
+     * Finds the largest variant number of an image in the manifest, see
+     * {@link ReferenceDirectoryIndex#findPreviousVariant(File, int)}.
+     *
+     * @param template
+     *            the file name template
+     * @param number
+     *            the number to find a smaller variant for
+     * @return the number of the variant, or null if there is no such variant
+     */
+    public Integer findPreviousVariant(String template, int number) {
+        return names.findPreviousVariant(template, number);
+    }
+
+    /**
+     * Moves all PNG images in the given directory to the blob directory,
+     * storing identical images only once, and adds them to the manifest. The
+     * image files are kept as they are, so the blobs are the original PNG
+     * files. Images already in the manifest are replaced by image files with
+     * the same name.
+     *
+     * @param directory
+     *            the reference directory
+     * @return the number of images moved
+     * @throws IOException
+     *             if an image could not be read or the files could not be
+     *             written
+     */
+    public static int dedupe(File directory) throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".png");
+            }
+        });
+        if (names == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        Arrays.sort(names);
+        File blobDirectory = new File(directory, BLOB_DIRECTORY_NAME);
+        if (!blobDirectory.isDirectory() && !blobDirectory.mkdirs()) {
+            throw new IOException("Could not create " + blobDirectory);
+        }
+
+        File manifestFile = new File(directory, MANIFEST_FILE_NAME);
+        Map<String, String> hashes = manifestFile.exists() ? read(manifestFile)
+                : new HashMap<String, String>();
+        for (String name : names) {
+            File imageFile = new File(directory, name);
+            BufferedImage image = ImageIO.read(imageFile);
+            if (image == null) {
+                throw new IOException("Could not decode " + imageFile);
+            }
+            String hash = hashImage(image);
+            File blobFile = getBlobFile(directory, hash);
+            if (!blobFile.exists()) {
+                copy(imageFile, blobFile);
+            }
+            hashes.put(name, hash);
+        }
+        write(hashes, manifestFile);
+
+        // The images are only removed once they can be found through the
+        // manifest
+        for (String name : names) {
+            File imageFile = new File(directory, name);
+            if (!imageFile.delete()) {
+                throw new IOException("Could not delete " + imageFile);
+            }
+            // Block hashes are kept next to the blob instead
+            new File(directory, name + ReferenceBlockHashes.FILE_SUFFIX)
+                    .delete();
+        }
+        return names.length;
+    }
+
+    /**
+     * Copies all images in the manifest back to files in the reference
+     * directory and removes the manifest and the blob directory. Existing
+     * image files are not overwritten.
+     *
+     * @param directory
+     *            the reference directory
+     * @return the number of images restored
+     * @throws IOException
+     *             if the manifest could not be read or the files could not be
+     *             written
+     */
+    public static int restore(File directory) throws IOException {
+        File manifestFile = new File(directory, MANIFEST_FILE_NAME);
+        Map<String, String> hashes = read(manifestFile);
+        Set<String> blobs = new HashSet<String>();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            File imageFile = new File(directory, entry.getKey());
+            if (!imageFile.exists()) {
+                copy(getBlobFile(directory, entry.getValue()), imageFile);
+            }
+            blobs.add(entry.getValue());
+        }
+        if (!manifestFile.delete()) {
+            throw new IOException("Could not delete " + manifestFile);
+        }
+        for (String hash : blobs) {
+            File blobFile = getBlobFile(directory, hash);
+            blobFile.delete();
+            new File(blobFile.getPath() + ReferenceBlockHashes.FILE_SUFFIX)
+                    .delete();
+        }
+        new File(directory, BLOB_DIRECTORY_NAME).delete();
+        return hashes.size();
+    }
+
+    private static void write(Map<String, String> hashes, File manifestFile)
+            throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(hashes);
+        properties.setProperty(VERSION_KEY, FORMAT_VERSION);
+        // Write to a temporary file first so that a reader never sees a
+        // partially written manifest
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, "Reference image name = pixel hash");
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(manifestFile)) {
+            manifestFile.delete();
+            if (!tempFile.renameTo(manifestFile)) {
+                throw new IOException("Could not rename " + tempFile + " to "
+                        + manifestFile);
+            }
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        File tempFile = new File(to.getPath() + ".tmp");
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tempFile.renameTo(to)) {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile + " to " + to);
+        }
+    }
+
+    /**
+     * Converts a reference directory to the content addressed layout or
+     * back.
+     *
+     * <pre>
+     * dedupe &lt;reference directory&gt;
+     * restore &lt;reference directory&gt;
+     * </pre>
+     *
+     * @param args
+     *            the command line arguments
+     * @throws IOException
+     *             if the conversion fails
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && "dedupe".equals(args[0])) {
+            File directory = new File(args[1]);
+            int count = dedupe(directory);
+            String[] blobs = new File(directory, BLOB_DIRECTORY_NAME).list();
+            System.out.println("Moved " + count + " images to "
+                    + BLOB_DIRECTORY_NAME + ", which now contains "
+                    + (blobs == null ? 0 : blobs.length) + " unique images");
+        } else if (args.length == 2 && "restore".equals(args[0])) {
+            int count = restore(new File(args[1]));
+            System.out.println("Restored " + count + " images to " + args[1]);
+        } else {
+            System.err.println("Usage: " + ReferenceManifest.class.getName()
+                    + " dedupe <reference directory>");
+            System.err.println("       " + ReferenceManifest.class.getName()
+                    + " restore <reference directory>");
+            System.exit(1);
+        }
+    }
+}
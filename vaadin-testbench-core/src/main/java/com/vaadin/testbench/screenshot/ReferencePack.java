@@ -0,0 +1,499 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A single file containing decoded reference images. Reading a reference
+ * image from a pack does not need to open a file or decode a PNG image, as
+ * the pixels are stored as they are and the file is memory mapped once when
+ * the pack is opened.
+ * <p>
+ * The file starts with a magic number and a format version, followed by the
+ * pixels of each image as 32-bit ARGB values in row-major order. The index of
+ * the images is at the end of the file, followed by the offset of the index:
+ *
+ * <pre>
+ * int magic, int version
+ * pixels of each image
+ * int count, for each image: UTF name, int width, int height,
+ *         boolean alpha, long offset
+ * long index offset
+ * </pre>
+ * <p>
+ * A pack is created from a reference directory with {@link #pack(File, File)}
+ * and can be converted back to PNG files with {@link #unpack(File, File)}.
+ * Both are also available from the command line using {@link #main(String[])}
+ * .
+ */
+public class ReferencePack {
+
+    /**
+     * The name of the pack file in the reference directory.
+     */
+    public static final String PACK_FILE_NAME = "references.pack";
+
+    private static final int MAGIC = 0x54425250; // "TBRP"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The maximum size of a single mapping of the pack file. A mapped buffer
+     * is limited to 2 GB, so larger packs are mapped in several chunks which
+     * each contain whole images.
+     */
+    static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private static class Entry {
+        private final int width;
+        private final int height;
+        private final boolean alpha;
+        private final long offset;
+
+        public Entry(int width, int height, boolean alpha, long offset) {
+            this.width = width;
+            this.height = height;
+            this.alpha = alpha;
+            this.offset = offset;
+        }
+    }
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private final Map<String, Entry> entries;
+    private final ReferenceDirectoryIndex.FileNames names = new ReferenceDirectoryIndex.FileNames();
+    // File offsets of the mapped chunks in ascending order
+    private final long[] chunkOffsets;
+    // Set to null when the pack is closed
+    private volatile ByteBuffer[] chunks;
+
+    private ReferencePack(File file, Map<String, Entry> entries,
+            long[] chunkOffsets, ByteBuffer[] chunks) {
+        this.file = file;
+        lastModified = file.lastModified();
+        length = file.length();
+        this.entries = entries;
+        this.chunkOffsets = chunkOffsets;
+        this.chunks = chunks;
+        for (String name : entries.keySet()) {
+            names.add(name);
+        }
+    }
+
+    /**
+     * Opens a pack file, reads its index and maps the pixels of the images.
+     *
+     * @param file
+     *            the pack file
+     * @return the opened pack
+     * @throws IOException
+     *             if the file could not be read or is not a valid pack file
+     */
+    public static ReferencePack open(File file) throws IOException {
+        return open(file, MAX_CHUNK_SIZE);
+    }
+
+    static ReferencePack open(File file, int maxChunkSize) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            if (channel.size() < 16
+                    || read(channel, 0, 4).getInt() != MAGIC) {
+                throw new IOException(file + " is not a reference pack");
+            }
+            int version = read(channel, 4, 4).getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported version " + version
+                        + " of reference pack " + file);
+            }
+            long indexOffset = read(channel, channel.size() - 8, 8).getLong();
+            if (indexOffset < 8 || indexOffset > channel.size() - 8) {
+                throw new IOException("Invalid index offset in reference pack "
+                        + file);
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(indexOffset))));
+            int count = in.readInt();
+            Map<String, Entry> entries = new HashMap<String, Entry>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                entries.put(name, new Entry(in.readInt(), in.readInt(),
+                        in.readBoolean(), in.readLong()));
+            }
+            return map(file, channel, entries, indexOffset, maxChunkSize);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not read reference pack " + file, e);
+        } finally {
+            // The mappings stay valid after the channel is closed
+            channel.close();
+        }
+    }
+
+    private static ReferencePack map(File file, FileChannel channel,
+            Map<String, Entry> entries, long indexOffset, int maxChunkSize)
+            throws IOException {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.offset < e2.offset ? -1
+                        : (e1.offset == e2.offset ? 0 : 1);
+            }
+        });
+
+        List<Long> offsets = new ArrayList<Long>();
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        long chunkStart = -1;
+        long chunkEnd = -1;
+        for (Entry entry : sorted) {
+            long end = entry.offset + 4L * entry.width * entry.height;
+            if (entry.width < 0 || entry.height < 0 || entry.offset < 8
+                    || end > indexOffset) {
+                throw new IOException("Invalid image offset in reference pack "
+                        + file);
+            }
+            if (end - entry.offset > maxChunkSize) {
+                throw new IOException("Too large image in reference pack "
+                        + file);
+            }
+            if (chunkStart < 0 || end - chunkStart > maxChunkSize) {
+                if (chunkStart >= 0) {
+                    offsets.add(chunkStart);
+                    chunks.add(channel.map(MapMode.READ_ONLY, chunkStart,
+                            chunkEnd - chunkStart));
+                }
+                chunkStart = entry.offset;
+            }
+            chunkEnd = Math.max(chunkEnd, end);
+        }
+        if (chunkStart >= 0) {
+            offsets.add(chunkStart);
+            chunks.add(channel.map(MapMode.READ_ONLY, chunkStart, chunkEnd
+                    - chunkStart));
+        }
+
+        long[] chunkOffsets = new long[offsets.size()];
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            chunkOffsets[i] = offsets.get(i);
+        }
+        return new ReferencePack(file, entries, chunkOffsets,
+                chunks.toArray(new ByteBuffer[chunks.size()]));
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of reference pack");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the pack file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Checks if the pack is still the same as the given file.
+     *
+     * @param packFile
+     *            the pack file
+     * @return true if this pack was opened from the given file and the file
+     *         has not been modified since
+     */
+    public boolean isUpToDate(File packFile) {
+        return file.equals(packFile) && packFile.lastModified() == lastModified
+                && packFile.length() == length;
+    }
+
+    /**
+     * @return the names of the images in the pack
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Checks if the pack contains the given image.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return true if the image is in the pack
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Finds the largest variant number of an image in the pack, see
+     * {@link ReferenceDirectoryIndex#findPreviousVariant(File, int)}.
+     *
+     * @param template
+     *            the file name template
+     * @param number
+     *            the number to find a smaller variant for
+     * @return the number of the variant, or null if there is no such variant
+     */
+    public Integer findPreviousVariant(String template, int number) {
+        return names.findPreviousVariant(template, number);
+    }
+
+    /**
+     * Returns the pixels of the given image without copying them. The buffer
+     * is a read-only view of the memory mapped pack file.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return the ARGB values of the pixels in row-major order, or null if the
+     *         image is not in the pack
+     * @throws IOException
+     *             if the pack has been closed
+     */
+    public IntBuffer getPixels(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer[] chunks = this.chunks;
+        if (chunks == null) {
+            throw new IOException("Reference pack " + file + " is closed");
+        }
+        int index = Arrays.binarySearch(chunkOffsets, entry.offset);
+        if (index < 0) {
+            // The image is not the first one in its chunk
+            index = -index - 2;
+        }
+        // A duplicate so that concurrent readers do not share the position
+        ByteBuffer buffer = chunks[index].duplicate();
+        int position = (int) (entry.offset - chunkOffsets[index]);
+        buffer.position(position);
+        buffer.limit(position + 4 * entry.width * entry.height);
+        return buffer.slice().asIntBuffer();
+    }
+
+    /**
+     * Reads the given image from the pack.
+     *
+     * @param name
+     *            the file name of the reference image
+     * @return the image, or null if the image is not in the pack
+     * @throws IOException
+     *             if the pack file could not be read
+     */
+    public BufferedImage readImage(String name) throws IOException {
+        IntBuffer pixels = getPixels(name);
+        if (pixels == null) {
+            return null;
+        }
+        Entry entry = entries.get(name);
+        BufferedImage image = new BufferedImage(entry.width, entry.height,
+                entry.alpha ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB);
+        pixels.get(((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData());
+        return image;
+    }
+
+    /**
+     * Closes the pack. The file is unmapped once the buffers returned by
+     * {@link #getPixels(String)} are no longer in use, as the mappings can
+     * not be released explicitly without invalidating those buffers.
+     *
+     * @throws IOException
+     *             if the pack could not be closed
+     */
+    public void close() throws IOException {
+        chunks = null;
+    }
+
+    /**
+     * Writes all PNG images in the given directory to a pack file.
+     *
+     * @param directory
+     *            the reference directory
+     * @param packFile
+     *            the pack file to write
+     * @return the number of images written
+     * @throws IOException
+     *             if an image could not be read or the pack file could not be
+     *             written
+     */
+    public static int pack(File directory, File packFile) throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".png");
+            }
+        });
+        if (names == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        Arrays.sort(names);
+
+        // Write to a temporary file first so that a reader never sees a
+        // partially written pack
+        File tempFile = new File(packFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            Map<String, Entry> entries = new HashMap<String, Entry>();
+            // The pixels start after the magic number and the version
+            long offset = 8;
+            for (String name : names) {
+                BufferedImage image = ImageIO.read(new File(directory, name));
+                if (image == null) {
+                    throw new IOException("Could not decode "
+                            + new File(directory, name));
+                }
+                entries.put(name, new Entry(image.getWidth(), image
+                        .getHeight(), image.getColorModel().hasAlpha(),
+                        offset));
+                offset += writePixels(out, image);
+            }
+
+            out.writeInt(names.length);
+            for (String name : names) {
+                Entry entry = entries.get(name);
+                out.writeUTF(name);
+                out.writeInt(entry.width);
+                out.writeInt(entry.height);
+                out.writeBoolean(entry.alpha);
+                out.writeLong(entry.offset);
+            }
+            out.writeLong(offset);
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(packFile)) {
+            packFile.delete();
+            if (!tempFile.renameTo(packFile)) {
+                throw new IOException("Could not rename " + tempFile + " to "
+                        + packFile);
+            }
+        }
+        return names.length;
+    }
+
+    private static long writePixels(DataOutputStream out, BufferedImage image)
+            throws IOException {
+        int width = image.getWidth();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(4 * width);
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            out.write(bytes.array());
+        }
+        return 4L * width * image.getHeight();
+    }
+
+    /**
+     * Writes all images in the given pack file as PNG images to a directory.
+     *
+     * @param packFile
+     *            the pack file to read
+     * @param directory
+     *            the directory to write the images to
+     * @return the number of images written
+     * @throws IOException
+     *             if the pack file could not be read or an image could not be
+     *             written
+     */
+    public static int unpack(File packFile, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        ReferencePack pack = open(packFile);
+        try {
+            for (String name : pack.getNames()) {
+                ImageIO.write(pack.readImage(name), "png", new File(
+                        directory, name));
+            }
+            return pack.getNames().size();
+        } finally {
+            pack.close();
+        }
+    }
+
+    /**
+     * Converts a reference directory to a pack file or back.
+     *
+     * <pre>
+     * pack &lt;reference directory&gt; [pack file]
+     * unpack &lt;pack file&gt; &lt;directory&gt;
+     * </pre>
+     *
+     * The default pack file is {@value #PACK_FILE_NAME} in the reference
+     * directory.
+     *
+     * @param args
+     *            the command line arguments
+     * @throws IOException
+     *             if the conversion fails
+     */
+    public static void main(String[] args) throws IOException {
+        if ((args.length == 2 || args.length == 3) && "pack".equals(args[0])) {
+            File directory = new File(args[1]);
+            File packFile = args.length == 3 ? new File(args[2]) : new File(
+                    directory, PACK_FILE_NAME);
+            int count = pack(directory, packFile);
+            System.out.println("Packed " + count + " images to " + packFile);
+        } else if (args.length == 3 && "unpack".equals(args[0])) {
+            int count = unpack(new File(args[1]), new File(args[2]));
+            System.out.println("Unpacked " + count + " images to " + args[2]);
+        } else {
+            System.err.println("Usage: " + ReferencePack.class.getName()
+                    + " pack <reference directory> [pack file]");
+            System.err.println("       " + ReferencePack.class.getName()
+                    + " unpack <pack file> <directory>");
+            System.exit(1);
+        }
+    }
+}
@@ -15,173 +15,256 @@ package com.vaadin.testbench.screenshot;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.codec.binary.Base64OutputStream;
+
 public class ScreenShotFailureReporter {
+
+    /**
+     * Output stream which only flushes the underlying stream when closed.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
     private final BufferedImage referenceImage;
-    private final boolean[][] falseBlocks;
+    private final BlockErrorMap falseBlocks;
     private final int xBlocks;
     private final int yBlocks;
+    private final ImageAlignment alignment;
+    // Position of the reference image in the screenshot
+    private final int referenceX;
+    private final int referenceY;
 
+    /**
+     * @deprecated Use
+     *             {@link #ScreenShotFailureReporter(BufferedImage, BlockErrorMap)}
+     */
+    @Deprecated
     public ScreenShotFailureReporter(BufferedImage referenceImage,
             boolean[][] falseBlocks) {
+        this(referenceImage, BlockErrorMap.fromArray(falseBlocks));
+    }
+
+    public ScreenShotFailureReporter(BufferedImage referenceImage,
+            BlockErrorMap falseBlocks) {
+        this(referenceImage, falseBlocks, null);
+    }
+
+    /**
+     * Creates a reporter for images of different size.
+     * 
+     * @param referenceImage
+     *            the part of the reference image which overlaps the screenshot
+     * @param falseBlocks
+     *            the differing blocks of the overlapping parts
+     * @param alignment
+     *            the alignment of the images, or null if the images are the
+     *            same size
+     */
+    ScreenShotFailureReporter(BufferedImage referenceImage,
+            BlockErrorMap falseBlocks, ImageAlignment alignment) {
         this.referenceImage = referenceImage;
         this.falseBlocks = falseBlocks;
-        xBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getWidth());
-        yBlocks = ImageComparisonUtil.getNrBlocks(referenceImage.getHeight());
+        this.alignment = alignment;
+        xBlocks = falseBlocks.getXBlocks();
+        yBlocks = falseBlocks.getYBlocks();
+        if (alignment != null) {
+            referenceX = alignment.getScreenshotOverlap().x;
+            referenceY = alignment.getScreenshotOverlap().y;
+        } else {
+            referenceX = 0;
+            referenceY = 0;
+        }
+    }
+
+    /**
+     * @return the alignment of the reference image content in the screenshot,
+     *         or null if the images are the same size
+     */
+    public ImageAlignment getAlignment() {
+        return alignment;
+    }
+
+    /**
+     * Returns a short description of the failure, telling whether the content
+     * was only shifted or whether it changed.
+     * 
+     * @return a description of the differences
+     */
+    public String getSummary() {
+        String changes = falseBlocks.cardinality() == 0 ? "no other differences"
+                : "content changed";
+        if (alignment == null) {
+            return changes;
+        }
+        if (alignment.isShifted()) {
+            return "image sizes differ, " + alignment + ", " + changes;
+        }
+        return "image sizes differ, " + changes;
     }
 
+    /**
+     * Writes the screenshot and a diff report describing the differences to
+     * the error directory. The files are written in the background, see
+     * {@link ErrorFileWriter}.
+     * 
+     * @param fileName
+     *            the file name of the reference image
+     * @param screenshotImage
+     *            the screenshot image, must not be used afterwards as the
+     *            differences are drawn on it
+     */
     public void createErrorImageAndHTML(String fileName,
+            final BufferedImage screenshotImage) {
+        final File imageFile = ImageFileUtil.getErrorScreenshotFile(fileName);
+        final File htmlFile = ImageFileUtil.getErrorScreenshotFile(fileName
+                + ".html");
+        ErrorFileWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeErrorImageAndHTML(imageFile, htmlFile, screenshotImage);
+            }
+        });
+    }
+
+    private void writeErrorImageAndHTML(File imageFile, File htmlFile,
             BufferedImage screenshotImage) {
         try {
             // Write the screenshot into the error directory
-            ImageIO.write(screenshotImage, "png",
-                    ImageFileUtil.getErrorScreenshotFile(fileName));
+            ImageIO.write(screenshotImage, "png", imageFile);
         } catch (IOException e) {
             System.err.println("Error writing screenshot to "
-                    + ImageFileUtil.getErrorScreenshotFile(fileName).getPath());
+                    + imageFile.getPath());
             e.printStackTrace();
         }
 
         // collect big error blocks of differences
-        List<ErrorBlock> errorAreas = collectErrorsToList(xBlocks, yBlocks);
+        List<ErrorBlock> errorAreas = collectErrorsToList();
 
         // Draw boxes around blocks that differ
         drawErrorsToImage(errorAreas, screenshotImage);
 
-        createDiffHtml(errorAreas, fileName, screenshotImage, referenceImage);
+        createDiffHtml(errorAreas, htmlFile, screenshotImage, referenceImage);
     }
 
     /**
-     * Runs through the marked false macroblocks and collects them to bigger
-     * blocks
+     * Collects the marked false macroblocks into bigger blocks. Each group of
+     * false macroblocks connected horizontally or vertically becomes one
+     * ErrorBlock covering the bounding box of the group.
+     * <p>
+     * The groups are found with a single pass of connected component labelling
+     * using union-find, so the time taken is linear in the number of
+     * macroblocks. The blocks are returned in the order of their first
+     * macroblock, row by row.
      * 
-     * @param xBlocks
-     *            Amount of macroblocks in x direction
-     * @param yBlocks
-     *            Amount of macroblocks in y direction
-     * @param falseBlocks
-     *            Map of false blocks
      * @return List of ErrorBlocks
      */
-    private List<ErrorBlock> collectErrorsToList(int xBlocks, int yBlocks) {
-        List<ErrorBlock> errorAreas = new LinkedList<ErrorBlock>();
-
-        // run through blocks for marked errors for macroblocks.
-        for (int y = 0; y < yBlocks; y++) {
-            for (int x = 0; x < xBlocks; x++) {
-                // if found error make new ErrorBlock and collect
-                // connected error blocks and mark them false so
-                // that they won't trigger new errors
-                if (falseBlocks[x][y]) {
-                    ErrorBlock newBlock = new ErrorBlock();
-                    newBlock.setX(x * 16);
-                    newBlock.setY(y * 16);
-                    int x1 = x, xmin = x, y1 = y, maxSteps = xBlocks * yBlocks, steps = 0;
-                    falseBlocks[x][y] = false;
-
-                    // This'll confirm logic errors.
-                    while (true) {
-                        x1++;
-
-                        // if x1 out of bounds set x1 to xmin where
-                        // xmin == smallest error block found for
-                        // this error
-                        if (x1 >= xBlocks) {
-                            x1 = xmin;
-                        }
-
-                        // if x1,y1 marked true add width to ErrorBlock
-                        if (falseBlocks[x1][y1]) {
-                            newBlock.addXBlock();
-                            falseBlocks[x1][y1] = false;
-                        } else if (y1 < yBlocks) {
-                            x1 = xmin;
-
-                            // If next row has a false block
-                            // connected to our block
-                            boolean foundConnectedBlock = false;
-                            for (int foundX = x1; foundX < x1
-                                    + newBlock.getXBlocks(); foundX++) {
-                                if (foundX == xBlocks || y1 + 1 == yBlocks) {
-                                    break;
-                                }
-
-                                if (falseBlocks[foundX][y1 + 1]) {
-                                    foundConnectedBlock = true;
-                                }
-                            }
-
-                            // If connected error to ErrorBlock add
-                            // height to error block
-                            if (foundConnectedBlock) {
-                                y1++;
-                                newBlock.addYBlock();
-
-                                // while stepping back on this
-                                // row is false change block x
-                                // position
-                                if (x1 - 1 >= 0) {
-                                    while (falseBlocks[x1 - 1][y1]) {
-                                        falseBlocks[x1 - 1][y1] = false;
-                                        newBlock.addXBlock();
-                                        x1 = x1 - 1;
-                                        newBlock.setX(newBlock.getX() - 16);
-                                        if (x1 == 0) {
-                                            break;
-                                        }
-                                    }
-                                    xmin = x1;
-                                }
-
-                                // Skip blocks inside main error
-                                // block for this error
-                                x1 = x1 + newBlock.getXBlocks() - 1;
-                            } else {
-                                x1 = newBlock.getX() / 16;
-                                y1 = newBlock.getY() / 16;
-                                // Set all blocks to false
-                                // inside found box
-                                for (int j = 0; j < newBlock.getYBlocks(); j++) {
-                                    for (int i = 0; i < newBlock.getXBlocks(); i++) {
-                                        if (x1 + i < xBlocks
-                                                && y1 + j < yBlocks) {
-                                            falseBlocks[x1 + i][y1 + j] = false;
-                                        }
-                                    }
-                                }
-                                break;
-
-                            }
-                        }
-                        // In case something goes wrong we won't get stuck in
-                        // the loop forever
-                        if (++steps == maxSteps) {
-                            break;
-                        }
-                    }
-                    errorAreas.add(newBlock);
-                }
+    List<ErrorBlock> collectErrorsToList() {
+        // Each false macroblock y * xBlocks + x points to its parent in the
+        // union-find forest, -1 for macroblocks that do not differ
+        int[] parent = new int[xBlocks * yBlocks];
+        Arrays.fill(parent, -1);
+        int index = falseBlocks.nextSetBlock(0);
+        for (; index != -1; index = falseBlocks.nextSetBlock(index + 1)) {
+            int x = index % xBlocks;
+            int y = index / xBlocks;
+            parent[index] = index;
+            if (x > 0 && falseBlocks.get(x - 1, y)) {
+                union(parent, index, index - 1);
+            }
+            if (y > 0 && falseBlocks.get(x, y - 1)) {
+                union(parent, index, index - xBlocks);
+            }
+        }
+
+        // Compute the bounding box of each group, indexed by the root
+        int[] minX = new int[parent.length];
+        int[] minY = new int[parent.length];
+        int[] maxX = new int[parent.length];
+        int[] maxY = new int[parent.length];
+        List<Integer> roots = new ArrayList<Integer>();
+        index = falseBlocks.nextSetBlock(0);
+        for (; index != -1; index = falseBlocks.nextSetBlock(index + 1)) {
+            int x = index % xBlocks;
+            int y = index / xBlocks;
+            int root = find(parent, index);
+            if (root == index) {
+                // Roots are always the first macroblock of the group
+                roots.add(root);
+                minX[root] = maxX[root] = x;
+                minY[root] = maxY[root] = y;
+            } else {
+                minX[root] = Math.min(minX[root], x);
+                maxX[root] = Math.max(maxX[root], x);
+                maxY[root] = y;
             }
         }
+
+        List<ErrorBlock> errorAreas = new ArrayList<ErrorBlock>(roots.size());
+        for (int root : roots) {
+            errorAreas.add(new ErrorBlock(minX[root] * 16, minY[root] * 16,
+                    maxX[root] - minX[root] + 1, maxY[root] - minY[root] + 1));
+        }
         return errorAreas;
     }
 
+    private static int find(int[] parent, int index) {
+        while (parent[index] != index) {
+            // Path halving
+            parent[index] = parent[parent[index]];
+            index = parent[index];
+        }
+        return index;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // Keep the smallest index as the root
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
     private void drawErrorsToImage(List<ErrorBlock> errorAreas,
             BufferedImage screenshotImage) {
         // Draw lines around false ErrorBlocks before saving _diff
         // file.
         Graphics2D drawToPicture = screenshotImage.createGraphics();
         drawToPicture.setColor(Color.MAGENTA);
+        // The errors are relative to the reference image
+        drawToPicture.translate(referenceX, referenceY);
 
-        int width = screenshotImage.getWidth();
-        int height = screenshotImage.getHeight();
+        int width = screenshotImage.getWidth() - referenceX;
+        int height = screenshotImage.getHeight() - referenceY;
 
         for (ErrorBlock error : errorAreas) {
             int offsetX = 0, offsetY = 0;
@@ -214,6 +297,10 @@ public class ScreenShotFailureReporter {
      * Build a small html file that has mouse over picture change for fast
      * checking of errors and click on picture to switch between reference and
      * diff pictures.
+     * <p>
+     * Both images are embedded only once as CSS classes and the file is
+     * written as a stream, so the size of the file does not grow with the
+     * number of error blocks.
      * 
      * @param blocks
      *            List of ErrorBlock
@@ -221,82 +308,130 @@ public class ScreenShotFailureReporter {
      *            diff file
      * @param reference
      *            reference image file
-     * @param fileId
-     *            fileName for html file
+     * @param htmlFile
+     *            the html file to write
      */
-    private void createDiffHtml(List<ErrorBlock> blocks, String fileId,
+    private void createDiffHtml(List<ErrorBlock> blocks, File htmlFile,
             BufferedImage screenshotImage, BufferedImage referenceImage) {
-        String image = ImageUtil.encodeImageToBase64(screenshotImage);
-        String ref_image = ImageUtil.encodeImageToBase64(referenceImage);
         try {
-            PrintWriter writer = new PrintWriter(
-                    ImageFileUtil.getErrorScreenshotFile(fileId + ".html"));
-            // Write head
-            writer.println("<html>");
-            writer.println("<head>");
-            writer.println("<script type=\"text/javascript\">var difference = true;function switchImage(){"
-                    + "if(difference){difference = false;document.getElementById('reference').style.display='block';"
-                    + "document.getElementById('diff').style.display='none';}else{difference = true;"
-                    + "document.getElementById('reference').style.display='none';document.getElementById('diff').style.display='block';"
-                    + "}}</script>");
-            writer.println("</head>");
-            writer.println("<body onclick=\"switchImage()\" style=\"-moz-user-select: none; -webkit-user-select: none; -ms-user-select: none;\">");
-
-            writer.println("<div id=\"diff\" style=\"display: block; position: absolute; top: 0px; left: 0px;\"><img src=\"data:image/png;base64,"
-                    + image
-                    + "\"/><span style=\"position: absolute; top: 0px; left: 0px; opacity:0.4; filter: alpha(opacity=40); font-weight: bold;\">Image for this run</span></div>");
-            writer.println("<div id=\"reference\" style=\"display: none; position: absolute; top: 0px; left: 0px; z-index: 999;\"><img src=\"data:image/png;base64,"
-                    + ref_image + "\"/></div>");
-
-            int add = 0;
-            for (ErrorBlock error : blocks) {
-                int offsetX = 0, offsetY = 0;
-                if (error.getX() > 0) {
-                    offsetX = 1;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    htmlFile));
+            try {
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                        out, "UTF-8"));
+                // Write head
+                writer.println("<html>");
+                writer.println("<head>");
+                writer.println("<script type=\"text/javascript\">var difference = true;function switchImage(){"
+                        + "if(difference){difference = false;document.getElementById('reference').style.display='block';"
+                        + "document.getElementById('diff').style.display='none';}else{difference = true;"
+                        + "document.getElementById('reference').style.display='none';document.getElementById('diff').style.display='block';"
+                        + "}}</script>");
+                writer.println("<style type=\"text/css\">");
+                writeImageClass(writer, out, "screenshot", screenshotImage);
+                writeImageClass(writer, out, "reference", referenceImage);
+                writer.println("</style>");
+                writer.println("</head>");
+                writer.println("<body onclick=\"switchImage()\" style=\"-moz-user-select: none; -webkit-user-select: none; -ms-user-select: none;\">");
+
+                String title = "Image for this run";
+                if (alignment != null) {
+                    title += ": " + getSummary();
                 }
-                if (error.getY() > 0) {
-                    offsetY = 1;
+                // The reference is shown at its position in the screenshot
+                String referencePosition = "top: " + referenceY
+                        + "px; left: " + referenceX + "px;";
+                writer.println("<div id=\"diff\" style=\"display: block; position: absolute; top: 0px; left: 0px;\"><div class=\"screenshot\"></div>"
+                        + "<span style=\"position: absolute; top: 0px; left: 0px; opacity:0.4; filter: alpha(opacity=40); font-weight: bold;\">"
+                        + title + "</span></div>");
+                writer.println("<div id=\"reference\" style=\"display: none; position: absolute; "
+                        + referencePosition
+                        + " z-index: 999;\"><div class=\"reference\"></div></div>");
+
+                int add = 0;
+                for (ErrorBlock error : blocks) {
+                    int offsetX = 0, offsetY = 0;
+                    if (error.getX() > 0) {
+                        offsetX = 1;
+                    }
+                    if (error.getY() > 0) {
+                        offsetY = 1;
+                    }
+                    String id = "popUpDiv_" + (error.getX() + add) + "_"
+                            + (error.getY() + add);
+                    String clip = getClip(error, offsetX, offsetY, 0, 0);
+                    String screenshotClip = getClip(error, offsetX, offsetY,
+                            referenceX, referenceY);
+                    // position stars so that it's not out of screen.
+                    writer.println("<div class=\"screenshot\" onmouseover=\"document.getElementById('"
+                            + id
+                            + "').style.display='block'\"  style=\"z-index: 66;position: absolute; top: 0px; left: 0px; "
+                            + screenshotClip + "\"></div>");
+                    // "popup" div showing the reference
+                    writer.println("<div class=\"popUpDiv reference\" onclick=\"document.getElementById('reference').style.display='block'; document.getElementById('diff').style.display='none';\" onmouseout=\"this.style.display='none'\" id=\""
+                            + id
+                            + "\"  style=\"display: none; position: absolute; "
+                            + referencePosition + " " + clip + " z-index: " + (99 + add) + ";\"></div>");
+                    add++;
                 }
-                String id = "popUpDiv_" + (error.getX() + add) + "_"
-                        + (error.getY() + add);
-                // position stars so that it's not out of screen.
-                writer.println("<div  onmouseover=\"document.getElementById('"
-                        + id
-                        + "').style.display='block'\"  style=\"z-index: 66;position: absolute; top: 0px; left: 0px; clip: rect("
-                        + (error.getY() - offsetY) + "px,"
-                        + (error.getX() + (error.getXBlocks() * 16) + 1)
-                        + "px,"
-                        + (error.getY() + (error.getYBlocks() * 16) + 1)
-                        + "px," + (error.getX() - offsetX)
-                        + "px);\"><img src=\"data:image/png;base64," + image
-                        + "\"/></div>");
-                // Start "popup" div
-                writer.println("<div class=\"popUpDiv\" onclick=\"document.getElementById('reference').style.display='block'; document.getElementById('diff').style.display='none';\" onmouseout=\"this.style.display='none'\" id=\""
-                        + id
-                        + "\"  style=\"display: none; position: absolute; top: 0px; left: 0px; clip: rect("
-                        + (error.getY() - offsetY)
-                        + "px,"
-                        + (error.getX() + (error.getXBlocks() * 16) + 1)
-                        + "px,"
-                        + (error.getY() + (error.getYBlocks() * 16) + 1)
-                        + "px,"
-                        + (error.getX() - offsetX)
-                        + "px); z-index: "
-                        + (99 + add) + ";\">");
-                writer.println("<img src=\"data:image/png;base64," + ref_image
-                        + "\" />");
-                // End popup div
-                writer.println("</div>");
-                add++;
-            }
 
-            // End file
-            writer.println("</body></html>");
-            writer.flush();
-            writer.close();
-        } catch (FileNotFoundException e) {
+                // End file
+                writer.println("</body></html>");
+                writer.flush();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing diff report to "
+                    + htmlFile.getPath());
             e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the CSS clip for an error block, moved by (translateX,
+     * translateY).
+     */
+    private static String getClip(ErrorBlock error, int offsetX, int offsetY,
+            int translateX, int translateY) {
+        int x = error.getX() + translateX;
+        int y = error.getY() + translateY;
+        return "clip: rect(" + (y - offsetY) + "px,"
+                + (x + (error.getXBlocks() * 16) + 1) + "px,"
+                + (y + (error.getYBlocks() * 16) + 1) + "px," + (x - offsetX)
+                + "px);";
+    }
+
+    /**
+     * Writes a CSS class which shows the given image as the background of an
+     * element of the same size. The image is encoded as PNG and base64 directly
+     * into the output stream.
+     * 
+     * @param writer
+     *            the writer used for the text, writing to out
+     * @param out
+     *            the stream to write the image to
+     * @param className
+     *            the name of the CSS class
+     * @param image
+     *            the image
+     * @throws IOException
+     */
+    private void writeImageClass(PrintWriter writer, OutputStream out,
+            String className, BufferedImage image) throws IOException {
+        writer.print("." + className + " { width: " + image.getWidth()
+                + "px; height: " + image.getHeight()
+                + "px; background-image: url(data:image/png;base64,");
+        writer.flush();
+
+        // Closing the base64 stream writes the final bytes but must not close
+        // the report file
+        OutputStream base64 = new Base64OutputStream(
+                new NonClosingOutputStream(out), true, 0, null);
+        ImageIO.write(image, "png", base64);
+        base64.close();
+
+        writer.println("); }");
+    }
+
 }
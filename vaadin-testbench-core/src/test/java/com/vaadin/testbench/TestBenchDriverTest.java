@@ -31,8 +31,10 @@ import org.openqa.selenium.WebDriver.TargetLocator;
 import org.openqa.selenium.firefox.FirefoxDriver;
 import org.openqa.selenium.internal.WrapsDriver;
 
+import com.vaadin.testbench.commands.TestBenchCommandExecutor;
 import com.vaadin.testbench.commands.TestBenchCommands;
 import com.vaadin.testbench.commands.TestBenchElementCommands;
+import com.vaadin.testbench.screenshot.BlockImageComparator;
 
 public class TestBenchDriverTest {
 
@@ -43,6 +45,19 @@ public class TestBenchDriverTest {
         assertTrue(driver instanceof WebDriver);
     }
 
+    @Test
+    public void testCreateDriver_screenshotComparatorSet_usesComparator() {
+        Parameters.setScreenshotComparator("BlockImageComparator");
+        try {
+            WebDriver driver = TestBench
+                    .createDriver(createNiceMock(WebDriver.class));
+            assertTrue(((TestBenchCommandExecutor) driver)
+                    .getImageComparison().getComparator() instanceof BlockImageComparator);
+        } finally {
+            Parameters.setScreenshotComparator(null);
+        }
+    }
+
     @Test
     public void testTestBenchDriverActsAsProxy() {
         FirefoxDriver mockDriver = createMock(FirefoxDriver.class);
@@ -15,20 +15,32 @@ package com.vaadin.testbench.commands;
 import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import javax.imageio.ImageIO;
+
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
 import org.openqa.selenium.Capabilities;
 import org.openqa.selenium.OutputType;
+import org.openqa.selenium.Rectangle;
 import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
 import org.openqa.selenium.firefox.FirefoxDriver;
 import org.openqa.selenium.remote.RemoteWebDriver;
 
 import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ComparisonTimings;
+import com.vaadin.testbench.screenshot.ComparisonTimings.Phase;
 import com.vaadin.testbench.screenshot.ImageComparison;
 import com.vaadin.testbench.screenshot.ImageComparisonTest;
 import com.vaadin.testbench.screenshot.ReferenceNameGenerator;
@@ -39,6 +51,9 @@ public class TestBenchCommandExecutorTest {
     private static final String IMG_FOLDER = ImageComparisonTest.class
             .getPackage().getName().replace('.', '/');
 
+    private static final List<java.awt.Rectangle> NO_IGNORED_REGIONS = Collections
+            .emptyList();
+
     @Before
     public void setUp() {
     }
@@ -127,13 +142,13 @@ public class TestBenchCommandExecutorTest {
                 "cursor-bottom-edge-off.png");
 
         WebDriver driver = mockScreenshotDriver(1, false);
-        ImageComparison icMock = createMock(ImageComparison.class);
+        ImageComparison icMock = createImageComparisonMock();
         expect(
                 icMock.imageEqualToReference(isA(BufferedImage.class),
                         isA(BufferedImage.class),
                         eq("cursor-bottom-edge-off.png"),
-                        eq(Parameters.getScreenshotComparisonTolerance())))
-                .andReturn(true);
+                        eq(Parameters.getScreenshotComparisonTolerance()),
+                        eq(false))).andReturn(true);
         replay(driver, icMock);
 
         TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(driver,
@@ -151,13 +166,19 @@ public class TestBenchCommandExecutorTest {
                     "cursor-bottom-edge-off.png");
 
             WebDriver driver = mockScreenshotDriver(4, false);
-            ImageComparison icMock = createMock(ImageComparison.class);
+            ImageComparison icMock = createImageComparisonMock();
             expect(
                     icMock.imageEqualToReference(isA(BufferedImage.class),
                             isA(BufferedImage.class),
                             eq("cursor-bottom-edge-off.png"),
-                            eq(Parameters.getScreenshotComparisonTolerance())))
-                    .andReturn(false).times(4);
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            eq(false))).andReturn(false).times(3);
+            expect(
+                    icMock.imageEqualToReference(isA(BufferedImage.class),
+                            isA(BufferedImage.class),
+                            eq("cursor-bottom-edge-off.png"),
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            eq(true))).andReturn(false);
             replay(driver, icMock);
 
             TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(
@@ -175,12 +196,12 @@ public class TestBenchCommandExecutorTest {
         BufferedImage mockImg = createNiceMock(BufferedImage.class);
 
         WebDriver driver = mockScreenshotDriver(1, false);
-        ImageComparison icMock = createMock(ImageComparison.class);
+        ImageComparison icMock = createImageComparisonMock();
         expect(
                 icMock.imageEqualToReference(isA(BufferedImage.class),
                         isA(BufferedImage.class), eq("bar name"),
-                        eq(Parameters.getScreenshotComparisonTolerance())))
-                .andReturn(true);
+                        eq(Parameters.getScreenshotComparisonTolerance()),
+                        eq(false))).andReturn(true);
         replay(driver, icMock);
 
         TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(driver,
@@ -198,12 +219,17 @@ public class TestBenchCommandExecutorTest {
             BufferedImage mockImg = createNiceMock(BufferedImage.class);
 
             WebDriver driver = mockScreenshotDriver(4, false);
-            ImageComparison icMock = createMock(ImageComparison.class);
+            ImageComparison icMock = createImageComparisonMock();
             expect(
                     icMock.imageEqualToReference(isA(BufferedImage.class),
                             isA(BufferedImage.class), eq("bar name"),
-                            eq(Parameters.getScreenshotComparisonTolerance())))
-                    .andReturn(false).times(4);
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            eq(false))).andReturn(false).times(3);
+            expect(
+                    icMock.imageEqualToReference(isA(BufferedImage.class),
+                            isA(BufferedImage.class), eq("bar name"),
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            eq(true))).andReturn(false);
             replay(driver, icMock);
 
             TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(
@@ -216,6 +242,160 @@ public class TestBenchCommandExecutorTest {
         }
     }
 
+    @Test
+    public void testCompareScreen_element_comparesElementPixelsOnly()
+            throws IOException {
+        WebDriver driver = mockScreenshotDriver(1, true);
+        ReferenceNameGenerator rngMock = mockReferenceNameGenerator("foo",
+                "foo_bar_11");
+        // The screenshot is 175x64, the element extends past its bottom
+        // right corner
+        WebElement element = createMock(WebElement.class);
+        expect(element.getRect()).andReturn(new Rectangle(150, 50, 30, 40));
+        Capture<BufferedImage> screenshot = new Capture<BufferedImage>();
+        ImageComparison icMock = createImageComparisonMock();
+        expect(
+                icMock.imageEqualToReference(capture(screenshot),
+                        eq("foo_bar_11"),
+                        eq(Parameters.getScreenshotComparisonTolerance()),
+                        isA(Capabilities.class), eq(false),
+                        eq(NO_IGNORED_REGIONS))).andReturn(true);
+        replay(driver, element, icMock, rngMock);
+
+        TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(driver,
+                icMock, rngMock);
+        assertTrue(tbce.compareScreen(element, "foo"));
+
+        verify(driver, element, icMock, rngMock);
+        assertEquals(25, screenshot.getValue().getWidth());
+        assertEquals(14, screenshot.getValue().getHeight());
+    }
+
+    @Test
+    public void testCompareScreen_ignoredElements_regionsRelativeToElement()
+            throws IOException {
+        WebDriver driver = mockScreenshotDriver(1, true);
+        ReferenceNameGenerator rngMock = mockReferenceNameGenerator("foo",
+                "foo_bar_11");
+        WebElement element = createMock(WebElement.class);
+        expect(element.getRect()).andReturn(new Rectangle(20, 10, 40, 100));
+        WebElement ignored = createMock(WebElement.class);
+        expect(ignored.getRect()).andReturn(new Rectangle(30, 15, 5, 50));
+        ImageComparison icMock = createImageComparisonMock();
+        expect(
+                icMock.imageEqualToReference(isA(BufferedImage.class),
+                        eq("foo_bar_11"),
+                        eq(Parameters.getScreenshotComparisonTolerance()),
+                        isA(Capabilities.class), eq(false),
+                        eq(Arrays.asList(new java.awt.Rectangle(10, 5, 50, 5)))))
+                .andReturn(true);
+        replay(driver, element, ignored, icMock, rngMock);
+
+        TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(driver,
+                icMock, rngMock);
+        assertTrue(tbce.compareScreen(element, "foo", ignored));
+
+        verify(driver, element, ignored, icMock, rngMock);
+    }
+
+    @Test
+    public void testCompareScreen_waitForStableScreen_comparesOnce()
+            throws IOException {
+        Parameters.setScreenshotWaitForStableScreen(true);
+        try {
+            RemoteWebDriver driver = createMock(FirefoxDriver.class);
+            byte[] changing = ImageLoader.loadImageBytes(IMG_FOLDER,
+                    "cursor-bottom-edge-on.png");
+            byte[] stable = ImageLoader.loadImageBytes(IMG_FOLDER,
+                    "cursor-bottom-edge-off.png");
+            expect(driver.getScreenshotAs(OutputType.BYTES)).andReturn(
+                    changing);
+            expect(driver.getScreenshotAs(OutputType.BYTES)).andReturn(stable)
+                    .times(2);
+            expect(driver.getCapabilities()).andReturn(
+                    createNiceMock(Capabilities.class)).once();
+            ReferenceNameGenerator rngMock = mockReferenceNameGenerator("foo",
+                    "foo_bar_11");
+            // The only comparison creates the failure report
+            ImageComparison icMock = createImageComparisonMock();
+            expect(
+                    icMock.imageEqualToReference(isA(BufferedImage.class),
+                            eq("foo_bar_11"),
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            isA(Capabilities.class), eq(true),
+                            eq(NO_IGNORED_REGIONS))).andReturn(false);
+            replay(driver, icMock, rngMock);
+
+            TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(
+                    driver, icMock, rngMock);
+            assertFalse(tbce.compareScreen("foo"));
+
+            verify(driver, icMock, rngMock);
+            assertEquals(3, tbce.screenshotsCapturedLastComparison());
+            assertTrue(tbce.timeSpentWaitingLastComparison() > 0);
+            ComparisonTimings timings = tbce.timingsLastComparison();
+            assertEquals(3, timings.getCount(Phase.SCREENSHOT_DECODE));
+            assertEquals(2, timings.getCount(Phase.WAIT));
+            assertTrue(timings.getBytes(Phase.CAPTURE) > 0);
+            assertEquals(timings.getTotalNanos(), tbce
+                    .totalComparisonTimings().getTotalNanos());
+        } finally {
+            Parameters.setScreenshotWaitForStableScreen(false);
+        }
+    }
+
+    @Test
+    public void testCompareScreen_waitForStableScreen_ignoredRegionChanges_stable()
+            throws IOException {
+        Parameters.setScreenshotWaitForStableScreen(true);
+        try {
+            RemoteWebDriver driver = createMock(FirefoxDriver.class);
+            // The screen shots differ only inside the ignored region
+            expect(driver.getScreenshotAs(OutputType.BYTES)).andReturn(
+                    createPng(Color.RED));
+            expect(driver.getScreenshotAs(OutputType.BYTES)).andReturn(
+                    createPng(Color.BLUE));
+            expect(driver.getCapabilities()).andReturn(
+                    createNiceMock(Capabilities.class)).once();
+            ReferenceNameGenerator rngMock = mockReferenceNameGenerator("foo",
+                    "foo_bar_11");
+            ImageComparison icMock = createImageComparisonMock();
+            expect(
+                    icMock.imageEqualToReference(isA(BufferedImage.class),
+                            eq("foo_bar_11"),
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            isA(Capabilities.class), eq(true),
+                            eq(Arrays.asList(new java.awt.Rectangle(10, 10,
+                                    20, 20))))).andReturn(true);
+            replay(driver, icMock, rngMock);
+
+            TestBenchCommandExecutor tbce = new TestBenchCommandExecutor(
+                    driver, icMock, rngMock);
+            assertTrue(tbce.compareScreen("foo",
+                    new Rectangle(10, 10, 20, 20)));
+
+            verify(driver, icMock, rngMock);
+            assertEquals(2, tbce.screenshotsCapturedLastComparison());
+        } finally {
+            Parameters.setScreenshotWaitForStableScreen(false);
+        }
+    }
+
+    private static byte[] createPng(Color ignoredRegionColor)
+            throws IOException {
+        BufferedImage image = new BufferedImage(64, 64,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 64, 64);
+        g.setColor(ignoredRegionColor);
+        g.fillRect(10, 10, 20, 20);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
     private WebDriver mockScreenshotDriver(int nrScreenshotsGrabbed,
             boolean expectGetCapabilities) throws IOException {
         RemoteWebDriver driver = createMock(FirefoxDriver.class);
@@ -238,15 +418,30 @@ public class TestBenchCommandExecutorTest {
         return rngMock;
     }
 
+    /**
+     * Creates a mock image comparison which accepts the timings of the
+     * comparisons being set.
+     */
+    private static ImageComparison createImageComparisonMock() {
+        ImageComparison icMock = createMock(ImageComparison.class);
+        icMock.setTimings((ComparisonTimings) anyObject());
+        expectLastCall().anyTimes();
+        return icMock;
+    }
+
     private ImageComparison mockImageComparison(int timesCalled,
             String referenceName, boolean expected) throws IOException {
-        ImageComparison icMock = createMock(ImageComparison.class);
-        expect(
-                icMock.imageEqualToReference(isA(BufferedImage.class),
-                        eq(referenceName),
-                        eq(Parameters.getScreenshotComparisonTolerance()),
-                        isA(Capabilities.class))).andReturn(expected).times(
-                timesCalled);
+        ImageComparison icMock = createImageComparisonMock();
+        int maxRetries = Parameters.getMaxScreenshotRetries();
+        for (int i = 0; i < timesCalled; i++) {
+            // Only the last attempt creates a failure report
+            expect(
+                    icMock.imageEqualToReference(isA(BufferedImage.class),
+                            eq(referenceName),
+                            eq(Parameters.getScreenshotComparisonTolerance()),
+                            isA(Capabilities.class), eq(i == maxRetries - 1),
+                            eq(NO_IGNORED_REGIONS))).andReturn(expected);
+        }
         return icMock;
     }
 
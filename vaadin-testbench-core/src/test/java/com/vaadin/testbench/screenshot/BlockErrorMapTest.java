@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BlockErrorMapTest {
+
+    @Test
+    public void set_blocksInDifferentWords_marksOnlyGivenBlocks() {
+        BlockErrorMap map = new BlockErrorMap(130, 3);
+        assertTrue(map.isEmpty());
+
+        map.set(0, 0);
+        map.set(63, 1);
+        map.set(64, 1);
+        map.set(129, 2);
+
+        assertFalse(map.isEmpty());
+        assertEquals(4, map.cardinality());
+        assertTrue(map.get(0, 0));
+        assertTrue(map.get(63, 1));
+        assertTrue(map.get(64, 1));
+        assertTrue(map.get(129, 2));
+        assertFalse(map.get(0, 1));
+        assertFalse(map.get(129, 1));
+        assertFalse(map.get(1, 2));
+    }
+
+    @Test
+    public void nextSetBlock_iteratesInRowMajorOrder() {
+        BlockErrorMap map = new BlockErrorMap(70, 4);
+        map.set(69, 0);
+        map.set(3, 2);
+        map.set(1, 2);
+        map.set(65, 3);
+
+        int[] expected = new int[] { 69, 2 * 70 + 1, 2 * 70 + 3, 3 * 70 + 65 };
+        int i = map.nextSetBlock(0);
+        for (int block : expected) {
+            assertEquals(block, i);
+            i = map.nextSetBlock(i + 1);
+        }
+        assertEquals(-1, i);
+    }
+
+    @Test
+    public void fromArray_sameBlocksMarked() {
+        boolean[][] falseBlocks = new boolean[3][2];
+        falseBlocks[2][0] = true;
+        falseBlocks[0][1] = true;
+
+        BlockErrorMap map = BlockErrorMap.fromArray(falseBlocks);
+        assertEquals(3, map.getXBlocks());
+        assertEquals(2, map.getYBlocks());
+        assertEquals(2, map.cardinality());
+        assertTrue(map.get(2, 0));
+        assertTrue(map.get(0, 1));
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ComparisonTimings.Phase;
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ComparisonTimingsTest {
+
+    private static final String FOLDER = ComparisonTimingsTest.class
+            .getPackage().getName().replace('.', '/');
+
+    @Test
+    public void addAll_sumsPhases() {
+        ComparisonTimings timings = new ComparisonTimings();
+        timings.add(Phase.CAPTURE, 100, 5000);
+        timings.add(Phase.CAPTURE, 50, 1000);
+        timings.add(Phase.COMPARISON, 20, 0);
+
+        ComparisonTimings total = new ComparisonTimings();
+        total.addAll(timings);
+        total.addAll(timings);
+        assertEquals(300, total.getNanos(Phase.CAPTURE));
+        assertEquals(12000, total.getBytes(Phase.CAPTURE));
+        assertEquals(4, total.getCount(Phase.CAPTURE));
+        assertEquals(0, total.getCount(Phase.REPORT));
+        assertEquals(340, total.getTotalNanos());
+    }
+
+    @Test
+    public void toJson_allPhases() {
+        ComparisonTimings timings = new ComparisonTimings();
+        timings.add(Phase.SCREENSHOT_DECODE, 100, 4096);
+
+        assertEquals("{\"totalNanos\":100,"
+                + "\"capture\":{\"nanos\":0,\"bytes\":0,\"count\":0},"
+                + "\"screenshotDecode\":{\"nanos\":100,\"bytes\":4096,\"count\":1},"
+                + "\"wait\":{\"nanos\":0,\"bytes\":0,\"count\":0},"
+                + "\"referenceRead\":{\"nanos\":0,\"bytes\":0,\"count\":0},"
+                + "\"comparison\":{\"nanos\":0,\"bytes\":0,\"count\":0},"
+                + "\"cursorDetection\":{\"nanos\":0,\"bytes\":0,\"count\":0},"
+                + "\"report\":{\"nanos\":0,\"bytes\":0,\"count\":0}}",
+                timings.toJson());
+    }
+
+    @Test
+    public void imageComparison_cursorDetected_phasesRecorded()
+            throws IOException {
+        boolean cursorDetection = Parameters
+                .isScreenshotComparisonCursorDetection();
+        Parameters.setScreenshotComparisonCursorDetection(true);
+        try {
+            BufferedImage screenshot = ImageLoader.loadImage(FOLDER,
+                    "cursor-on.png");
+            BufferedImage reference = ImageLoader.loadImage(FOLDER,
+                    "cursor-off.png");
+            ComparisonTimings timings = new ComparisonTimings();
+            ImageComparison comparison = new ImageComparison();
+            comparison.setTimings(timings);
+
+            assertTrue(comparison.compareImages(reference, screenshot, 0));
+            assertEquals(1, timings.getCount(Phase.COMPARISON));
+            assertEquals(2L * 4 * reference.getWidth() * reference.getHeight(),
+                    timings.getBytes(Phase.COMPARISON));
+            assertEquals(1, timings.getCount(Phase.CURSOR_DETECTION));
+
+            comparison.setTimings(null);
+            comparison.compareImages(reference, screenshot, 0);
+            assertEquals(1, timings.getCount(Phase.COMPARISON));
+        } finally {
+            Parameters.setScreenshotComparisonCursorDetection(cursorDetection);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+
+public class ErrorFileWriterTest {
+
+    private final int queueSize = Parameters
+            .getScreenshotErrorWriterQueueSize();
+
+    @After
+    public void tearDown() {
+        Parameters.setScreenshotErrorWriterQueueSize(queueSize);
+    }
+
+    @Test
+    public void flush_manyWrites_allWritesFinished() {
+        Parameters.setScreenshotErrorWriterQueueSize(2);
+        final AtomicInteger finished = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            // More writes than fit in the queue, the rest are run by this
+            // thread
+            ErrorFileWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    finished.incrementAndGet();
+                }
+            });
+        }
+
+        ErrorFileWriter.flush();
+        assertEquals(10, finished.get());
+    }
+
+    @Test
+    public void execute_queueSizeZero_writesInCallingThread() {
+        Parameters.setScreenshotErrorWriterQueueSize(0);
+        final Thread[] writer = new Thread[1];
+        ErrorFileWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                writer[0] = Thread.currentThread();
+            }
+        });
+        assertSame(Thread.currentThread(), writer[0]);
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static com.vaadin.testbench.testutils.ImageFactory.createImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ErrorScreenshotReevaluator.Result;
+import com.vaadin.testbench.screenshot.ErrorScreenshotReevaluator.Status;
+
+public class ErrorScreenshotReevaluatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File referenceDirectory;
+    private File errorDirectory;
+    private String oldReferenceDirectory;
+    private String oldErrorDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        referenceDirectory = temporaryFolder.newFolder("reference");
+        errorDirectory = temporaryFolder.newFolder("errors");
+        oldReferenceDirectory = Parameters.getScreenshotReferenceDirectory();
+        oldErrorDirectory = Parameters.getScreenshotErrorDirectory();
+        Parameters.setScreenshotReferenceDirectory(referenceDirectory
+                .getPath());
+        Parameters.setScreenshotErrorDirectory(errorDirectory.getPath());
+
+        // Differs slightly from the reference of the previous Chrome version
+        write(createImage(0x808080, 32, 32), referenceDirectory,
+                "slider_linux_chrome_38.png");
+        write(createImage(0x808088, 32, 32), errorDirectory,
+                "slider_linux_chrome_40.png");
+        // Matches the alternative reference
+        write(createImage(0x000000, 32, 32), referenceDirectory, "button.png");
+        write(createImage(0xffffff, 32, 32), referenceDirectory,
+                "button_1.png");
+        write(createImage(0xffffff, 32, 32), errorDirectory, "button.png");
+        // Failure screenshot without a reference
+        write(createImage(0xffffff, 32, 32), errorDirectory, "failure.png");
+    }
+
+    @After
+    public void tearDown() {
+        Parameters.setScreenshotReferenceDirectory(oldReferenceDirectory);
+        Parameters.setScreenshotErrorDirectory(oldErrorDirectory);
+    }
+
+    @Test
+    public void evaluate_exactTolerance_onlyIdenticalPass() throws IOException {
+        List<Result> results = new ErrorScreenshotReevaluator(errorDirectory,
+                0).evaluate(2);
+        assertEquals(3, results.size());
+        assertResult(results.get(0), "button.png", Status.PASSED,
+                "button_1.png");
+        assertResult(results.get(1), "failure.png", Status.NO_REFERENCE, null);
+        assertResult(results.get(2), "slider_linux_chrome_40.png",
+                Status.FAILED, null);
+    }
+
+    @Test
+    public void evaluate_higherTolerance_previousBrowserVersionPasses()
+            throws IOException {
+        ErrorScreenshotReevaluator reevaluator = new ErrorScreenshotReevaluator(
+                errorDirectory, 0.1);
+        List<Result> results = reevaluator.evaluate(2);
+        assertResult(results.get(2), "slider_linux_chrome_40.png",
+                Status.PASSED, "slider_linux_chrome_38.png");
+
+        StringWriter summary = new StringWriter();
+        reevaluator.writeSummary(results, new PrintWriter(summary));
+        assertTrue(summary.toString().contains("PASSED: 2"));
+        assertTrue(summary.toString().contains("NO_REFERENCE: 1"));
+        assertTrue(summary.toString().contains(
+                "PASSED slider_linux_chrome_40.png (slider_linux_chrome_38.png)"));
+    }
+
+    @Test
+    public void evaluate_notAnImage_errorWithMessage() throws IOException {
+        write(createImage(0xffffff, 32, 32), referenceDirectory, "broken.png");
+        FileOutputStream out = new FileOutputStream(new File(errorDirectory,
+                "broken.png"));
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+
+        ErrorScreenshotReevaluator reevaluator = new ErrorScreenshotReevaluator(
+                errorDirectory, 0);
+        List<Result> results = reevaluator.evaluate(2);
+        Result result = results.get(0);
+        assertResult(result, "broken.png", Status.ERROR, null);
+        assertEquals("Not an image", result.getMessage());
+        assertNull(results.get(1).getMessage());
+
+        StringWriter summary = new StringWriter();
+        reevaluator.writeSummary(results, new PrintWriter(summary));
+        assertTrue(summary.toString().contains(
+                "ERROR broken.png: Not an image"));
+    }
+
+    private static void assertResult(Result result, String fileName,
+            Status status, String reference) {
+        assertEquals(fileName, result.getFileName());
+        assertEquals(status, result.getStatus());
+        assertEquals(reference, result.getReference());
+    }
+
+    private static void write(BufferedImage image, File directory,
+            String fileName) throws IOException {
+        ImageIO.write(image, "png", new File(directory, fileName));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IgnoreMaskTest {
+
+    @Test
+    public void regionCoveringBlocks_blocksIgnored() {
+        IgnoreMask mask = new IgnoreMask(64, 64,
+                Arrays.asList(new Rectangle(16, 16, 32, 16)));
+
+        assertTrue(mask.isBlockIgnored(1, 1));
+        assertTrue(mask.isBlockIgnored(2, 1));
+        assertFalse(mask.isBlockIgnored(0, 1));
+        assertFalse(mask.isBlockIgnored(1, 2));
+        assertNull(mask.getIgnoredPixels(1, 1));
+        assertNull(mask.getIgnoredPixels(0, 0));
+    }
+
+    @Test
+    public void regionInsideBlock_pixelsIgnored() {
+        IgnoreMask mask = new IgnoreMask(64, 64,
+                Arrays.asList(new Rectangle(18, 30, 3, 4)));
+
+        assertFalse(mask.isBlockIgnored(1, 1));
+        int[] expected = new int[16];
+        expected[14] = 0x1c;
+        expected[15] = 0x1c;
+        assertArrayEquals(expected, mask.getIgnoredPixels(1, 1));
+        expected = new int[16];
+        expected[0] = 0x1c;
+        expected[1] = 0x1c;
+        assertArrayEquals(expected, mask.getIgnoredPixels(1, 2));
+    }
+
+    @Test
+    public void regionsTogetherCoveringBlock_blockIgnored() {
+        IgnoreMask mask = new IgnoreMask(64, 64, Arrays.asList(new Rectangle(
+                0, 0, 10, 16), new Rectangle(8, 0, 8, 16)));
+
+        assertTrue(mask.isBlockIgnored(0, 0));
+        assertNull(mask.getIgnoredPixels(0, 0));
+    }
+
+    @Test
+    public void regionOutsideImage_clipped() {
+        // The last blocks are only 4 pixels wide and high
+        IgnoreMask mask = new IgnoreMask(20, 20,
+                Arrays.asList(new Rectangle(16, 10, 100, 100)));
+
+        assertTrue(mask.isBlockIgnored(1, 1));
+        assertFalse(mask.isBlockIgnored(0, 1));
+        int[] expected = new int[16];
+        for (int y = 10; y < 16; y++) {
+            expected[y] = 0xf;
+        }
+        assertArrayEquals(expected, mask.getIgnoredPixels(1, 0));
+
+        mask = new IgnoreMask(20, 20,
+                Arrays.asList(new Rectangle(-10, -10, 5, 5)));
+        assertFalse(mask.isBlockIgnored(0, 0));
+        assertNull(mask.getIgnoredPixels(0, 0));
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ImageAlignmentTest {
+
+    private static final String FOLDER = ImageAlignmentTest.class
+            .getPackage().getName().replace('.', '/')
+            + "/masking";
+
+    private BufferedImage reference;
+
+    @Before
+    public void setUp() throws IOException {
+        reference = ImageLoader.loadImage(FOLDER, "google1.png");
+    }
+
+    @Test
+    public void find_contentMovedDown_offsetFound() {
+        BufferedImage screenshot = shift(reference, 0, 37, 0, 50);
+
+        ImageAlignment alignment = ImageAlignment.find(reference, screenshot);
+        assertEquals(0, alignment.getOffsetX());
+        assertEquals(37, alignment.getOffsetY());
+        assertEquals("content shifted by 37 px down", alignment.toString());
+        assertEquals(new Rectangle(0, 37, reference.getWidth(),
+                reference.getHeight()), alignment.getScreenshotOverlap());
+    }
+
+    @Test
+    public void find_scrollbarAndContentMovedLeft_offsetFound() {
+        // Narrower screenshot with the content moved left and up
+        BufferedImage screenshot = shift(reference, -5, -3, -15, -3);
+
+        ImageAlignment alignment = ImageAlignment.find(reference, screenshot);
+        assertEquals(-5, alignment.getOffsetX());
+        assertEquals(-3, alignment.getOffsetY());
+        assertEquals("content shifted by 5 px left and 3 px up",
+                alignment.toString());
+        assertEquals(new Rectangle(5, 3, reference.getWidth() - 15,
+                reference.getHeight() - 3), alignment.getReferenceOverlap());
+    }
+
+    @Test
+    public void findDifferences_shiftedContent_noDifferingBlocks() {
+        BufferedImage screenshot = shift(reference, 0, 37, 0, 50);
+
+        ScreenShotFailureReporter reporter = new ImageComparison()
+                .findDifferences(reference, screenshot, 0.0);
+        assertNotNull(reporter);
+        assertTrue(reporter.getAlignment().isShifted());
+        assertTrue(reporter.collectErrorsToList().isEmpty());
+        assertEquals(
+                "image sizes differ, content shifted by 37 px down, no other differences",
+                reporter.getSummary());
+    }
+
+    @Test
+    public void findDifferences_shiftedAndChangedContent_onlyChangeReported() {
+        BufferedImage screenshot = shift(reference, 0, 37, 0, 50);
+        Graphics2D g = screenshot.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(100, 37 + 100, 10, 10);
+        g.dispose();
+
+        ScreenShotFailureReporter reporter = new ImageComparison()
+                .findDifferences(reference, screenshot, 0.0);
+        assertEquals(37, reporter.getAlignment().getOffsetY());
+        assertEquals(1, reporter.collectErrorsToList().size());
+        assertEquals(
+                "image sizes differ, content shifted by 37 px down, content changed",
+                reporter.getSummary());
+    }
+
+    @Test
+    public void compareImages_differentSize_notEqual() {
+        BufferedImage screenshot = shift(reference, 0, 37, 0, 50);
+        assertFalse(new ImageComparison().imageEqualToReference(screenshot,
+                reference, "shifted.png", 0.0, false));
+    }
+
+    /**
+     * Draws the image at (x,y) on a white image which is (dw,dh) pixels larger
+     * than the image.
+     */
+    private static BufferedImage shift(BufferedImage image, int x, int y,
+            int dw, int dh) {
+        BufferedImage shifted = new BufferedImage(image.getWidth() + dw,
+                image.getHeight() + dh, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = shifted.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, shifted.getWidth(), shifted.getHeight());
+        g.drawImage(image, x, y, null);
+        g.dispose();
+        return shifted;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
+
+public class ImageComparatorTest {
+
+    @Test
+    public void getBlockDifference_randomImages_sameResultAsBlockComparator() {
+        Random random = new Random(1);
+        // Partly transparent reference so that some pixels are masked
+        BufferedImage reference = createImage(random, 70, 50,
+                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage screenshot = createImage(random, 70, 50,
+                BufferedImage.TYPE_INT_RGB);
+        // Make some blocks more similar than others
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 35; x++) {
+                if (random.nextInt(4) != 0) {
+                    screenshot.setRGB(x, y, reference.getRGB(x, y));
+                }
+            }
+        }
+
+        assertSameDifferences(reference, screenshot);
+        assertSameDifferences(reference.getSubimage(3, 5, 60, 40),
+                screenshot.getSubimage(3, 5, 60, 40));
+    }
+
+    @Test
+    public void imageComparison_screenshotComparatorParameter_used() {
+        assertTrue(new ImageComparison().getComparator() instanceof FastImageComparator);
+        try {
+            Parameters.setScreenshotComparator("BlockImageComparator");
+            assertTrue(new ImageComparison().getComparator() instanceof BlockImageComparator);
+            Parameters.setScreenshotComparator(BlockImageComparator.class
+                    .getName());
+            assertTrue(new ImageComparison().getComparator() instanceof BlockImageComparator);
+        } finally {
+            Parameters.setScreenshotComparator(null);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void imageComparison_unknownScreenshotComparator_throws() {
+        try {
+            Parameters.setScreenshotComparator("NoSuchComparator");
+            new ImageComparison();
+        } finally {
+            Parameters.setScreenshotComparator(null);
+        }
+    }
+
+    @Test
+    public void getBlockDifference_identicalImages_noDifference() {
+        BufferedImage image = createImage(new Random(2), 40, 40,
+                BufferedImage.TYPE_INT_RGB);
+        ImageProperties properties = ImageUtil.getImageProperties(image);
+        assertEquals(0, new FastImageComparator().getBlockDifference(
+                properties, properties, 16, 16, 16, 16), 0);
+    }
+
+    @Test
+    public void getBlockDifference_ignoredPixels_sameAsTransparentReference() {
+        Random random = new Random(3);
+        BufferedImage reference = createImage(random, 16, 16,
+                BufferedImage.TYPE_INT_ARGB);
+        BufferedImage screenshot = createImage(random, 16, 16,
+                BufferedImage.TYPE_INT_RGB);
+        int[] ignoredPixels = new int[16];
+        BufferedImage masked = new BufferedImage(16, 16,
+                BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 16; y++) {
+            ignoredPixels[y] = random.nextInt(1 << 16);
+            for (int x = 0; x < 16; x++) {
+                int argb = reference.getRGB(x, y);
+                if ((ignoredPixels[y] & (1 << x)) != 0) {
+                    argb &= 0xffffff;
+                }
+                masked.setRGB(x, y, argb);
+            }
+        }
+
+        ImageProperties ref = ImageUtil.getImageProperties(reference);
+        ImageProperties ss = ImageUtil.getImageProperties(screenshot);
+        double expected = new BlockImageComparator().getBlockDifference(
+                ImageUtil.getImageProperties(masked), ss, 0, 0, 16, 16);
+        assertTrue(expected > 0);
+        assertEquals(expected, new BlockImageComparator().getBlockDifference(
+                ref, ss, 0, 0, 16, 16, ignoredPixels), 0);
+        assertEquals(expected, new FastImageComparator().getBlockDifference(
+                ref, ss, 0, 0, 16, 16, ignoredPixels), 0);
+    }
+
+    private void assertSameDifferences(BufferedImage reference,
+            BufferedImage screenshot) {
+        ImageProperties ref = ImageUtil.getImageProperties(reference);
+        ImageProperties ss = ImageUtil.getImageProperties(screenshot);
+        ImageComparator expected = new BlockImageComparator();
+        ImageComparator fast = new FastImageComparator();
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        for (int y = 0; y < height; y += 16) {
+            for (int x = 0; x < width; x += 16) {
+                int blockWidth = Math.min(16, width - x);
+                int blockHeight = Math.min(16, height - y);
+                double difference = expected.getBlockDifference(ref, ss, x, y,
+                        blockWidth, blockHeight);
+                assertTrue(difference > 0);
+                assertEquals(difference, fast.getBlockDifference(ref, ss, x,
+                        y, blockWidth, blockHeight), 0);
+            }
+        }
+    }
+
+    private BufferedImage createImage(Random random, int width, int height,
+            int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = random.nextInt();
+                if (random.nextInt(3) != 0) {
+                    // Mostly opaque
+                    argb |= 0xff000000;
+                }
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+}
@@ -12,13 +12,24 @@
  */
 package com.vaadin.testbench.screenshot;
 
+import static com.vaadin.testbench.testutils.ImageFactory.createImage;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.ImageIO;
 
 import org.junit.After;
 import org.junit.Before;
@@ -27,6 +38,7 @@ import org.junit.Test;
 import org.junit.rules.TestName;
 
 import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.screenshot.ImageUtil.ImageProperties;
 import com.vaadin.testbench.testutils.ImageLoader;
 
 public class ImageComparisonTest {
@@ -249,6 +261,179 @@ public class ImageComparisonTest {
                 "reference738x624", 1, null));
     }
 
+    @Test
+    public void parallelComparison() throws IOException {
+        Parameters.setScreenshotComparisonThreads(4);
+        try {
+            testFullCompareImages("big-image.png", "big-image-ss.png", false,
+                    0.05);
+            testFullCompareImages("cursor2-on-outline-on.png",
+                    "cursor2-on-outline-off.png", false, 0.0);
+            testFullCompareImages("cursor2-on-outline-on.png",
+                    "cursor2-on-outline-off.png", true, 0.02);
+            testFullCompareImages("cursor3-ref.png", "cursor3-new.png",
+                    false, 0.025);
+
+            Parameters.setScreenshotComparisonCursorDetection(true);
+            testFullCompareImages("no-outline-cursor.png",
+                    "outline-no-cursor.png", true, 0.025);
+        } finally {
+            Parameters.setScreenshotComparisonThreads(0);
+        }
+    }
+
+    @Test
+    public void testImageEqualToReference_matchingAlternative_true()
+            throws IOException {
+        File referenceDirectory = File.createTempFile("reference", "");
+        referenceDirectory.delete();
+        referenceDirectory.mkdir();
+        String oldReferenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(referenceDirectory
+                .getPath());
+        String referenceName = testName.getMethodName();
+        File errorFile = ImageFileUtil.getErrorScreenshotFile(referenceName
+                + ".png");
+        errorFile.delete();
+        try {
+            int[] colors = new int[] { 0x000000, 0x808080, 0xffffff, 0x0000ff };
+            for (int i = 0; i < colors.length; i++) {
+                ImageIO.write(createImage(colors[i], 160, 160), "png",
+                        new File(referenceDirectory, referenceName
+                                + (i == 0 ? "" : "_" + i) + ".png"));
+            }
+            ImageComparison ic = new ImageComparison();
+            for (int threads : new int[] { 1, 4 }) {
+                Parameters.setScreenshotComparisonThreads(threads);
+                assertTrue(ic.imageEqualToReference(
+                        createImage(0xffffff, 160, 160), referenceName, 0,
+                        null, true));
+                assertTrue(ic.imageEqualToReference(
+                        createImage(0x0000ff, 160, 160), referenceName, 0,
+                        null, true));
+                assertFalse(ic.imageEqualToReference(
+                        createImage(0xff0000, 160, 160), referenceName, 0,
+                        null, false));
+            }
+            ErrorFileWriter.flush();
+            assertFalse(errorFile.exists());
+
+            assertFalse(ic.imageEqualToReference(
+                    createImage(0xff0000, 160, 160), referenceName, 0, null,
+                    true));
+            ErrorFileWriter.flush();
+            assertTrue(errorFile.exists());
+        } finally {
+            Parameters.setScreenshotComparisonThreads(0);
+            Parameters.setScreenshotReferenceDirectory(oldReferenceDirectory);
+            for (File file : referenceDirectory.listFiles()) {
+                file.delete();
+            }
+            referenceDirectory.delete();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testImageEqualToReference_largeAlternatives_noDeadlock()
+            throws IOException {
+        File referenceDirectory = File.createTempFile("reference", "");
+        referenceDirectory.delete();
+        referenceDirectory.mkdir();
+        String oldReferenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(referenceDirectory
+                .getPath());
+        String referenceName = testName.getMethodName();
+        try {
+            // Tall enough for comparing the images in bands in parallel. The
+            // shared executor may have grown in earlier tests, so there are
+            // enough differing alternatives to occupy all of its threads.
+            int alternatives = Runtime.getRuntime().availableProcessors() + 2;
+            for (int i = 0; i <= alternatives; i++) {
+                ImageIO.write(createImage(i == alternatives ? 0xffffff
+                        : i * 8, 320, 320), "png", new File(
+                        referenceDirectory, referenceName
+                                + (i == 0 ? "" : "_" + i) + ".png"));
+            }
+            Parameters.setScreenshotComparisonThreads(2);
+            ImageComparison ic = new ImageComparison();
+            for (int i = 0; i < 10; i++) {
+                assertTrue(ic.imageEqualToReference(
+                        createImage(0xffffff, 320, 320), referenceName, 0,
+                        null, false));
+                assertFalse(ic.imageEqualToReference(
+                        createImage(0xff0000, 320, 320), referenceName, 0,
+                        null, false));
+            }
+        } finally {
+            Parameters.setScreenshotComparisonThreads(0);
+            Parameters.setScreenshotReferenceDirectory(oldReferenceDirectory);
+            for (File file : referenceDirectory.listFiles()) {
+                file.delete();
+            }
+            referenceDirectory.delete();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testImageEqualToReference_mainMatchesWhileAlternativeRuns_waitsForAlternative()
+            throws IOException {
+        File referenceDirectory = File.createTempFile("reference", "");
+        referenceDirectory.delete();
+        referenceDirectory.mkdir();
+        String oldReferenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(referenceDirectory
+                .getPath());
+        String referenceName = testName.getMethodName();
+        final int alternativeColor = 0x808080;
+        final CountDownLatch alternativeStarted = new CountDownLatch(1);
+        final AtomicBoolean alternativeFinished = new AtomicBoolean();
+        // Keeps the alternative busy until after the main reference has
+        // matched
+        ImageComparator comparator = new FastImageComparator() {
+            @Override
+            public double getBlockDifference(ImageProperties reference,
+                    ImageProperties screenshot, int x, int y, int width,
+                    int height) {
+                int pixel = reference.getPixels()[reference.getOffset(x, y)];
+                try {
+                    if ((pixel & 0xffffff) == alternativeColor) {
+                        alternativeStarted.countDown();
+                        Thread.sleep(500);
+                        alternativeFinished.set(true);
+                    } else {
+                        alternativeStarted.await(5, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.getBlockDifference(reference, screenshot, x, y,
+                        width, height);
+            }
+        };
+        try {
+            ImageIO.write(createImage(0xffffff, 16, 16), "png", new File(
+                    referenceDirectory, referenceName + ".png"));
+            ImageIO.write(createImage(alternativeColor, 16, 16), "png",
+                    new File(referenceDirectory, referenceName + "_1.png"));
+            Parameters.setScreenshotComparisonThreads(2);
+
+            assertTrue(new ImageComparison(comparator).imageEqualToReference(
+                    createImage(0xffffff, 16, 16), referenceName, 0, null,
+                    false));
+            assertTrue(alternativeFinished.get());
+        } finally {
+            Parameters.setScreenshotComparisonThreads(0);
+            Parameters.setScreenshotReferenceDirectory(oldReferenceDirectory);
+            for (File file : referenceDirectory.listFiles()) {
+                file.delete();
+            }
+            referenceDirectory.delete();
+        }
+    }
+
     private void testFullCompareImages(String referenceFilename,
             String screenshotFilename, boolean shouldBeEqual,
             double errorTolerance) throws IOException {
@@ -336,6 +521,78 @@ public class ImageComparisonTest {
                 "16x16-reference.png", 0));
     }
 
+    @Test
+    public void testImageEqualToReference_withoutFailureReport_noErrorFilesWritten()
+            throws IOException {
+        ImageComparison ic = new ImageComparison();
+        BufferedImage screenshotImage = ImageLoader.loadImage(FOLDER,
+                "cursor3-new.png");
+        BufferedImage referenceImage = ImageLoader.loadImage(FOLDER,
+                "cursor3-ref.png");
+        String referenceName = testName.getMethodName() + ".png";
+        File errorFile = ImageFileUtil.getErrorScreenshotFile(referenceName);
+        errorFile.delete();
+
+        assertFalse(ic.imageEqualToReference(screenshotImage, referenceImage,
+                referenceName, 0, false));
+        ErrorFileWriter.flush();
+        assertFalse(errorFile.exists());
+
+        assertFalse(ic.imageEqualToReference(screenshotImage, referenceImage,
+                referenceName, 0, true));
+        ErrorFileWriter.flush();
+        assertTrue(errorFile.exists());
+    }
+
+    @Test
+    public void testImageEqualToReference_manyErrors_imagesEmbeddedOnce()
+            throws IOException {
+        ImageComparison ic = new ImageComparison();
+        BufferedImage referenceImage = new BufferedImage(160, 160,
+                BufferedImage.TYPE_INT_RGB);
+        BufferedImage screenshotImage = new BufferedImage(160, 160,
+                BufferedImage.TYPE_INT_RGB);
+        // Separate differing blocks along the diagonal
+        for (int i = 0; i < 160; i += 32) {
+            screenshotImage.setRGB(i, i, 0xffffff);
+        }
+        String referenceName = testName.getMethodName() + ".png";
+
+        assertFalse(ic.imageEqualToReference(screenshotImage, referenceImage,
+                referenceName, 0, true));
+        ErrorFileWriter.flush();
+        File htmlFile = ImageFileUtil.getErrorScreenshotFile(referenceName
+                + ".html");
+        String html = readFile(htmlFile);
+        assertEquals(5, countOccurrences(html, "id=\"popUpDiv_"));
+        assertEquals(2, countOccurrences(html, "base64,"));
+    }
+
+    private static String readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    private static int countOccurrences(String string, String part) {
+        int count = 0;
+        int index = string.indexOf(part);
+        while (index != -1) {
+            count++;
+            index = string.indexOf(part, index + part.length());
+        }
+        return count;
+    }
+
     @Test
     public void testImageEqualToReference_cursorError_true() throws IOException {
         Parameters.setScreenshotComparisonCursorDetection(true);
@@ -355,4 +612,30 @@ public class ImageComparisonTest {
         testFullCompareImages("cursor-like-diff-at-0x15-ref.png",
                 "cursor-like-diff-at-0x15-new.png", false, 0.01);
     }
+
+    @Test
+    public void testCompareImages_cursorInThreeBlocks_true() {
+        Parameters.setScreenshotComparisonCursorDetection(true);
+        BufferedImage reference = createImage(0xffffff, 64, 64);
+        BufferedImage screenshot = createImage(0xffffff, 64, 64);
+        // A 40 pixels high cursor covering three blocks
+        drawLine(screenshot, 20, 4, 44);
+
+        assertTrue(new ImageComparison().compareImages(reference, screenshot,
+                0));
+        assertTrue(new ImageComparison().imageEqualToReference(screenshot,
+                reference, "cursor.png", 0, false));
+
+        // The cursor is not the only difference in the blocks
+        drawLine(screenshot, 24, 36, 38);
+        assertFalse(new ImageComparison().compareImages(reference,
+                screenshot, 0));
+    }
+
+    private static void drawLine(BufferedImage image, int x, int startY,
+            int endY) {
+        for (int y = startY; y <= endY; y++) {
+            image.setRGB(x, y, Color.BLACK.getRGB());
+        }
+    }
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ImageComparisonUtilTest {
+
+    private static final String FOLDER = ImageComparisonUtilTest.class
+            .getPackage().getName().replace('.', '/')
+            + "/masking";
+
+    private BufferedImage image;
+
+    @Before
+    public void setUp() throws IOException {
+        image = ImageLoader.loadImage(FOLDER, "google1.png");
+    }
+
+    @Test
+    public void generateImageHash_sameImageOfOtherType_sameHash() {
+        int[] types = new int[] { BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+        String exactHash = ImageComparisonUtil.generateImageHash(
+                convert(image, BufferedImage.TYPE_INT_RGB), false);
+        String fuzzyHash = ImageComparisonUtil.generateImageHash(
+                convert(image, BufferedImage.TYPE_INT_RGB), true);
+        assertEquals(32, exactHash.length());
+        for (int type : types) {
+            BufferedImage converted = convert(image, type);
+            assertEquals(exactHash,
+                    ImageComparisonUtil.generateImageHash(converted, false));
+            assertEquals(fuzzyHash,
+                    ImageComparisonUtil.generateImageHash(converted, true));
+        }
+    }
+
+    @Test
+    public void generateImageHash_lowBitsChanged_onlyExactHashDiffers() {
+        BufferedImage changed = convert(image, BufferedImage.TYPE_INT_RGB);
+        changed.setRGB(10, 10, changed.getRGB(10, 10) ^ 0x010203);
+
+        assertEquals(ImageComparisonUtil.generateImageHash(image, true),
+                ImageComparisonUtil.generateImageHash(changed, true));
+        assertFalse(ImageComparisonUtil.generateImageHash(image, false)
+                .equals(ImageComparisonUtil.generateImageHash(changed, false)));
+
+        changed.setRGB(10, 10, changed.getRGB(10, 10) ^ 0x040000);
+        assertFalse(ImageComparisonUtil.generateImageHash(image, true).equals(
+                ImageComparisonUtil.generateImageHash(changed, true)));
+    }
+
+    @Test
+    public void generateImageHash_subimage_sameAsCopy() {
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR }) {
+            BufferedImage subimage = convert(image, type).getSubimage(3, 5,
+                    101, 37);
+            BufferedImage copy = convert(subimage, BufferedImage.TYPE_INT_RGB);
+            assertEquals(ImageComparisonUtil.generateImageHash(copy, false),
+                    ImageComparisonUtil.generateImageHash(subimage, false));
+            assertEquals(ImageComparisonUtil.generatePerceptualHash(copy),
+                    ImageComparisonUtil.generatePerceptualHash(subimage));
+        }
+
+        // Same pixels in another shape
+        BufferedImage transposed = new BufferedImage(37, 101,
+                BufferedImage.TYPE_INT_RGB);
+        assertFalse(ImageComparisonUtil.generateImageHash(
+                new BufferedImage(101, 37, BufferedImage.TYPE_INT_RGB), false)
+                .equals(ImageComparisonUtil
+                        .generateImageHash(transposed, false)));
+    }
+
+    @Test
+    public void generateImageHash_changeInsideIgnoredRegion_sameHash() {
+        List<Rectangle> regions = Arrays.asList(new Rectangle(10, 20, 21, 5));
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_3BYTE_BGR }) {
+            BufferedImage original = convert(image, type);
+            BufferedImage changed = convert(image, type);
+            Graphics2D g = changed.createGraphics();
+            g.setColor(Color.MAGENTA);
+            g.fillRect(10, 20, 21, 5);
+            g.dispose();
+
+            assertEquals(
+                    ImageComparisonUtil.generateImageHash(original, regions),
+                    ImageComparisonUtil.generateImageHash(changed, regions));
+            assertFalse(ImageComparisonUtil.generateImageHash(original, false)
+                    .equals(ImageComparisonUtil.generateImageHash(changed,
+                            false)));
+        }
+
+        // A change just outside the region is noticed
+        BufferedImage changed = convert(image, BufferedImage.TYPE_INT_RGB);
+        changed.setRGB(31, 20, ~changed.getRGB(31, 20));
+        assertFalse(ImageComparisonUtil.generateImageHash(image, regions)
+                .equals(ImageComparisonUtil.generateImageHash(changed,
+                        regions)));
+        assertEquals(ImageComparisonUtil.generateImageHash(image, false),
+                ImageComparisonUtil.generateImageHash(image,
+                        Collections.<Rectangle> emptyList()));
+    }
+
+    @Test
+    public void generatePerceptualHash_nearDuplicate_smallDistance() {
+        long hash = ImageComparisonUtil.generatePerceptualHash(image);
+
+        // Slightly changed and scaled copies look alike
+        BufferedImage changed = convert(image, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = changed.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(100, 100, 10, 10);
+        g.dispose();
+        assertTrue(ImageComparisonUtil.getHammingDistance(hash,
+                ImageComparisonUtil.generatePerceptualHash(changed)) <= 10);
+        BufferedImage scaled = scale(image, 2);
+        assertTrue(ImageComparisonUtil.getHammingDistance(hash,
+                ImageComparisonUtil.generatePerceptualHash(scaled)) <= 10);
+
+        // A mirrored image does not
+        BufferedImage mirrored = new BufferedImage(image.getWidth(),
+                image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        g = mirrored.createGraphics();
+        g.drawImage(image, image.getWidth(), 0, -image.getWidth(),
+                image.getHeight(), null);
+        g.dispose();
+        assertTrue(ImageComparisonUtil.getHammingDistance(hash,
+                ImageComparisonUtil.generatePerceptualHash(mirrored)) > 10);
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(),
+                image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+
+    private static BufferedImage scale(BufferedImage image, int factor) {
+        BufferedImage scaled = new BufferedImage(image.getWidth() * factor,
+                image.getHeight() * factor, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        g.dispose();
+        return scaled;
+    }
+}
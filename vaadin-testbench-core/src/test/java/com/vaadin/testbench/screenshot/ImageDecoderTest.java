@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ImageDecoderTest {
+
+    @Test
+    public void decodeScreenshot_packedPixelsSameAsImageIO()
+            throws IOException {
+        for (int type : new int[] { BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR }) {
+            byte[] png = encode(createImage(100, 40, type, Color.RED));
+            BufferedImage image = ImageDecoder.decodeScreenshot(png);
+            BufferedImage expected = ImageIO.read(new ByteArrayInputStream(
+                    png));
+
+            assertEquals(
+                    type == BufferedImage.TYPE_3BYTE_BGR ? BufferedImage.TYPE_INT_RGB
+                            : BufferedImage.TYPE_INT_ARGB, image.getType());
+            assertSamePixels(expected, image);
+        }
+    }
+
+    @Test
+    public void decodeScreenshot_releasedImageOfSameSize_reused()
+            throws IOException {
+        BufferedImage first = ImageDecoder.decodeScreenshot(encode(createImage(
+                100, 40, BufferedImage.TYPE_3BYTE_BGR, Color.RED)));
+        ImageDecoder.release(first);
+
+        BufferedImage expected = createImage(100, 40,
+                BufferedImage.TYPE_3BYTE_BGR, Color.BLUE);
+        BufferedImage second = ImageDecoder.decodeScreenshot(encode(expected));
+        assertSame(first, second);
+        assertSamePixels(expected, second);
+
+        // Released images are used only once
+        assertNotSame(second, ImageDecoder.decodeScreenshot(encode(expected)));
+    }
+
+    @Test
+    public void decodeScreenshot_releasedImageOfOtherSize_notReused()
+            throws IOException {
+        BufferedImage first = ImageDecoder.decodeScreenshot(encode(createImage(
+                100, 40, BufferedImage.TYPE_3BYTE_BGR, Color.RED)));
+        ImageDecoder.release(first);
+        assertNotSame(first, ImageDecoder.decodeScreenshot(encode(createImage(
+                100, 41, BufferedImage.TYPE_3BYTE_BGR, Color.RED))));
+
+        // Sub images share the pixels of an image which may still be in use
+        BufferedImage full = ImageDecoder.decodeScreenshot(encode(createImage(
+                100, 40, BufferedImage.TYPE_3BYTE_BGR, Color.RED)));
+        ImageDecoder.release(full.getSubimage(0, 0, 100, 40));
+        assertNotSame(full, ImageDecoder.decodeScreenshot(encode(createImage(
+                100, 40, BufferedImage.TYPE_3BYTE_BGR, Color.RED))));
+    }
+
+    /**
+     * Creates an image with a different color in the top left quarter, to
+     * check that the whole image is decoded.
+     */
+    private static BufferedImage createImage(int width, int height, int type,
+            Color color) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(color);
+        g.fillRect(0, 0, width / 2, height / 2);
+        g.dispose();
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static void assertSamePixels(BufferedImage expected,
+            BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+}
@@ -12,9 +12,11 @@
  */
 package com.vaadin.testbench.screenshot;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
@@ -86,4 +88,72 @@ public class ImageUtilTest {
         assertEquals(image1, images.get(0));
         assertEquals(image2, images.get(1));
     }
+
+    @Test
+    public void getBlock_differentImageTypes_returnSameBlock()
+            throws IOException {
+        BufferedImage original = ImageLoader.loadImage(FOLDER,
+                "cursor-bottom-right-on.png");
+        int[] expected = null;
+        for (int type : new int[] { BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR }) {
+            BufferedImage image = convert(original, type);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            // Last partial block of the image
+            int x = (width - 1) & ~15;
+            int y = (height - 1) & ~15;
+            int[] block = ImageUtil.getBlock(
+                    ImageUtil.getImageProperties(image), x, y, null, null);
+            if (expected == null) {
+                expected = block;
+            } else {
+                assertArrayEquals(expected, block);
+            }
+            assertEquals(0xff000000, block[0] & 0xff000000);
+        }
+    }
+
+    @Test
+    public void getBlock_subImage_readsFromCorrectOffset() throws IOException {
+        BufferedImage image = convert(ImageLoader.loadImage(FOLDER,
+                "cursor-bottom-right-on.png"), BufferedImage.TYPE_INT_RGB);
+        BufferedImage subImage = image.getSubimage(16, 16,
+                image.getWidth() - 16, image.getHeight() - 16);
+        int[] expected = ImageUtil.getBlock(
+                ImageUtil.getImageProperties(image), 32, 16, null, null);
+        int[] actual = ImageUtil.getBlock(
+                ImageUtil.getImageProperties(subImage), 16, 0, null, null);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void getRGBRow_byteImages_sameAsGetRGB() {
+        for (int type : new int[] { BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR }) {
+            BufferedImage image = new BufferedImage(40, 20, type);
+            for (int y = 0; y < 20; y++) {
+                for (int x = 0; x < 40; x++) {
+                    image.setRGB(x, y, (x * 6) << 24 | (x * y) << 8 | y);
+                }
+            }
+            BufferedImage subImage = image.getSubimage(5, 3, 30, 15);
+            int[] row = new int[30];
+            for (int y = 0; y < 15; y++) {
+                ImageUtil.getRGBRow(subImage, y, row);
+                assertArrayEquals(subImage.getRGB(0, y, 30, 1, null, 0, 30),
+                        row);
+            }
+        }
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(),
+                image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
 }
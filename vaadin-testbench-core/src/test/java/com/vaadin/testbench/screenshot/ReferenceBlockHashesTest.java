@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaadin.testbench.Parameters;
+
+public class ReferenceBlockHashesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot();
+    }
+
+    @Test
+    public void getHashes_firstUse_hashesPersisted() throws IOException {
+        BufferedImage image = createImage(40, 20);
+        ImageIO.write(image, "png", new File(directory, "ref.png"));
+
+        long[] hashes = new ReferenceBlockHashes(directory).getHashes(
+                "ref.png", image);
+        assertEquals(3 * 2, hashes.length);
+        assertTrue(new File(directory, "ref.png"
+                + ReferenceBlockHashes.FILE_SUFFIX).exists());
+
+        // The hashes are read from the file, not from the given image
+        assertArrayEquals(hashes, new ReferenceBlockHashes(directory)
+                .getHashes("ref.png", new BufferedImage(40, 20,
+                        BufferedImage.TYPE_INT_RGB)));
+    }
+
+    @Test
+    public void getHashes_fileModified_imageHashedAgain() throws IOException {
+        BufferedImage image = createImage(40, 20);
+        File file = new File(directory, "ref.png");
+        ImageIO.write(image, "png", file);
+        ReferenceBlockHashes blockHashes = new ReferenceBlockHashes(directory);
+        long[] hashes = blockHashes.getHashes("ref.png", image);
+
+        file.setLastModified(file.lastModified() - 10000);
+        BufferedImage changed = createImage(40, 20);
+        changed.setRGB(39, 19, 0);
+        long[] changedHashes = blockHashes.getHashes("ref.png", changed);
+        assertEquals(hashes[0], changedHashes[0]);
+        assertFalse(hashes[5] == changedHashes[5]);
+    }
+
+    @Test
+    public void getHashes_notAFile_returnsNull() {
+        assertNull(new ReferenceBlockHashes(directory).getHashes("ref.png",
+                createImage(40, 20)));
+    }
+
+    @Test
+    public void hashBlock_anySinglePixelChanged_hashChanges() {
+        BufferedImage image = createImage(16, 16);
+        Set<Long> hashes = new HashSet<Long>();
+        hashes.add(hashBlock(image));
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 16; x++) {
+                int rgb = image.getRGB(x, y);
+                image.setRGB(x, y, rgb ^ 0x000001);
+                assertTrue(hashes.add(hashBlock(image)));
+                image.setRGB(x, y, rgb);
+            }
+        }
+    }
+
+    @Test
+    public void imageEqualToReference_blockHashes_sameResult()
+            throws IOException {
+        String referenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        String errorDirectory = Parameters.getScreenshotErrorDirectory();
+        Parameters.setScreenshotReferenceDirectory(directory.getPath());
+        Parameters.setScreenshotErrorDirectory(directory.getPath());
+        Parameters.setScreenshotReferenceBlockHashes(true);
+        try {
+            BufferedImage reference = createImage(100, 60);
+            ImageIO.write(reference, "png", new File(directory, "ref.png"));
+            BufferedImage screenshot = createImage(100, 60);
+            ImageComparison comparison = new ImageComparison();
+
+            assertTrue(comparison.imageEqualToReference(screenshot, "ref",
+                    0.0, null, false));
+            assertTrue(new File(directory, "ref.png"
+                    + ReferenceBlockHashes.FILE_SUFFIX).exists());
+
+            screenshot.setRGB(50, 30, 0xff0000);
+            assertFalse(comparison.imageEqualToReference(screenshot, "ref",
+                    0.0, null, false));
+            // Small differences are still compared with the tolerance
+            assertTrue(comparison.imageEqualToReference(screenshot, "ref",
+                    0.1, null, false));
+        } finally {
+            Parameters.setScreenshotReferenceBlockHashes(false);
+            Parameters.setScreenshotReferenceDirectory(referenceDirectory);
+            Parameters.setScreenshotErrorDirectory(errorDirectory);
+        }
+    }
+
+    private static long hashBlock(BufferedImage image) {
+        return ReferenceBlockHashes.hashBlock(
+                ImageUtil.getImageProperties(image), 0, 0, 16, 16);
+    }
+
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, x * 0x010203 + y * 0x030201);
+            }
+        }
+        return image;
+    }
+}
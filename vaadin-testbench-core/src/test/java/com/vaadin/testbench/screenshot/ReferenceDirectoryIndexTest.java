@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReferenceDirectoryIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private ReferenceDirectoryIndex index;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot();
+        index = new ReferenceDirectoryIndex();
+    }
+
+    @Test
+    public void findPreviousVariant_olderVersionsExist_returnsLargest()
+            throws IOException {
+        temporaryFolder.newFile("test_windows_chrome_30.png");
+        temporaryFolder.newFile("test_windows_chrome_38.png");
+        temporaryFolder.newFile("test_windows_chrome_40.png");
+        temporaryFolder.newFile("test_windows_firefox_39.png");
+        File template = new File(directory, "test_windows_chrome_####.png");
+
+        assertEquals(Integer.valueOf(38),
+                index.findPreviousVariant(template, 40));
+        assertEquals(Integer.valueOf(40),
+                index.findPreviousVariant(template, 120));
+        assertNull(index.findPreviousVariant(template, 30));
+        assertNull(index.findPreviousVariant(new File(directory,
+                "other_windows_chrome_####.png"), 40));
+    }
+
+    @Test
+    public void exists_fileAdded_indexRefreshed() throws IOException {
+        File file = new File(directory, "test_windows_chrome_40.png");
+        assertFalse(index.exists(file));
+
+        temporaryFolder.newFile(file.getName());
+        // Make sure the change is visible regardless of the resolution of the
+        // modification time
+        long now = System.currentTimeMillis();
+        directory.setLastModified(now - 20000);
+        assertTrue(index.exists(file));
+
+        file.delete();
+        directory.setLastModified(now - 10000);
+        assertFalse(index.exists(file));
+    }
+}
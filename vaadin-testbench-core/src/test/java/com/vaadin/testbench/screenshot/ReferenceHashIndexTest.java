@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static com.vaadin.testbench.testutils.ImageFactory.createImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+public class ReferenceHashIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot();
+    }
+
+    @Test
+    public void getRepresentation_updated_hashPersisted() throws IOException {
+        BufferedImage image = createImage(0x102030, 32, 32);
+        ImageIO.write(image, "png", new File(directory, "ref.png"));
+
+        ReferenceHashIndex index = new ReferenceHashIndex(directory);
+        assertNull(index.getRepresentation("ref.png"));
+        index.update("ref.png", image);
+        index.flush();
+
+        // A new index reads the hashes from the index file
+        ReferenceImageRepresentation representation = new ReferenceHashIndex(
+                directory).getRepresentation("ref.png");
+        assertNotNull(representation);
+        assertTrue(representation.containsHash(ImageComparisonUtil
+                .generateImageHash(image, false)));
+        // Exact hash must not accept changes in the least significant bits
+        assertFalse(representation.containsHash(ImageComparisonUtil
+                .generateImageHash(createImage(0x102031, 32, 32), false)));
+    }
+
+    @Test
+    public void getRepresentation_fileModified_returnsNull()
+            throws IOException {
+        BufferedImage image = createImage(0x102030, 32, 32);
+        File file = new File(directory, "ref.png");
+        ImageIO.write(image, "png", file);
+
+        ReferenceHashIndex index = new ReferenceHashIndex(directory);
+        index.update("ref.png", image);
+        file.setLastModified(file.lastModified() - 10000);
+        assertNull(index.getRepresentation("ref.png"));
+    }
+
+    @Test
+    public void flush_severalIndexes_entriesMerged() throws IOException {
+        BufferedImage image1 = createImage(0x102030, 32, 32);
+        BufferedImage image2 = createImage(0x405060, 32, 32);
+        ImageIO.write(image1, "png", new File(directory, "ref1.png"));
+        ImageIO.write(image2, "png", new File(directory, "ref2.png"));
+
+        // Like two forks of the test JVM using the same directory
+        ReferenceHashIndex index1 = new ReferenceHashIndex(directory);
+        ReferenceHashIndex index2 = new ReferenceHashIndex(directory);
+        index1.update("ref1.png", image1);
+        index2.update("ref2.png", image2);
+        // Nothing is written before the flush
+        assertFalse(new File(directory, ReferenceHashIndex.INDEX_FILE_NAME)
+                .exists());
+        index1.flush();
+        index2.flush();
+
+        ReferenceHashIndex index = new ReferenceHashIndex(directory);
+        assertNotNull(index.getRepresentation("ref1.png"));
+        assertNotNull(index.getRepresentation("ref2.png"));
+        // No temporary files are left behind
+        assertEquals(3, directory.list().length);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReferenceImageCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void getImage_sameFile_decodedOnce() throws IOException {
+        File file = createImageFile(16, 16);
+        ReferenceImageCache cache = new ReferenceImageCache(1024 * 1024);
+
+        BufferedImage image = cache.getImage(file);
+        assertSame(image, cache.getImage(file));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void getImage_fileModified_decodedAgain() throws IOException {
+        File file = createImageFile(16, 16);
+        ReferenceImageCache cache = new ReferenceImageCache(1024 * 1024);
+
+        BufferedImage image = cache.getImage(file);
+        file.setLastModified(file.lastModified() - 10000);
+        assertNotSame(image, cache.getImage(file));
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void getImage_cacheFull_leastRecentlyUsedEvicted()
+            throws IOException {
+        File file1 = createImageFile(16, 16);
+        File file2 = createImageFile(16, 16);
+        File file3 = createImageFile(16, 16);
+        BufferedImage image1 = ImageDecoder.read(file1);
+        long imageSize = ReferenceImageCache.getImageSize(image1);
+        ReferenceImageCache cache = new ReferenceImageCache(imageSize * 2);
+
+        cache.getImage(file1);
+        cache.getImage(file2);
+        // Use file1 so that file2 becomes the least recently used
+        cache.getImage(file1);
+        cache.getImage(file3);
+        assertEquals(imageSize * 2, cache.getSize());
+        assertEquals(3, cache.getMissCount());
+
+        cache.getImage(file1);
+        cache.getImage(file3);
+        assertEquals(3, cache.getMissCount());
+        cache.getImage(file2);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    private File createImageFile(int width, int height) throws IOException {
+        File file = temporaryFolder.newFile();
+        ImageIO.write(new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB), "png", file);
+        return file;
+    }
+}
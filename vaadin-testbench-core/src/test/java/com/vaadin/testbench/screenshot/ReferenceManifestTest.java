@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ReferenceManifestTest {
+
+    private static final String FOLDER = ReferenceManifestTest.class
+            .getPackage().getName().replace('.', '/');
+
+    private static final String[] NAMES = new String[] {
+            "test_windows_chrome_38.png", "test_linux_chrome_38.png",
+            "test_windows_firefox_45.png", "masked_windows_chrome_40.png" };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.getRoot();
+
+        copy("16x16-reference.png", NAMES[0]);
+        copy("16x16-reference.png", NAMES[1]);
+        // Same pixels, different PNG encoding
+        ImageIO.write(ImageIO.read(new File(directory, NAMES[0])), "png",
+                new File(directory, NAMES[2]));
+        copy("masking/google1-masked.png", NAMES[3]);
+    }
+
+    @Test
+    public void dedupe_identicalImages_storedOnce() throws IOException {
+        BufferedImage expected = ImageIO.read(new File(directory, NAMES[0]));
+
+        assertEquals(4, ReferenceManifest.dedupe(directory));
+        assertEquals(2,
+                new File(directory, ReferenceManifest.BLOB_DIRECTORY_NAME)
+                        .list().length);
+        for (String name : NAMES) {
+            assertFalse(new File(directory, name).exists());
+        }
+
+        ReferenceManifest manifest = ReferenceManifest.open(new File(
+                directory, ReferenceManifest.MANIFEST_FILE_NAME));
+        assertEquals(4, manifest.getNames().size());
+        assertEquals(manifest.getImageFile(NAMES[0]),
+                manifest.getImageFile(NAMES[2]));
+        assertSamePixels(expected,
+                ImageIO.read(manifest.getImageFile(NAMES[1])));
+    }
+
+    @Test
+    public void dedupe_maskedAndUnmaskedWithSameColors_storedSeparately()
+            throws IOException {
+        BufferedImage unmasked = ImageIO.read(new File(directory, NAMES[0]));
+        BufferedImage masked = new BufferedImage(unmasked.getWidth(),
+                unmasked.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < masked.getHeight(); y++) {
+            for (int x = 0; x < masked.getWidth(); x++) {
+                int rgb = unmasked.getRGB(x, y);
+                // Same colors, but the left half is transparent
+                masked.setRGB(x, y, x < masked.getWidth() / 2 ? rgb
+                        & 0x00ffffff : rgb);
+            }
+        }
+        ImageIO.write(masked, "png", new File(directory, "masked.png"));
+        assertEquals(
+                ImageComparisonUtil.generateImageHash(unmasked, false),
+                ReferenceManifest.hashImage(unmasked));
+
+        ReferenceManifest.dedupe(directory);
+        assertEquals(3,
+                new File(directory, ReferenceManifest.BLOB_DIRECTORY_NAME)
+                        .list().length);
+
+        ReferenceManifest.restore(directory);
+        BufferedImage restored = ImageIO.read(new File(directory,
+                "masked.png"));
+        assertEquals(0, restored.getRGB(0, 0) >>> 24);
+        assertEquals(0xff, restored.getRGB(restored.getWidth() - 1, 0) >>> 24);
+        assertEquals(0xff,
+                ImageIO.read(new File(directory, NAMES[0])).getRGB(0, 0) >>> 24);
+    }
+
+    @Test
+    public void restore_dedupedDirectory_samePixels() throws IOException {
+        BufferedImage expected = ImageIO.read(new File(directory, NAMES[2]));
+        ReferenceManifest.dedupe(directory);
+
+        assertEquals(4, ReferenceManifest.restore(directory));
+        assertFalse(new File(directory, ReferenceManifest.MANIFEST_FILE_NAME)
+                .exists());
+        assertFalse(new File(directory, ReferenceManifest.BLOB_DIRECTORY_NAME)
+                .exists());
+        assertSamePixels(expected,
+                ImageIO.read(new File(directory, NAMES[2])));
+    }
+
+    @Test
+    public void imageFileUtil_referenceInManifest_found() throws IOException {
+        BufferedImage expected = ImageIO.read(new File(directory, NAMES[3]));
+        ReferenceManifest.dedupe(directory);
+
+        String referenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(directory.getPath());
+        ImageFileUtil.ImageFileUtilImpl impl = new ImageFileUtil.ImageFileUtilImpl();
+        try {
+            // An older version is found from the manifest
+            assertEquals("test_windows_chrome_38.png",
+                    impl.findOldReferenceScreenshot("chrome", 40,
+                            "test_windows_chrome_40.png"));
+            assertTrue(impl.getReferenceImageFileNames(NAMES[3], null)
+                    .contains(NAMES[3]));
+            assertSamePixels(expected, impl.readReferenceImage(NAMES[3]));
+        } finally {
+            Parameters.setScreenshotReferenceDirectory(referenceDirectory);
+        }
+    }
+
+    @Test
+    public void hashesOfDedupedImages_takenFromManifestAndBlobs()
+            throws IOException {
+        BufferedImage image = ImageIO.read(new File(directory, NAMES[0]));
+        ReferenceManifest.dedupe(directory);
+
+        String referenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(directory.getPath());
+        try {
+            ReferenceImageRepresentation representation = new ReferenceHashIndex(
+                    directory).getRepresentation(NAMES[1]);
+            assertTrue(representation.containsHash(ImageComparisonUtil
+                    .generateImageHash(image, false)));
+
+            // Identical images share the block hashes of the blob
+            ReferenceBlockHashes blockHashes = new ReferenceBlockHashes(
+                    directory);
+            long[] hashes = blockHashes.getHashes(NAMES[0], image);
+            assertArrayEquals(ReferenceBlockHashes.hashBlocks(ImageUtil
+                    .getImageProperties(image)), hashes);
+            File blobFile = ReferenceManifest.open(
+                    new File(directory, ReferenceManifest.MANIFEST_FILE_NAME))
+                    .getImageFile(NAMES[1]);
+            assertTrue(new File(blobFile.getPath()
+                    + ReferenceBlockHashes.FILE_SUFFIX).exists());
+            assertArrayEquals(hashes, blockHashes.getHashes(NAMES[1], image));
+        } finally {
+            Parameters.setScreenshotReferenceDirectory(referenceDirectory);
+        }
+
+        ReferenceManifest.restore(directory);
+        assertFalse(new File(directory, ReferenceManifest.BLOB_DIRECTORY_NAME)
+                .exists());
+    }
+
+    private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    private void copy(String resource, String name) throws IOException {
+        int slash = resource.lastIndexOf('/');
+        String folder = slash < 0 ? FOLDER : FOLDER + "/"
+                + resource.substring(0, slash);
+        byte[] data = ImageLoader.loadImageBytes(folder,
+                resource.substring(slash + 1));
+        FileOutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ReferencePackTest {
+
+    private static final String FOLDER = ReferencePackTest.class.getPackage()
+            .getName().replace('.', '/');
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private File packFile;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.getRoot();
+        packFile = new File(directory, ReferencePack.PACK_FILE_NAME);
+
+        copy("16x16-reference.png", "test_windows_chrome_38.png");
+        copy("masking/google1-masked.png", "masked_windows_chrome_40.png");
+    }
+
+    @Test
+    public void pack_readImage_samePixelsAsPng() throws IOException {
+        assertEquals(2, ReferencePack.pack(directory, packFile));
+
+        ReferencePack pack = ReferencePack.open(packFile);
+        try {
+            assertEquals(new HashSet<String>(Arrays.asList(
+                    "test_windows_chrome_38.png",
+                    "masked_windows_chrome_40.png")), pack.getNames());
+            for (String name : pack.getNames()) {
+                assertSamePixels(ImageIO.read(new File(directory, name)),
+                        pack.readImage(name));
+            }
+            assertNull(pack.readImage("other.png"));
+
+            IntBuffer pixels = pack.getPixels("test_windows_chrome_38.png");
+            assertEquals(16 * 16, pixels.remaining());
+            assertTrue(pixels.isReadOnly());
+        } finally {
+            pack.close();
+        }
+    }
+
+    @Test
+    public void open_smallChunks_imagesMappedInSeveralChunks()
+            throws IOException {
+        copy("16x16-reference.png", "test_windows_chrome_39.png");
+        ReferencePack.pack(directory, packFile);
+
+        // Room for the masked image only, the two small ones share a chunk
+        ReferencePack pack = ReferencePack.open(packFile, 4 * 1009 * 662);
+        try {
+            for (String name : pack.getNames()) {
+                assertSamePixels(ImageIO.read(new File(directory, name)),
+                        pack.readImage(name));
+            }
+        } finally {
+            pack.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void getPixels_closedPack_throws() throws IOException {
+        ReferencePack.pack(directory, packFile);
+        ReferencePack pack = ReferencePack.open(packFile);
+        pack.close();
+        pack.getPixels("test_windows_chrome_38.png");
+    }
+
+    @Test
+    public void unpack_packedDirectory_samePixels() throws IOException {
+        ReferencePack.pack(directory, packFile);
+        File unpacked = new File(directory, "unpacked");
+
+        assertEquals(2, ReferencePack.unpack(packFile, unpacked));
+        for (String name : new String[] { "test_windows_chrome_38.png",
+                "masked_windows_chrome_40.png" }) {
+            assertSamePixels(ImageIO.read(new File(directory, name)),
+                    ImageIO.read(new File(unpacked, name)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void open_notPackFile_throws() throws IOException {
+        ReferencePack.open(new File(directory, "test_windows_chrome_38.png"));
+    }
+
+    @Test
+    public void imageFileUtil_referenceOnlyInPack_found() throws IOException {
+        ReferencePack.pack(directory, packFile);
+        BufferedImage expected = ImageIO.read(new File(directory,
+                "test_windows_chrome_38.png"));
+        new File(directory, "test_windows_chrome_38.png").delete();
+
+        String referenceDirectory = Parameters
+                .getScreenshotReferenceDirectory();
+        Parameters.setScreenshotReferenceDirectory(directory.getPath());
+        Parameters.setScreenshotReferencePack(true);
+        ImageFileUtil.ImageFileUtilImpl impl = new ImageFileUtil.ImageFileUtilImpl();
+        try {
+            // An older version is found from the pack
+            assertEquals("test_windows_chrome_38.png",
+                    impl.findOldReferenceScreenshot("chrome", 40,
+                            "test_windows_chrome_40.png"));
+            BufferedImage image = impl
+                    .readReferenceImage("test_windows_chrome_38.png");
+            assertSamePixels(expected, image);
+            // Copied out of the pack only once
+            assertSame(image,
+                    impl.readReferenceImage("test_windows_chrome_38.png"));
+
+            Parameters.setScreenshotReferencePack(false);
+            assertNull(impl.getReferencePack());
+            assertFalse("test_windows_chrome_38.png".equals(impl
+                    .findOldReferenceScreenshot("chrome", 40,
+                            "test_windows_chrome_40.png")));
+        } finally {
+            Parameters.setScreenshotReferencePack(false);
+            Parameters.setScreenshotReferenceDirectory(referenceDirectory);
+        }
+    }
+
+    private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        assertEquals(width, actual.getWidth());
+        assertEquals(height, actual.getHeight());
+        assertArrayEquals(expected.getRGB(0, 0, width, height, null, 0, width),
+                actual.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    private void copy(String resource, String name) throws IOException {
+        int slash = resource.lastIndexOf('/');
+        String folder = slash < 0 ? FOLDER : FOLDER + "/"
+                + resource.substring(0, slash);
+        byte[] data = ImageLoader.loadImageBytes(folder,
+                resource.substring(slash + 1));
+        FileOutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2012 Vaadin Ltd
+ *
+ * This program is available under Commercial Vaadin Add-On License 3.0
+ * (CVALv3).
+ *
+ * See the file licensing.txt distributed with this software for more
+ * information about licensing.
+ *
+ * You should have received a copy of the license along with this program.
+ * If not, see <http://vaadin.com/license/cval-3>.
+ */
+package com.vaadin.testbench.screenshot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vaadin.testbench.Parameters;
+import com.vaadin.testbench.testutils.ImageLoader;
+
+public class ScreenShotFailureReporterTest {
+
+    private static final String FOLDER = ScreenShotFailureReporterTest.class
+            .getPackage().getName().replace('.', '/');
+
+    @Before
+    public void setup() {
+        Parameters.setScreenshotComparisonCursorDetection(false);
+    }
+
+    @Test
+    public void collectErrorsToList_fixtures_sameRegionsAsBefore()
+            throws IOException {
+        // Regions given as x, y, width, height in blocks
+        assertRegions("big-image.png", "big-image-ss.png", "26,19,8,4",
+                "26,24,8,4");
+        assertRegions("purple-border.png", "purple-border-top-left.png",
+                "0,0,2,2");
+        assertRegions("text-red.png", "text-blue.png", "0,0,4,1");
+        assertRegions("no-outline-cursor.png", "outline-no-cursor.png",
+                "0,0,1,1", "1,2,9,2");
+        assertRegions("17x17-similar-26.png", "17x17-similar-31.png",
+                "0,0,1,1");
+        assertRegions("cursor2-on-outline-on.png",
+                "cursor2-on-outline-off.png", "1,7,9,2");
+        assertRegions("cursor2-off-outline-on.png",
+                "cursor2-on-outline-off.png", "1,7,9,2");
+        assertRegions("16x16-reference.png", "16x16-screenshot.png",
+                "0,0,1,1");
+        assertRegions("cursor-off.png", "cursor-on.png", "5,3,1,1");
+        assertRegions("cursor3-ref.png", "cursor3-new.png", "0,24,1,2");
+        assertRegions("cursor-like-diff-at-0x15-ref.png",
+                "cursor-like-diff-at-0x15-new.png", "0,0,2,2");
+    }
+
+    @Test
+    public void collectErrorsToList_regionAtRightEdge_staysInsideImage()
+            throws IOException {
+        // The previous implementation wrapped around at the right edge and
+        // reported regions wider than the image
+        assertRegions("11.png", "111.png", "1,0,1,2");
+        assertRegions("cursor-bottom-right-off.png",
+                "cursor-bottom-right-on.png", "10,1,1,2");
+        assertRegions("black.png", "white.png", "0,0,11,4");
+    }
+
+    @Test
+    public void collectErrorsToList_connectedShapes_oneRegionEach() {
+        BlockErrorMap falseBlocks = createFalseBlocks(
+                "X.X..",
+                "XXX..",
+                "....X",
+                "..XXX",
+                "X....");
+        ScreenShotFailureReporter reporter = new ScreenShotFailureReporter(
+                new BufferedImage(5 * 16, 5 * 16, BufferedImage.TYPE_INT_RGB),
+                falseBlocks);
+
+        assertRegions(reporter.collectErrorsToList(), "0,0,3,2", "2,2,3,2",
+                "0,4,1,1");
+    }
+
+    private void assertRegions(String referenceFileName,
+            String screenshotFileName, String... expected) throws IOException {
+        BufferedImage referenceImage = ImageLoader.loadImage(FOLDER,
+                referenceFileName);
+        BufferedImage screenshotImage = ImageLoader.loadImage(FOLDER,
+                screenshotFileName);
+        ScreenShotFailureReporter reporter = new ImageComparison()
+                .findDifferences(referenceImage, screenshotImage, 0);
+        assertNotNull(reporter);
+        assertRegions(reporter.collectErrorsToList(), expected);
+    }
+
+    private void assertRegions(List<ErrorBlock> regions, String... expected) {
+        assertEquals(expected.length, regions.size());
+        for (int i = 0; i < expected.length; i++) {
+            ErrorBlock region = regions.get(i);
+            assertEquals(expected[i], region.getX() / 16 + ","
+                    + region.getY() / 16 + "," + region.getXBlocks() + ","
+                    + region.getYBlocks());
+        }
+    }
+
+    private BlockErrorMap createFalseBlocks(String... rows) {
+        BlockErrorMap falseBlocks = new BlockErrorMap(rows[0].length(),
+                rows.length);
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < rows[y].length(); x++) {
+                if (rows[y].charAt(x) == 'X') {
+                    falseBlocks.set(x, y);
+                }
+            }
+        }
+        return falseBlocks;
+    }
+}
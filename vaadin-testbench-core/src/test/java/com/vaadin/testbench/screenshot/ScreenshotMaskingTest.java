@@ -15,8 +15,10 @@ package com.vaadin.testbench.screenshot;
 import com.vaadin.testbench.testutils.ImageLoader;
 import org.junit.Test;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -105,4 +107,28 @@ public class ScreenshotMaskingTest {
                 "google1-masked.png", 0));
     }
 
+    @Test
+    public void testDifferentScreenshotsIgnoredRegionPass() throws IOException {
+        ImageComparison ic = new ImageComparison();
+        BufferedImage screenshotImage = ImageLoader.loadImage(FOLDER,
+                "google2.png");
+        BufferedImage referenceImage = ImageLoader.loadImage(FOLDER,
+                "google1.png");
+        // The exact bounds of the changes, not aligned to blocks
+        assertTrue(ic.compareImages(referenceImage, screenshotImage, 0,
+                Arrays.asList(new Rectangle(246, 80, 529, 223))));
+    }
+
+    @Test
+    public void testDifferentScreenshotsChangesOutsideIgnoredRegionFail()
+            throws IOException {
+        ImageComparison ic = new ImageComparison();
+        BufferedImage screenshotImage = ImageLoader.loadImage(FOLDER,
+                "google2.png");
+        BufferedImage referenceImage = ImageLoader.loadImage(FOLDER,
+                "google1.png");
+        assertFalse(ic.compareImages(referenceImage, screenshotImage, 0,
+                Arrays.asList(new Rectangle(247, 80, 528, 223))));
+    }
+
 }